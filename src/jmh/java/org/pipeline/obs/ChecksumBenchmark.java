@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+/**
+ * MD5 of one upload part, computed directly as for {@code Content-MD5} and
+ * while streaming as for ETag verification, against a plain read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChecksumBenchmark {
+
+	@Param({"16MB"})
+	public String size;
+
+	private byte[] data;
+	private final byte[] buffer = new byte[64 * 1024];
+
+	@Setup
+	public void setUp() {
+		this.data = new byte[(int) SizeUtils.parse(this.size, 0)];
+		new Random(0).nextBytes(this.data);
+	}
+
+	@Benchmark
+	public String contentMd5() {
+		return Checksums.contentMd5(this.data, 0, this.data.length);
+	}
+
+	@Benchmark
+	public byte[] streamingMd5() throws IOException {
+		MessageDigest digest = Checksums.md5();
+		this.drain(new DigestInputStream(new ByteArrayInputStream(this.data), digest));
+		return digest.digest();
+	}
+
+	@Benchmark
+	public long plainRead() throws IOException {
+		return this.drain(new ByteArrayInputStream(this.data));
+	}
+
+	private long drain(InputStream in) throws IOException {
+		long total = 0;
+		int read;
+		while ((read = in.read(this.buffer)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+}
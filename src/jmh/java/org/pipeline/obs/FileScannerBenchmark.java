@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.pipeline.obs.utils.FileScanner;
+import hudson.Util;
+
+/**
+ * Walks a generated workspace with {@link FileScanner}, as {@code obsUpload}
+ * does, and with the Ant scanner behind {@code Util.createFileSet} as a
+ * baseline, plus the glob matching alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileScannerBenchmark {
+
+	private static final String INCLUDES = "**/*.class,**/*.jar";
+	private static final String EXCLUDES = "**/test-classes/**";
+
+	@Param({"100"})
+	public int directories;
+
+	@Param({"50"})
+	public int filesPerDirectory;
+
+	private File root;
+	private String[] paths;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.root = Files.createTempDirectory("scan-benchmark").toFile();
+		this.paths = new String[this.directories * this.filesPerDirectory];
+		int count = 0;
+		for (int d = 0; d < this.directories; d++) {
+			String dir = (d % 4 == 0 ? "test-classes" : "classes") + File.separator + "pkg" + d;
+			Files.createDirectories(new File(this.root, dir).toPath());
+			for (int f = 0; f < this.filesPerDirectory; f++) {
+				String path = dir + File.separator + "File" + f + (f % 3 == 0 ? ".java" : ".class");
+				Files.createFile(new File(this.root, path).toPath());
+				this.paths[count++] = path;
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Util.deleteRecursive(this.root);
+	}
+
+	@Benchmark
+	public List<FileScanner.ScannedFile> fileScanner() throws IOException {
+		return new FileScanner(INCLUDES, EXCLUDES).scan(this.root);
+	}
+
+	@Benchmark
+	public String[] antDirectoryScanner() {
+		FileSet fileSet = Util.createFileSet(this.root, INCLUDES, EXCLUDES);
+		DirectoryScanner scanner = fileSet.getDirectoryScanner(new org.apache.tools.ant.Project());
+		return scanner.getIncludedFiles();
+	}
+
+	@Benchmark
+	public void globMatch(Blackhole blackhole) {
+		String pattern = "**" + File.separator + "*.class";
+		for (String path : this.paths) {
+			blackhole.consume(SelectorUtils.matchPath(pattern, path));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.pipeline.obs.utils.JsonUtils;
+
+/**
+ * The payload path of {@code invokeFunction}: a Pipeline map converted to
+ * the event directly, compared with writing it as JSON text and parsing it
+ * back, as the step did before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PayloadBenchmark {
+
+	@Param({"10", "1000"})
+	public int entries;
+
+	private Map<String, Object> payload;
+	private String json;
+
+	@Setup
+	public void setUp() {
+		this.payload = new LinkedHashMap<>();
+		for (int i = 0; i < this.entries; i++) {
+			Map<String, Object> nested = new LinkedHashMap<>();
+			nested.put("id", i);
+			nested.put("tags", Arrays.asList("a", "b", "c"));
+			this.payload.put("key" + i, i % 2 == 0 ? "value-" + i : nested);
+		}
+		this.json = JsonUtils.toString(this.payload);
+	}
+
+	@Benchmark
+	public String serialize() {
+		return JsonUtils.toString(this.payload);
+	}
+
+	@Benchmark
+	public JsonNode parse() {
+		return InvokeFunctionStep.toEvent(this.json);
+	}
+
+	@Benchmark
+	public JsonNode convert() {
+		return InvokeFunctionStep.toEvent(this.payload);
+	}
+
+	@Benchmark
+	public JsonNode roundTrip() {
+		return InvokeFunctionStep.toEvent(JsonUtils.toString(this.payload));
+	}
+}
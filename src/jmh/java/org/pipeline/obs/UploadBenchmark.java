@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obs.services.ObsClient;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+/**
+ * Uploads a file with a single PUT and as a multipart upload against
+ * {@link LocalHuaweiCloud}, through the same code path as {@code obsUpload}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class UploadBenchmark {
+
+	@Param({"8MB", "64MB"})
+	public String size;
+
+	@Param({"4"})
+	public int parallelism;
+
+	private LocalHuaweiCloud cloud;
+	private ObsClient obs;
+	private File file;
+	private MultipartUploader single;
+	private MultipartUploader multipart;
+	private ObjectHeaders headers;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("benchmark");
+		this.cloud.obs().setRetainContent(false);
+		this.obs = this.cloud.newObsClient();
+		this.file = File.createTempFile("upload-benchmark", ".bin");
+		byte[] buffer = new byte[(int) SizeUtils.MB];
+		Random random = new Random(0);
+		try (OutputStream out = Files.newOutputStream(this.file.toPath())) {
+			for (long written = 0; written < SizeUtils.parse(this.size, 0); written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer);
+			}
+		}
+		this.single = new MultipartUploader(MultipartUploader.MAX_PART_SIZE, Long.MAX_VALUE, 1);
+		this.multipart = new MultipartUploader(4 * SizeUtils.MB, 4 * SizeUtils.MB, this.parallelism);
+		this.headers = new ObjectHeaders(Collections.<String, String>emptyMap(), null, null);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		OBSClientFactory.releaseHuaweiObsClient(this.obs);
+		this.cloud.close();
+		Files.delete(this.file.toPath());
+	}
+
+	@Benchmark
+	public long singlePut() throws IOException, InterruptedException {
+		return this.upload(this.single);
+	}
+
+	@Benchmark
+	public long multipartUpload() throws IOException, InterruptedException {
+		return this.upload(this.multipart);
+	}
+
+	private long upload(MultipartUploader uploader) throws IOException, InterruptedException {
+		TransferProgress progress = new TransferProgress(null, false, 1);
+		OBSUploadStep.uploadFile(this.obs, "benchmark", "data/file.bin", this.file, uploader, null, null, this.headers, progress);
+		return progress.getBytes();
+	}
+}
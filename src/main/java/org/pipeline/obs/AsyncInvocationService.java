@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import com.huawei.openstack4j.api.types.ServiceType;
+import com.huawei.openstack4j.model.ModelEntity;
+import com.huawei.openstack4j.openstack.internal.BaseOpenStackService;
+
+/**
+ * Queries the status of asynchronous FunctionGraph invocations, which the
+ * openstack4j FunctionGraph service does not cover. Uses the session bound to
+ * the calling thread, see {@link OBSClientFactory#createOscClient}.
+ */
+class AsyncInvocationService extends BaseOpenStackService {
+
+	static final String STATUS_SUCCESS = "SUCCESS";
+	static final String STATUS_FAIL = "FAIL";
+	static final String STATUS_DISCARD = "DISCARD";
+
+	AsyncInvocationService() {
+		super(ServiceType.FGS2_0);
+	}
+
+	/**
+	 * Returns the invocation with the given request ID, or null if FunctionGraph
+	 * does not know it (yet).
+	 */
+	AsyncInvocation getInvocation(String functionUrn, String requestId) {
+		AsyncInvocations invocations = this.get(AsyncInvocations.class,
+			this.uri("/fgs/functions/%s/async-invocations", functionUrn))
+			.param("request_id", requestId)
+			.execute();
+		if (invocations == null || invocations.invocations == null) {
+			return null;
+		}
+		for (AsyncInvocation invocation : invocations.invocations) {
+			if (requestId.equals(invocation.requestId)) {
+				return invocation;
+			}
+		}
+		return null;
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	static class AsyncInvocations implements ModelEntity {
+
+		private static final long serialVersionUID = 1L;
+
+		@JsonProperty("invocations")
+		private List<AsyncInvocation> invocations;
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	static class AsyncInvocation implements ModelEntity {
+
+		private static final long serialVersionUID = 1L;
+
+		@JsonProperty("request_id")
+		private String requestId;
+
+		@JsonProperty("status")
+		private String status;
+
+		@JsonProperty("error_message")
+		private String errorMessage;
+
+		String getRequestId() {
+			return this.requestId;
+		}
+
+		String getStatus() {
+			return this.status;
+		}
+
+		String getErrorMessage() {
+			return this.errorMessage;
+		}
+
+		boolean isFinished() {
+			return STATUS_SUCCESS.equals(this.status) || STATUS_FAIL.equals(this.status) || STATUS_DISCARD.equals(this.status);
+		}
+	}
+}
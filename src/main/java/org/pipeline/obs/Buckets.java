@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.CreateBucketRequest;
+import com.obs.services.model.StorageClassEnum;
+
+/**
+ * Bucket checks for uploads. Uploads do not look the bucket up before
+ * writing; a missing bucket is reported from the error of the first request
+ * instead, which saves a round trip per step.
+ */
+final class Buckets {
+
+	private static final String NO_SUCH_BUCKET = "NoSuchBucket";
+	private static final String ALREADY_OWNED = "BucketAlreadyOwnedByYou";
+
+	private Buckets() {
+		//
+	}
+
+	static boolean isMissing(ObsException e) {
+		return NO_SUCH_BUCKET.equals(e.getErrorCode());
+	}
+
+	/**
+	 * Returns the exception to report for a request that failed because the
+	 * bucket does not exist.
+	 */
+	static FileNotFoundException missing(String bucket, ObsException e) {
+		FileNotFoundException exception = new FileNotFoundException("Bucket " + bucket + " does not exist");
+		exception.initCause(e);
+		return exception;
+	}
+
+	/**
+	 * Creates the bucket unless it exists. Location and storage class may be
+	 * null to use the defaults of the endpoint.
+	 */
+	static void create(ObsClient obs, String bucket, String location, String storageClass, PrintStream logger) {
+		if (obs.headBucket(bucket)) {
+			return;
+		}
+		CreateBucketRequest request = new CreateBucketRequest(bucket, location);
+		if (storageClass != null) {
+			request.setBucketStorageClass(StorageClassEnum.valueOf(storageClass.toUpperCase(Locale.ENGLISH)));
+		}
+		try {
+			obs.createBucket(request);
+			logger.format("Created bucket %s%n", bucket);
+		} catch (ObsException e) {
+			// another build created it in the meantime
+			if (!ALREADY_OWNED.equals(e.getErrorCode())) {
+				throw e;
+			}
+		}
+	}
+}
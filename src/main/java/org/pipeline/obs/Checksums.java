@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+import hudson.Util;
+
+/**
+ * MD5 checks for uploads. Streamed data is hashed while it is sent and
+ * compared with the ETag OBS returns, which is the MD5 of the body for
+ * single PUTs and parts; data already in memory is sent with a
+ * {@code Content-MD5} header so OBS checks it itself.
+ */
+final class Checksums {
+
+	private static final Pattern MD5_ETAG = Pattern.compile("[0-9a-fA-F]{32}");
+
+	private Checksums() {
+		//
+	}
+
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the base64 encoded MD5 of the data, as used by {@code Content-MD5}.
+	 */
+	static String contentMd5(byte[] data, int off, int len) {
+		MessageDigest digest = md5();
+		digest.update(data, off, len);
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	/**
+	 * Fails when the ETag is an MD5 that differs from the digest of the data
+	 * that was sent. ETags that are not plain MD5s (e.g. with server side
+	 * encryption) cannot be checked and are accepted.
+	 */
+	static void verify(String etag, MessageDigest digest, String what) throws IOException {
+		if (etag == null) {
+			return;
+		}
+		String unquoted = etag.replace("\"", "");
+		if (!MD5_ETAG.matcher(unquoted).matches()) {
+			return;
+		}
+		String md5 = Util.toHexString(digest.digest());
+		if (!md5.equalsIgnoreCase(unquoted)) {
+			throw new IOException("Checksum mismatch for " + what + ": sent MD5 " + md5 + ", OBS stored " + unquoted);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import com.obs.services.ObsClient;
+import com.obs.services.model.ObjectMetadata;
+
+/**
+ * Content encoding applied to uploaded objects. Objects are stored with a
+ * {@code Content-Encoding} header and their uncompressed size in the
+ * {@value #ORIGINAL_LENGTH} user metadata.
+ */
+final class Compression {
+
+	static final String GZIP = "gzip";
+	static final String ORIGINAL_LENGTH = "original-length";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// formats that are compressed already and would only get larger
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+		"gz", "tgz", "bz2", "xz", "txz", "zst", "lz4", "7z", "rar", "zip", "jar", "war", "ear", "apk", "whl", "nupkg",
+		"png", "jpg", "jpeg", "gif", "webp", "avif", "heic", "mp3", "mp4", "m4a", "mov", "avi", "mkv", "webm", "ogg",
+		"woff", "woff2", "pdf", "docx", "xlsx", "pptx", "rpm", "deb", "dmg", "iso", "qcow2"));
+
+	private Compression() {
+		//
+	}
+
+	/**
+	 * Checks the {@code compress} step parameter.
+	 */
+	static void validate(String compress) {
+		if (compress != null && !GZIP.equals(compress)) {
+			throw new IllegalArgumentException("Unsupported compression " + compress + ", only gzip is supported");
+		}
+	}
+
+	/**
+	 * Returns whether a file with the given name is worth compressing.
+	 */
+	static boolean isCompressible(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot < 0 || !COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	static boolean isGzip(ObjectMetadata metadata) {
+		return metadata != null && GZIP.equalsIgnoreCase(metadata.getContentEncoding());
+	}
+
+	/**
+	 * Uploads the file gzip compressed, compressing while the object is
+	 * written, so neither the compressed data nor its size are known up front.
+	 */
+	static void uploadGzip(ObsClient obs, String bucket, String key, File file, ObjectMetadata metadata, MultipartUploader multipartUploader, TransferProgress progress) throws IOException {
+		metadata.setContentEncoding(GZIP);
+		metadata.addUserMetadata(ORIGINAL_LENGTH, String.valueOf(file.length()));
+		MultipartOutputStream out = new MultipartOutputStream(obs, bucket, key, metadata, multipartUploader, progress);
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+			Files.copy(file.toPath(), gzip);
+			// finishes the gzip stream and completes the upload
+			gzip.close();
+		} catch (IOException | RuntimeException e) {
+			out.abort();
+			throw e;
+		}
+	}
+}
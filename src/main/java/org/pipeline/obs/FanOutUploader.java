@@ -0,0 +1,474 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.AbortMultipartUploadRequest;
+import com.obs.services.model.CompleteMultipartUploadRequest;
+import com.obs.services.model.InitiateMultipartUploadRequest;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.PartEtag;
+import com.obs.services.model.PutObjectRequest;
+import com.obs.services.model.UploadPartRequest;
+import com.obs.services.model.UploadPartResult;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Uploads the same files to several destinations. Each file is read once, in
+ * chunks of the part size, and every chunk is sent to all destinations at the
+ * same time, with a {@code Content-MD5} computed once per chunk. Files up to
+ * the part size are sent with a single PUT, larger files as one multipart
+ * upload per destination, reading ahead so that up to {@code parallelism}
+ * parts are in flight. A destination that fails is dropped for the rest of
+ * the step and its open upload is aborted; the others continue. Runs on the
+ * agent; at most {@code parallelism} chunks are held in memory, shared by all
+ * calling threads, so the part size is limited to 2GB.
+ */
+class FanOutUploader {
+
+	private final List<Target> targets = new ArrayList<>();
+	private final MultipartUploader uploader;
+	private final ObjectHeaders headers;
+	private final TransferProgress progress;
+	private final ExecutorService senders;
+	// one permit per chunk held in memory
+	private final Semaphore buffers;
+
+	/**
+	 * The outcome for one destination, sent back to the controller.
+	 */
+	static class Result implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final UploadDestination destination;
+		private final TransferProgress progress;
+		private final String error;
+
+		Result(UploadDestination destination, TransferProgress progress, String error) {
+			this.destination = destination;
+			this.progress = progress;
+			this.error = error;
+		}
+
+		UploadDestination getDestination() {
+			return this.destination;
+		}
+
+		TransferProgress getProgress() {
+			return this.progress;
+		}
+
+		/**
+		 * Returns why the destination failed, or null if all files arrived.
+		 */
+		String getError() {
+			return this.error;
+		}
+	}
+
+	private static final class Target {
+		private final UploadDestination destination;
+		private final ObsClient obs;
+		private final TransferProgress progress;
+		private volatile String error;
+
+		Target(UploadDestination destination, ObsClient obs, TransferProgress progress) {
+			this.destination = destination;
+			this.obs = obs;
+			this.progress = progress;
+		}
+	}
+
+	/**
+	 * Sends one request to one destination.
+	 */
+	private interface Send {
+		void send(Target target) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * @param progress counts the files and bytes read, and logs the progress
+	 */
+	FanOutUploader(List<UploadDestination> destinations, MultipartUploader uploader, ObjectHeaders headers, TransferProgress progress) {
+		if (uploader.getPartSize() > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Part size must be at most 2GB for uploads to several destinations");
+		}
+		this.uploader = uploader;
+		this.headers = headers;
+		this.progress = progress;
+		try {
+			for (UploadDestination destination : destinations) {
+				// per destination counts for the summary and the metrics, the shared progress does the logging
+				this.targets.add(new Target(destination, OBSClientFactory.createHuaweiObsClient(destination.getEnvVars()),
+					new TransferProgress(progress.getLogger(), false, 0)));
+			}
+		} catch (RuntimeException e) {
+			this.releaseClients();
+			throw e;
+		}
+		this.senders = Executors.newFixedThreadPool(uploader.getParallelism() * destinations.size(),
+			new NamingThreadFactory(new DaemonThreadFactory(), "obsUpload-fanOut"));
+		this.buffers = new Semaphore(uploader.getParallelism());
+	}
+
+	/**
+	 * Uploads one file to every destination that has not failed.
+	 *
+	 * @param path the path of the file relative to the uploaded directory
+	 * @param single whether the file was named directly instead of matched
+	 */
+	void upload(File file, String path, boolean single) throws IOException, InterruptedException {
+		List<Target> live = this.live();
+		if (live.isEmpty()) {
+			return;
+		}
+		final Map<Target, String> keys = new ConcurrentHashMap<>();
+		for (Target target : live) {
+			keys.put(target, target.destination.keyFor(path, single));
+		}
+		long length = file.length();
+		if (length <= this.uploader.getPartSize()) {
+			this.put(live, keys, file, (int) length);
+		} else {
+			this.uploadParts(live, keys, file, length);
+		}
+		int arrived = 0;
+		for (Target target : live) {
+			if (target.error == null) {
+				target.progress.fileDone(target.destination.getBucket(), keys.get(target));
+				arrived++;
+			}
+		}
+		this.progress.fileDone(String.format("%s to %d %s", path, arrived, arrived == 1 ? "destination" : "destinations"));
+	}
+
+	private void put(List<Target> live, final Map<Target, String> keys, File file, int length) throws IOException, InterruptedException {
+		final byte[] data;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			data = this.readChunk(in, file, length);
+		}
+		try {
+			this.put(live, keys, data);
+		} finally {
+			this.buffers.release();
+		}
+		this.progress.addBytes(length);
+	}
+
+	private void put(List<Target> live, final Map<Target, String> keys, final byte[] data) throws IOException, InterruptedException {
+		final String md5 = Checksums.contentMd5(data, 0, data.length);
+		final TransferThrottle throttle = this.uploader.getThrottle();
+		this.fanOut(live, new Send() {
+			@Override
+			public void send(final Target target) throws IOException, InterruptedException {
+				final String key = keys.get(target);
+				final ObjectMetadata metadata = FanOutUploader.this.headers.toMetadata(key);
+				metadata.setContentLength((long) data.length);
+				metadata.setContentMd5(md5);
+				FanOutUploader.this.uploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+					@Override
+					public Void run() throws IOException {
+						PutObjectRequest request = new PutObjectRequest(target.destination.getBucket(), key);
+						request.setInput(throttle.limit(new ByteArrayInputStream(data)));
+						request.setMetadata(metadata);
+						throttle.acquireRequest();
+						target.obs.putObject(request);
+						return null;
+					}
+				}, key, target.progress);
+				FanOutUploader.this.headers.applyCacheControl(target.obs, target.destination.getBucket(), key, FanOutUploader.this.uploader, target.progress);
+				target.progress.addBytes(data.length);
+			}
+		});
+	}
+
+	private void uploadParts(List<Target> live, final Map<Target, String> keys, File file, long length) throws IOException, InterruptedException {
+		final long size = this.uploader.partSizeFor(length);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException(file + " needs parts larger than 2GB, which cannot be held in memory for several destinations");
+		}
+		final int partCount = (int) ((length + size - 1) / size);
+		final TransferThrottle throttle = this.uploader.getThrottle();
+		final RetryPolicy retry = this.uploader.getRetryPolicy();
+		final Map<Target, String> uploadIds = new ConcurrentHashMap<>();
+		final Map<Target, List<PartEtag>> partEtags = new ConcurrentHashMap<>();
+		// stops the parts still queued when reading the file fails
+		final AtomicBoolean aborted = new AtomicBoolean();
+		boolean sent = false;
+		try {
+			this.fanOut(live, new Send() {
+				@Override
+				public void send(Target target) throws IOException, InterruptedException {
+					final String key = keys.get(target);
+					final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(target.destination.getBucket(), key);
+					request.setMetadata(FanOutUploader.this.headers.toMetadata(key));
+					final ObsClient obs = target.obs;
+					uploadIds.put(target, retry.call(new RetryPolicy.Attempt<String>() {
+						@Override
+						public String run() throws IOException {
+							throttle.acquireRequest();
+							return obs.initiateMultipartUpload(request).getUploadId();
+						}
+					}, "initiating upload of " + key, target.progress));
+					partEtags.put(target, Collections.synchronizedList(new ArrayList<PartEtag>(partCount)));
+				}
+			});
+
+			List<Future<Void>> parts = new ArrayList<>();
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				for (int i = 0; i < partCount; i++) {
+					List<Target> receivers = this.live(uploadIds);
+					if (receivers.isEmpty()) {
+						break;
+					}
+					final int partNumber = i + 1;
+					final int partLength = (int) Math.min(size, length - i * size);
+					// waits while parallelism chunks are still being sent
+					final byte[] chunk = this.readChunk(in, file, partLength);
+					final String md5 = Checksums.contentMd5(chunk, 0, partLength);
+					parts.addAll(this.submit(receivers, aborted, new Send() {
+						@Override
+						public void send(final Target target) throws IOException, InterruptedException {
+							final String key = keys.get(target);
+							UploadPartResult result = retry.call(new RetryPolicy.Attempt<UploadPartResult>() {
+								@Override
+								public UploadPartResult run() throws IOException {
+									UploadPartRequest request = new UploadPartRequest(target.destination.getBucket(), key);
+									request.setUploadId(uploadIds.get(target));
+									request.setPartNumber(partNumber);
+									request.setInput(throttle.limit(new ByteArrayInputStream(chunk, 0, partLength)));
+									request.setPartSize((long) partLength);
+									request.setContentMd5(md5);
+									throttle.acquireRequest();
+									return target.obs.uploadPart(request);
+								}
+							}, key + " part " + partNumber, target.progress);
+							partEtags.get(target).add(new PartEtag(result.getEtag(), result.getPartNumber()));
+							target.progress.addBytes(partLength);
+						}
+					}, new Runnable() {
+						@Override
+						public void run() {
+							FanOutUploader.this.buffers.release();
+							FanOutUploader.this.progress.addBytes(partLength);
+						}
+					}));
+				}
+			}
+			await(parts);
+			sent = true;
+
+			this.fanOut(this.live(uploadIds), new Send() {
+				@Override
+				public void send(Target target) throws IOException, InterruptedException {
+					final String key = keys.get(target);
+					List<PartEtag> etags = new ArrayList<>(partEtags.get(target));
+					// parts finish in any order, completing needs them in order
+					Collections.sort(etags, new Comparator<PartEtag>() {
+						@Override
+						public int compare(PartEtag a, PartEtag b) {
+							return Integer.compare(a.getPartNumber(), b.getPartNumber());
+						}
+					});
+					final CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest(
+						target.destination.getBucket(), key, uploadIds.get(target), etags);
+					final ObsClient obs = target.obs;
+					retry.call(new RetryPolicy.Attempt<Void>() {
+						@Override
+						public Void run() throws IOException {
+							throttle.acquireRequest();
+							obs.completeMultipartUpload(request);
+							return null;
+						}
+					}, "completing upload of " + key, target.progress);
+					uploadIds.remove(target);
+					FanOutUploader.this.headers.applyCacheControl(obs, target.destination.getBucket(), key, FanOutUploader.this.uploader, target.progress);
+				}
+			});
+		} finally {
+			if (!sent) {
+				aborted.set(true);
+			}
+			// uploads left here failed or were interrupted
+			for (Map.Entry<Target, String> upload : uploadIds.entrySet()) {
+				Target target = upload.getKey();
+				try {
+					target.obs.abortMultipartUpload(new AbortMultipartUploadRequest(target.destination.getBucket(), keys.get(target), upload.getValue()));
+				} catch (ObsException e) {
+					// the upload expires on its own if it cannot be aborted now
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a buffer permit and reads the next chunk of the file. The permit
+	 * is released by the caller once the chunk was sent everywhere.
+	 */
+	private byte[] readChunk(DataInputStream in, File file, int length) throws IOException, InterruptedException {
+		this.buffers.acquire();
+		try {
+			byte[] chunk = new byte[length];
+			in.readFully(chunk);
+			return chunk;
+		} catch (EOFException e) {
+			this.buffers.release();
+			throw new IOException(file + " was truncated while it was uploaded", e);
+		} catch (IOException | RuntimeException e) {
+			this.buffers.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the request for every target at the same time and waits for all of
+	 * them. A target whose request fails is marked as failed.
+	 */
+	private void fanOut(List<Target> receivers, Send send) throws IOException, InterruptedException {
+		await(this.submit(receivers, null, send, null));
+	}
+
+	/**
+	 * Starts the request for every target without waiting for it. A target
+	 * whose request fails is marked as failed, and targets that failed in
+	 * the meantime are skipped. {@code done} runs once all requests ended.
+	 */
+	private List<Future<Void>> submit(List<Target> receivers, final AtomicBoolean aborted, final Send send, final Runnable done) {
+		final AtomicInteger remaining = new AtomicInteger(receivers.size());
+		List<Future<Void>> futures = new ArrayList<>(receivers.size());
+		for (final Target target : receivers) {
+			futures.add(this.senders.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					try {
+						if (target.error == null && (aborted == null || !aborted.get())) {
+							send.send(target);
+						}
+					} catch (IOException | RuntimeException e) {
+						if (aborted == null || !aborted.get()) {
+							FanOutUploader.this.fail(target, e);
+						}
+					} finally {
+						if (remaining.decrementAndGet() == 0 && done != null) {
+							done.run();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		return futures;
+	}
+
+	private static void await(List<Future<Void>> futures) throws IOException, InterruptedException {
+		for (Future<Void> future : futures) {
+			MultipartUploader.getResult(future);
+		}
+	}
+
+	private void fail(Target target, Throwable cause) {
+		String error;
+		if (cause instanceof ObsException && Buckets.isMissing((ObsException) cause)) {
+			error = "Bucket " + target.destination.getBucket() + " does not exist";
+		} else if (cause instanceof ObsException && ((ObsException) cause).getResponseCode() > 0) {
+			ObsException e = (ObsException) cause;
+			error = e.getResponseCode() + " " + StringUtils.defaultString(e.getErrorCode(), e.getResponseStatus()) + ": " + e.getErrorMessage();
+		} else {
+			error = StringUtils.defaultIfEmpty(cause.getMessage(), cause.toString());
+		}
+		synchronized (target) {
+			if (target.error != null) {
+				return;
+			}
+			target.error = error;
+		}
+		PrintStream logger = this.progress.getLogger();
+		if (logger != null) {
+			logger.format("Upload to %s failed, continuing with the other destinations: %s%n", target.destination, error);
+		}
+	}
+
+	private List<Target> live() {
+		List<Target> live = new ArrayList<>(this.targets.size());
+		for (Target target : this.targets) {
+			if (target.error == null) {
+				live.add(target);
+			}
+		}
+		return live;
+	}
+
+	private List<Target> live(Map<Target, String> uploadIds) {
+		List<Target> live = new ArrayList<>(uploadIds.size());
+		for (Target target : this.live()) {
+			if (uploadIds.containsKey(target)) {
+				live.add(target);
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Stops the clocks and returns the outcome per destination, in the order
+	 * the destinations were given.
+	 */
+	List<Result> getResults() {
+		List<Result> results = new ArrayList<>(this.targets.size());
+		for (Target target : this.targets) {
+			target.progress.finish();
+			results.add(new Result(target.destination, target.progress, target.error));
+		}
+		return results;
+	}
+
+	void close() {
+		this.senders.shutdownNow();
+		this.releaseClients();
+	}
+
+	private void releaseClients() {
+		for (Target target : this.targets) {
+			OBSClientFactory.releaseHuaweiObsClient(target.obs);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.huawei.openstack4j.api.types.ServiceType;
+import com.huawei.openstack4j.openstack.fgs.v2.domain.FuncInvocations;
+import com.huawei.openstack4j.openstack.internal.BaseOpenStackService;
+
+/**
+ * Invokes FunctionGraph functions with any JSON event, where the openstack4j
+ * FunctionGraph service only takes a map. The event is written to the request
+ * body as it is serialized. Uses the session bound to the calling thread, see
+ * {@link OBSClientFactory#createOscClient}.
+ *
+ * <p>Synchronous invocations send {@code x-cff-request-version: v1}, as the
+ * openstack4j service does, so the response keeps the same format. Unlike
+ * that service they do not send {@code x-cff-log-type: tail}: FunctionGraph
+ * then leaves the function's log out of the response, which the steps never
+ * returned.
+ *
+ * <p>The response is not streamed: the result is read into a string, because
+ * the steps return it to the pipeline as a string.
+ */
+class FunctionInvocationService extends BaseOpenStackService {
+
+	static final String REQUEST_VERSION_HEADER = "x-cff-request-version";
+
+	FunctionInvocationService() {
+		super(ServiceType.FGS2_0);
+	}
+
+	FuncInvocations invoke(String functionUrn, JsonNode event) {
+		return this.post(FuncInvocations.class, this.uri("/fgs/functions/%s/invocations", functionUrn))
+			.header(REQUEST_VERSION_HEADER, "v1")
+			.entity(event)
+			.execute();
+	}
+
+	FuncInvocations invokeAsync(String functionUrn, JsonNode event) {
+		return this.post(FuncInvocations.class, this.uri("/fgs/functions/%s/invocations-async", functionUrn))
+			.entity(event)
+			.execute();
+	}
+}
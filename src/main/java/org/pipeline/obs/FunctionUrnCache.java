@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
+import com.huawei.openstack4j.openstack.fgs.v2.domain.FunctionMetadata;
+import com.huawei.openstack4j.openstack.internal.OSClientSessionAKSK;
+
+/**
+ * Caches the function name to URN index of a project, so invoking a function
+ * does not list every function of the account each time.
+ */
+final class FunctionUrnCache {
+
+	static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+		Long.getLong(FunctionUrnCache.class.getName() + ".ttlMinutes", 10));
+
+	private static final int PAGE_SIZE = 400;
+
+	private static final ConcurrentMap<String, Index> INDEXES = new ConcurrentHashMap<>();
+
+	private static final class Index {
+		private final Map<String, String> urns;
+		private final long expiresAt;
+
+		Index(Map<String, String> urns) {
+			this.urns = urns;
+			this.expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+		}
+	}
+
+	private FunctionUrnCache() {
+		//
+	}
+
+	/**
+	 * Returns the URN of the named function, or null if the project has no
+	 * such function. A cached index that misses the name is reloaded once, in
+	 * case the function was created after the index was built.
+	 */
+	static String resolve(OSClientAKSK client, String projectKey, String functionName) {
+		Index index = INDEXES.get(projectKey);
+		boolean fresh = false;
+		if (index == null || System.currentTimeMillis() >= index.expiresAt) {
+			index = load(client, projectKey);
+			fresh = true;
+		}
+		String urn = index.urns.get(functionName);
+		if (urn == null && !fresh) {
+			urn = load(client, projectKey).urns.get(functionName);
+		}
+		return urn;
+	}
+
+	static void invalidate(String projectKey) {
+		INDEXES.remove(projectKey);
+	}
+
+	private static Index load(OSClientAKSK client, String projectKey) {
+		long started = System.nanoTime();
+		Map<String, String> urns = new HashMap<>();
+		// listFunction parses both as numbers, so the first page needs marker 0
+		Map<String, String> params = new HashMap<>();
+		params.put("marker", "0");
+		params.put("maxItems", String.valueOf(PAGE_SIZE));
+		String marker = "0";
+		while (true) {
+			FunctionMetadata.Functions functions = client.functionGraphV2().function().listFunction(params);
+			List<FunctionMetadata> functionList = functions.getList();
+			for (FunctionMetadata fd : functionList) {
+				urns.put(fd.getFuncName(), fd.getFuncUrn());
+			}
+			String nextMarker = functions.getNextMarker();
+			if (functionList.size() < PAGE_SIZE || StringUtils.isEmpty(nextMarker) || nextMarker.equals(marker)) {
+				break;
+			}
+			marker = nextMarker;
+			params.put("marker", marker);
+		}
+		StepMetrics.recordLookup(((OSClientSessionAKSK) client).getRegion(), System.nanoTime() - started);
+		Index index = new Index(urns);
+		INDEXES.put(projectKey, index);
+		return index;
+	}
+}
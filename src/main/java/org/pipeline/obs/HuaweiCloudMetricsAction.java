@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.pipeline.obs.utils.SizeUtils;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+/**
+ * Sums up the OBS transfers and FunctionGraph invocations of a build, one
+ * row per step, target and region, shown on the build page.
+ */
+public class HuaweiCloudMetricsAction extends InvisibleAction {
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	/**
+	 * Returns the action of the build, adding it on first use.
+	 */
+	static HuaweiCloudMetricsAction of(Run<?, ?> run) {
+		synchronized (HuaweiCloudMetricsAction.class) {
+			HuaweiCloudMetricsAction action = run.getAction(HuaweiCloudMetricsAction.class);
+			if (action == null) {
+				action = new HuaweiCloudMetricsAction();
+				run.addAction(action);
+			}
+			return action;
+		}
+	}
+
+	synchronized void add(String step, String target, String region, long count, long bytes, long duration, long failed, RequestStats stats) {
+		Entry entry = null;
+		for (Entry existing : this.entries) {
+			if (existing.step.equals(step) && existing.target.equals(target) && Objects.equals(existing.region, region)) {
+				entry = existing;
+				break;
+			}
+		}
+		if (entry == null) {
+			entry = new Entry(step, target, region);
+			this.entries.add(entry);
+		}
+		entry.count += count;
+		entry.bytes += bytes;
+		entry.duration += duration;
+		entry.failed += failed;
+		entry.requests += stats.getRequests();
+		entry.retries += stats.getRetries();
+		entry.latency += stats.getTotalLatency() / 1000000;
+	}
+
+	public synchronized List<Entry> getEntries() {
+		List<Entry> copy = new ArrayList<>(this.entries.size());
+		for (Entry entry : this.entries) {
+			copy.add(entry.copy());
+		}
+		return copy;
+	}
+
+	/**
+	 * The totals of one step, target and region.
+	 */
+	public static class Entry {
+		private final String step;
+		private final String target;
+		private final String region;
+		private long count;
+		private long bytes;
+		private long duration;
+		private long failed;
+		private long requests;
+		private long retries;
+		private long latency;
+
+		Entry(String step, String target, String region) {
+			this.step = step;
+			this.target = target;
+			this.region = region;
+		}
+
+		Entry copy() {
+			Entry copy = new Entry(this.step, this.target, this.region);
+			copy.count = this.count;
+			copy.bytes = this.bytes;
+			copy.duration = this.duration;
+			copy.failed = this.failed;
+			copy.requests = this.requests;
+			copy.retries = this.retries;
+			copy.latency = this.latency;
+			return copy;
+		}
+
+		public String getStep() {
+			return this.step;
+		}
+
+		/**
+		 * Returns the bucket as {@code obs://bucket}, or the function name.
+		 */
+		public String getTarget() {
+			return this.target;
+		}
+
+		public String getRegion() {
+			return this.region;
+		}
+
+		/**
+		 * Returns the number of objects transferred or invocations made.
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * Returns the summed duration of the steps in milliseconds.
+		 */
+		public long getDuration() {
+			return this.duration;
+		}
+
+		/**
+		 * Returns the number of failed invocations.
+		 */
+		public long getFailed() {
+			return this.failed;
+		}
+
+		public long getRequests() {
+			return this.requests;
+		}
+
+		public long getRetries() {
+			return this.retries;
+		}
+
+		/**
+		 * Returns the average request latency in milliseconds.
+		 */
+		public long getAverageLatency() {
+			return this.requests > 0 ? this.latency / this.requests : 0;
+		}
+
+		/**
+		 * Returns e.g. "1.20 GB (34.9 MB/s)", or an empty string if no bytes
+		 * were counted.
+		 */
+		public String getTransferred() {
+			if (this.bytes == 0) {
+				return "";
+			}
+			long rate = this.duration > 0 ? this.bytes * 1000 / this.duration : 0;
+			return SizeUtils.format(this.bytes) + " (" + SizeUtils.format(rate) + "/s)";
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Preconditions;
+
+import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
+import com.huawei.openstack4j.openstack.fgs.v2.domain.FuncInvocations;
+import com.huawei.openstack4j.openstack.internal.OSClientSession;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import org.pipeline.obs.utils.StepUtils;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Invokes one function once per payload, with up to {@code concurrency}
+ * invocations in flight. The client and the function URN are resolved once
+ * for the whole batch.
+ * <p>
+ * Returns one map per payload, in input order, with {@code success} and
+ * either {@code result} (the request ID in async mode) or {@code error}.
+ * A failed invocation does not fail the step.
+ */
+public class InvokeFunctionBatchStep extends Step {
+
+	static final int DEFAULT_CONCURRENCY = 4;
+
+	private final String functionName;
+	private String functionUrn;
+	private List<Object> payloads;
+	private int concurrency = DEFAULT_CONCURRENCY;
+	private boolean async = false;
+
+	@DataBoundConstructor
+	public InvokeFunctionBatchStep(String functionName) {
+		this.functionName = functionName;
+	}
+
+	public String getFunctionName() {
+		return this.functionName;
+	}
+
+	public String getFunctionUrn() {
+		return this.functionUrn;
+	}
+
+	@DataBoundSetter
+	public void setFunctionUrn(String functionUrn) {
+		this.functionUrn = functionUrn;
+	}
+
+	public List<Object> getPayloads() {
+		return this.payloads;
+	}
+
+	@DataBoundSetter
+	public void setPayloads(List<Object> payloads) {
+		this.payloads = payloads;
+	}
+
+	public int getConcurrency() {
+		return this.concurrency;
+	}
+
+	@DataBoundSetter
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public boolean isAsync() {
+		return this.async;
+	}
+
+	@DataBoundSetter
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new InvokeFunctionBatchStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requiresDefault();
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "invokeFunctionBatch";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Invoke a given function once per payload";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<List<Map<String, Object>>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient InvokeFunctionBatchStep step;
+
+		public Execution(InvokeFunctionBatchStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		protected List<Map<String, Object>> run() throws Exception {
+			List<Object> payloads = this.step.getPayloads();
+			Preconditions.checkArgument(payloads != null, "Payloads must not be null");
+			Preconditions.checkArgument(this.step.getConcurrency() > 0, "Concurrency must be greater than 0");
+			if (payloads.isEmpty()) {
+				return Collections.emptyList();
+			}
+
+			TaskListener listener = this.getContext().get(TaskListener.class);
+			final OSClientAKSK osclient = OBSClientFactory.createOscClient(this.getContext());
+			String projectKey = OBSClientFactory.getProjectKey(this.getContext());
+			final String urn = InvokeFunctionStep.resolveFunctionUrn(osclient, projectKey,
+				this.step.getFunctionName(), this.step.getFunctionUrn(), listener);
+			final boolean async = this.step.isAsync();
+			final RetryPolicy retryPolicy = RetryPolicy.of(this.getContext().get(EnvVars.class));
+			final PrintStream logger = listener.getLogger();
+			final RequestStats stats = new RequestStats();
+			final FunctionInvocationService functions = new FunctionInvocationService();
+			long started = System.nanoTime();
+			int threads = Math.min(this.step.getConcurrency(), payloads.size());
+			listener.getLogger().format("Invoke function %s with %d payloads, concurrency %d%n",
+				urn, payloads.size(), threads);
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new NamingThreadFactory(new DaemonThreadFactory(), "invokeFunctionBatch-" + urn));
+			List<Map<String, Object>> results = new ArrayList<>(payloads.size());
+			int failed = 0;
+			try {
+				List<Future<Map<String, Object>>> futures = new ArrayList<>(payloads.size());
+				for (final Object payload : payloads) {
+					futures.add(executor.submit(new Callable<Map<String, Object>>() {
+						@Override
+						public Map<String, Object> call() {
+							Map<String, Object> result = new LinkedHashMap<>();
+							try {
+								// an invalid payload only fails its own entry
+								final JsonNode event = InvokeFunctionStep.toEvent(payload);
+								// openstack4j keeps the session in a thread local
+								OSClientSession.setCurrent((OSClientSession) osclient);
+								FuncInvocations returnMsg = retryPolicy.callIfRejected(new RetryPolicy.Attempt<FuncInvocations>() {
+									@Override
+									public FuncInvocations run() {
+										return async ? functions.invokeAsync(urn, event) : functions.invoke(urn, event);
+									}
+								}, "invocation of " + urn, logger, stats);
+								if (returnMsg == null) {
+									throw new RuntimeException("Invoke function failed!");
+								}
+								result.put("result", async ? returnMsg.getRequestId() : returnMsg.getResult());
+								result.put("success", true);
+							} catch (Exception e) {
+								// caught here because an ExecutionException would call toString() of the
+								// openstack4j exceptions, which needs a newer Guava than Jenkins provides
+								result.put("success", false);
+								result.put("error", RetryPolicy.describe(e));
+							}
+							return result;
+						}
+					}));
+				}
+				for (Future<Map<String, Object>> future : futures) {
+					Map<String, Object> result = future.get();
+					if (!Boolean.TRUE.equals(result.get("success"))) {
+						failed++;
+					}
+					results.add(result);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			StepMetrics.recordInvocations(this.getContext(), "invokeFunctionBatch", this.step.getFunctionName(), urn,
+				payloads.size(), failed, System.nanoTime() - started, stats);
+
+			if (failed > 0) {
+				// the function or the credentials may have changed, look them up again next time
+				FunctionUrnCache.invalidate(projectKey);
+				OBSClientFactory.invalidateOscClient(this.getContext());
+			}
+			listener.getLogger().format("Invoke function complete, %d succeeded, %d failed%n",
+				payloads.size() - failed, failed);
+			return results;
+		}
+	}
+}
@@ -15,19 +15,16 @@
 
 package org.pipeline.obs;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Set;
-import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.google.common.base.Preconditions;
 
 import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
-import com.huawei.openstack4j.openstack.fgs.v2.domain.FunctionMetadata;
 import com.huawei.openstack4j.openstack.fgs.v2.domain.FuncInvocations;
-import com.huawei.openstack4j.openstack.fgs.v2.internal.FunctionV2Service;
 
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
@@ -39,6 +36,7 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import org.pipeline.obs.utils.JsonUtils;
 import org.pipeline.obs.utils.StepUtils;
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.model.TaskListener;
 
@@ -47,7 +45,9 @@ public class InvokeFunctionStep extends Step {
 	private Object payload;
 	private String payloadAsString;
 	private boolean returnValueAsString = false;
+	private boolean async = false;
 	private final String functionName;
+	private String functionUrn;
 
 	@DataBoundConstructor
 	public InvokeFunctionStep(String functionName) {
@@ -58,6 +58,15 @@ public class InvokeFunctionStep extends Step {
 		return this.functionName;
 	}
 
+	public String getFunctionUrn() {
+		return this.functionUrn;
+	}
+
+	@DataBoundSetter
+	public void setFunctionUrn(String functionUrn) {
+		this.functionUrn = functionUrn;
+	}
+
 	public Object getPayload() {
 		return this.payload;
 	}
@@ -88,6 +97,15 @@ public class InvokeFunctionStep extends Step {
 		this.returnValueAsString = returnValueAsString;
 	}
 
+	public boolean isAsync() {
+		return this.async;
+	}
+
+	@DataBoundSetter
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new InvokeFunctionStep.Execution(this, context);
@@ -112,6 +130,39 @@ public class InvokeFunctionStep extends Step {
 		}
 	}
 
+	/**
+	 * Returns the given URN, or looks up the URN of the named function.
+	 */
+	static String resolveFunctionUrn(OSClientAKSK osclient, String projectKey, String functionName, String functionUrn, TaskListener listener) {
+		Preconditions.checkArgument(StringUtils.isNotEmpty(functionName) || StringUtils.isNotEmpty(functionUrn),
+			"FunctionName or FunctionUrn must not be null or empty");
+		if (StringUtils.isNotEmpty(functionUrn)) {
+			return functionUrn;
+		}
+		String urn = FunctionUrnCache.resolve(osclient, projectKey, functionName);
+		if (urn == null) {
+			throw new RuntimeException("Invoke function failed! " +
+				"functionName=" + functionName);
+		}
+		listener.getLogger().format("Resolved functionUrn=%s%n", urn);
+		return urn;
+	}
+
+	/**
+	 * Returns the function event for a payload: JSON text is parsed, maps,
+	 * lists and other values are converted directly, and no payload is an
+	 * empty object.
+	 */
+	static JsonNode toEvent(Object payload) {
+		if (payload == null || payload instanceof String && StringUtils.isBlank((String) payload)) {
+			return JsonNodeFactory.instance.objectNode();
+		}
+		if (payload instanceof String) {
+			return JsonUtils.parse((String) payload);
+		}
+		return JsonUtils.toJsonNode(payload);
+	}
+
 	public static class Execution extends SynchronousNonBlockingStepExecution<Object> {
 
 		private static final long serialVersionUID = 1L;
@@ -126,48 +177,49 @@ public class InvokeFunctionStep extends Step {
 		@Override
 		protected Object run() throws Exception {
 			TaskListener listener = this.getContext().get(TaskListener.class);
-			OSClientAKSK osclient =
-				OBSClientFactory.createOscClient(this.getContext());
 			String functionName = this.step.getFunctionName();
-			listener.getLogger().format("Invoke function %s%n", functionName);
-
-			String functionUrn = "";
 
-			FunctionMetadata.Functions functions = osclient.functionGraphV2().function().listFunction();
-			List<FunctionMetadata> functionList = functions.getList();
-			if (0 != functionList.size()) {
-				for (FunctionMetadata fd : functionList) {
-					if (functionName.equals(fd.getFuncName())) {
-						functionUrn = fd.getFuncUrn();
-						break;
+			final OSClientAKSK osclient =
+				OBSClientFactory.createOscClient(this.getContext());
+			String projectKey = OBSClientFactory.getProjectKey(this.getContext());
+			listener.getLogger().format("Invoke function %s%n",
+				StringUtils.isEmpty(this.step.getFunctionUrn()) ? functionName : this.step.getFunctionUrn());
+			final String functionUrn = resolveFunctionUrn(osclient, projectKey, functionName, this.step.getFunctionUrn(), listener);
+
+			final JsonNode event = toEvent(this.step.getPayload() != null ? this.step.getPayload() : this.step.payloadAsString);
+			final boolean async = this.step.isAsync();
+			final FunctionInvocationService functions = new FunctionInvocationService();
+
+			FuncInvocations returnMsg;
+			RequestStats stats = new RequestStats();
+			long started = System.nanoTime();
+			boolean failed = true;
+			try {
+				// an invocation that reached the function must not run twice
+				returnMsg = RetryPolicy.of(this.getContext().get(EnvVars.class)).callIfRejected(new RetryPolicy.Attempt<FuncInvocations>() {
+					@Override
+					public FuncInvocations run() {
+						if (async) {
+							return functions.invokeAsync(functionUrn, event);
+						}
+						//Synchronous execution function
+						return functions.invoke(functionUrn, event);
 					}
-				}
-				listener.getLogger().format("Get functionlist success " +
-					"functionUrn=%s!%n", functionUrn);
-			}else {
-				listener.getLogger().format("Get functionlist failed!%n");
-			}
-
-			if (functionUrn == "") {
-				throw new RuntimeException("Invoke function failed! " +
-					"functionName=" + functionName);
+				}, "invocation of " + functionUrn, listener.getLogger(), stats);
+				failed = returnMsg == null;
+			} catch (RuntimeException e) {
+				// the function or the credentials may have changed, look them up again next time
+				FunctionUrnCache.invalidate(projectKey);
+				OBSClientFactory.invalidateOscClient(this.getContext());
+				throw e;
+			} finally {
+				StepMetrics.recordInvocations(this.getContext(), "invokeFunction", functionName, functionUrn,
+					1, failed ? 1 : 0, System.nanoTime() - started, stats);
 			}
-
-			Map<String, String> map = new HashMap<String, String>();
-			ObjectMapper mapper = new ObjectMapper();
-
-			try{
-				map = mapper.readValue(this.step.getPayloadAsString(), new TypeReference<HashMap<String,
-					String>>(){});
-			}catch(Exception e){
-				e.printStackTrace();
-			}
-
-			//Synchronous execution function
-			FuncInvocations returnMsg =
-				osclient.functionGraphV2().function().invokeFunction(functionUrn,
-					map);
-			if (null != returnMsg) {
+			if (null != returnMsg && this.step.isAsync()) {
+				listener.getLogger().format("Invoke function submitted, requestId=%s%n", returnMsg.getRequestId());
+				return returnMsg.getRequestId();
+			} else if (null != returnMsg) {
 				listener.getLogger().format("Invoke function success!%n");
 				return returnMsg.getResult();
 			}else {
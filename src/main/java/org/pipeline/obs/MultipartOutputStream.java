@@ -0,0 +1,309 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.AbortMultipartUploadRequest;
+import com.obs.services.model.CompleteMultipartUploadRequest;
+import com.obs.services.model.InitiateMultipartUploadRequest;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.PartEtag;
+import com.obs.services.model.PutObjectRequest;
+import com.obs.services.model.UploadPartRequest;
+import com.obs.services.model.UploadPartResult;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Writes a stream of unknown length to an OBS object. The data is buffered
+ * in parts of a fixed size, and each full part is uploaded in the background
+ * while the next one is written, with at most {@code parallelism} parts in
+ * flight. Data that fits into one part is sent with a single PUT. Every
+ * request carries the MD5 of its body, so OBS rejects corrupted parts, and
+ * a failed part is retried from its buffer.
+ * <p>
+ * The buffer starts small and grows with the data, so a small object never
+ * holds a whole part in memory, and the threads for the parts are only
+ * started once the data outgrows one part. Buffers of uploaded parts are
+ * reused for the following ones.
+ * <p>
+ * {@link #close()} completes the upload; call {@link #abort()} instead when
+ * producing the data failed.
+ */
+class MultipartOutputStream extends OutputStream {
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final ObsClient obs;
+	private final String bucket;
+	private final String key;
+	private final ObjectMetadata metadata;
+	private final int partSize;
+	private final TransferThrottle throttle;
+	private final RetryPolicy retryPolicy;
+	private final TransferProgress progress;
+	private final int parallelism;
+	private final Semaphore inFlight;
+	private final List<Future<PartEtag>> parts = new ArrayList<>();
+	private final Queue<byte[]> released = new ConcurrentLinkedQueue<>();
+
+	private ExecutorService executor;
+
+	private byte[] buffer;
+	private int count;
+	private String uploadId;
+	private long length;
+	private boolean closed;
+
+	MultipartOutputStream(ObsClient obs, String bucket, String key, ObjectMetadata metadata, MultipartUploader multipartUploader, TransferProgress progress) {
+		long partSize = multipartUploader.getPartSize();
+		int parallelism = multipartUploader.getParallelism();
+		if (partSize < MultipartUploader.MIN_PART_SIZE || partSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Part size must be between 100KB and 2GB for streamed uploads");
+		}
+		this.obs = obs;
+		this.bucket = bucket;
+		this.key = key;
+		this.metadata = metadata != null ? metadata : new ObjectMetadata();
+		this.partSize = (int) partSize;
+		this.throttle = multipartUploader.getThrottle();
+		this.retryPolicy = multipartUploader.getRetryPolicy();
+		this.progress = progress;
+		this.parallelism = parallelism;
+		this.inFlight = new Semaphore(parallelism);
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	long getLength() {
+		return this.length;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, this.partSize - this.count);
+			this.reserve(this.count + n);
+			System.arraycopy(b, off, this.buffer, this.count, n);
+			this.count += n;
+			this.length += n;
+			off += n;
+			len -= n;
+			if (this.count == this.partSize) {
+				this.uploadPart();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		boolean completed = false;
+		try {
+			if (this.uploadId == null) {
+				final byte[] data = this.buffer != null ? this.buffer : new byte[0];
+				this.metadata.setContentLength((long) this.count);
+				this.metadata.setContentMd5(Checksums.contentMd5(data, 0, this.count));
+				this.retryPolicy.call(new RetryPolicy.Attempt<Void>() {
+					@Override
+					public Void run() throws IOException {
+						MultipartOutputStream stream = MultipartOutputStream.this;
+						PutObjectRequest request = new PutObjectRequest(stream.bucket, stream.key);
+						request.setInput(stream.throttle.limit(new ByteArrayInputStream(data, 0, stream.count)));
+						request.setMetadata(stream.metadata);
+						stream.throttle.acquireRequest();
+						stream.obs.putObject(request);
+						return null;
+					}
+				}, this.key, this.progress);
+				this.progress.addBytes(this.count);
+			} else {
+				if (this.count > 0) {
+					this.uploadPart();
+				}
+				List<PartEtag> partEtags = new ArrayList<>(this.parts.size());
+				for (Future<PartEtag> part : this.parts) {
+					partEtags.add(MultipartUploader.getResult(part));
+				}
+				final CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest(this.bucket, this.key, this.uploadId, partEtags);
+				this.retryPolicy.call(new RetryPolicy.Attempt<Void>() {
+					@Override
+					public Void run() throws IOException {
+						MultipartOutputStream.this.throttle.acquireRequest();
+						MultipartOutputStream.this.obs.completeMultipartUpload(request);
+						return null;
+					}
+				}, "completing upload of " + this.key, this.progress);
+			}
+			completed = true;
+		} catch (InterruptedException e) {
+			throw (IOException) new InterruptedIOException().initCause(e);
+		} finally {
+			this.shutdown();
+			if (!completed) {
+				this.abortUpload();
+			}
+		}
+	}
+
+	/**
+	 * Discards everything written so far.
+	 */
+	void abort() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.shutdown();
+		this.abortUpload();
+	}
+
+	private void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+		this.buffer = null;
+		this.released.clear();
+	}
+
+	/**
+	 * Makes room for at least {@code capacity} bytes, keeping what was written.
+	 */
+	private void reserve(int capacity) {
+		if (this.buffer != null && this.buffer.length >= capacity) {
+			return;
+		}
+		byte[] grown = this.released.poll();
+		if (grown == null) {
+			// once the data outgrew a part, every further buffer holds a whole part
+			int size = this.uploadId != null ? this.partSize
+				: Math.min(this.partSize, Math.max(capacity, this.buffer != null ? this.buffer.length * 2 : INITIAL_BUFFER_SIZE));
+			grown = new byte[size];
+		}
+		if (this.count > 0) {
+			System.arraycopy(this.buffer, 0, grown, 0, this.count);
+		}
+		this.buffer = grown;
+	}
+
+	private void uploadPart() throws IOException {
+		if (this.parts.size() >= MultipartUploader.MAX_PART_COUNT) {
+			throw new IOException("Stream exceeds " + MultipartUploader.MAX_PART_COUNT + " parts, increase the part size");
+		}
+		for (Future<PartEtag> part : this.parts) {
+			// fail early instead of streaming the rest of the data
+			if (part.isDone()) {
+				try {
+					MultipartUploader.getResult(part);
+				} catch (InterruptedException e) {
+					throw (IOException) new InterruptedIOException().initCause(e);
+				}
+			}
+		}
+		try {
+			if (this.uploadId == null) {
+				final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucket, this.key);
+				request.setMetadata(this.metadata);
+				this.uploadId = this.retryPolicy.call(new RetryPolicy.Attempt<String>() {
+					@Override
+					public String run() throws IOException {
+						MultipartOutputStream.this.throttle.acquireRequest();
+						return MultipartOutputStream.this.obs.initiateMultipartUpload(request).getUploadId();
+					}
+				}, "initiating upload of " + this.key, this.progress);
+			}
+			this.inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw (IOException) new InterruptedIOException().initCause(e);
+		}
+
+		final byte[] data = this.buffer;
+		final int size = this.count;
+		final int partNumber = this.parts.size() + 1;
+		final String id = this.uploadId;
+		if (this.executor == null) {
+			this.executor = Executors.newFixedThreadPool(this.parallelism,
+				new NamingThreadFactory(new DaemonThreadFactory(), "obsUpload-" + this.key));
+		}
+		this.parts.add(this.executor.submit(new Callable<PartEtag>() {
+			@Override
+			public PartEtag call() throws IOException, InterruptedException {
+				try {
+					final String md5 = Checksums.contentMd5(data, 0, size);
+					UploadPartResult result = MultipartOutputStream.this.retryPolicy.call(new RetryPolicy.Attempt<UploadPartResult>() {
+						@Override
+						public UploadPartResult run() throws IOException {
+							MultipartOutputStream stream = MultipartOutputStream.this;
+							UploadPartRequest request = new UploadPartRequest(stream.bucket, stream.key);
+							request.setUploadId(id);
+							request.setPartNumber(partNumber);
+							request.setInput(stream.throttle.limit(new ByteArrayInputStream(data, 0, size)));
+							request.setPartSize((long) size);
+							request.setContentMd5(md5);
+							stream.throttle.acquireRequest();
+							return stream.obs.uploadPart(request);
+						}
+					}, MultipartOutputStream.this.key + " part " + partNumber, MultipartOutputStream.this.progress);
+					MultipartOutputStream.this.progress.addBytes(size);
+					return new PartEtag(result.getEtag(), result.getPartNumber());
+				} finally {
+					if (data.length == MultipartOutputStream.this.partSize) {
+						MultipartOutputStream.this.released.offer(data);
+					}
+					MultipartOutputStream.this.inFlight.release();
+				}
+			}
+		}));
+		// the next write takes a released buffer or allocates one, nothing is allocated for the last part
+		this.buffer = null;
+		this.count = 0;
+	}
+
+	private void abortUpload() {
+		if (this.uploadId == null) {
+			return;
+		}
+		try {
+			this.obs.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, this.uploadId));
+		} catch (ObsException e) {
+			// the upload expires on its own if it cannot be aborted now
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.AbortMultipartUploadRequest;
+import com.obs.services.model.CompleteMultipartUploadRequest;
+import com.obs.services.model.InitiateMultipartUploadRequest;
+import com.obs.services.model.ListPartsRequest;
+import com.obs.services.model.ListPartsResult;
+import com.obs.services.model.Multipart;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.PartEtag;
+import com.obs.services.model.UploadPartRequest;
+import com.obs.services.model.UploadPartResult;
+
+import org.pipeline.obs.utils.SizeUtils;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Uploads a single file to OBS, splitting it into parts that are sent
+ * concurrently when the file is larger than the multipart threshold.
+ * Runs on the agent; each worker reads its own region of the file.
+ */
+public class MultipartUploader implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long DEFAULT_PART_SIZE = 16 * SizeUtils.MB;
+	static final long DEFAULT_MULTIPART_THRESHOLD = 64 * SizeUtils.MB;
+	static final int DEFAULT_PARALLELISM = 4;
+
+	// OBS limits for a single multipart upload
+	static final long MIN_PART_SIZE = 100 * SizeUtils.KB;
+	static final long MAX_PART_SIZE = 5 * SizeUtils.GB;
+	static final int MAX_PART_COUNT = 10000;
+
+	private final long partSize;
+	private final long multipartThreshold;
+	private final int parallelism;
+	private final TransferThrottle throttle;
+	private final RetryPolicy retryPolicy;
+
+	public MultipartUploader(long partSize, long multipartThreshold, int parallelism) {
+		this(partSize, multipartThreshold, parallelism, TransferThrottle.NONE, RetryPolicy.DEFAULT);
+	}
+
+	MultipartUploader(long partSize, long multipartThreshold, int parallelism, TransferThrottle throttle, RetryPolicy retryPolicy) {
+		if (partSize < MIN_PART_SIZE || partSize > MAX_PART_SIZE) {
+			throw new IllegalArgumentException("Part size must be between 100KB and 5GB");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be greater than 0");
+		}
+		this.partSize = partSize;
+		this.multipartThreshold = multipartThreshold;
+		this.parallelism = parallelism;
+		this.throttle = throttle;
+		this.retryPolicy = retryPolicy;
+	}
+
+	public long getPartSize() {
+		return this.partSize;
+	}
+
+	public long getMultipartThreshold() {
+		return this.multipartThreshold;
+	}
+
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	TransferThrottle getThrottle() {
+		return this.throttle;
+	}
+
+	RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	public boolean isMultipart(long length) {
+		return length >= this.multipartThreshold && length > this.partSize;
+	}
+
+	/**
+	 * Returns the part size to use for a file of the given length, growing it
+	 * when the configured size would exceed the maximum part count.
+	 */
+	long partSizeFor(long length) {
+		long size = this.partSize;
+		while ((length + size - 1) / size > MAX_PART_COUNT) {
+			size *= 2;
+		}
+		return size;
+	}
+
+	public void upload(ObsClient obs, String bucket, String key, File file, PrintStream logger) throws IOException, InterruptedException {
+		this.upload(obs, bucket, key, file, null, null, new TransferProgress(logger, logger != null, 1));
+	}
+
+	/**
+	 * Uploads the file in parts. When a checkpoint directory is given, the
+	 * uploaded parts are recorded there and an interrupted upload of the same
+	 * unchanged file is resumed instead of restarted. Each part is hashed while
+	 * it is sent and checked against the ETag OBS returns for it; a failed part
+	 * is retried on its own according to the retry policy. Finished parts are
+	 * added to the progress.
+	 */
+	public void upload(final ObsClient obs, final String bucket, final String key, final File file, ObjectMetadata metadata, File checkpointDir, final TransferProgress progress) throws IOException, InterruptedException {
+		final PrintStream logger = progress.getLogger();
+		PrintStream verboseLogger = progress.getVerboseLogger();
+		final long length = file.length();
+		final long size = this.partSizeFor(length);
+		final int partCount = (int) ((length + size - 1) / size);
+
+		UploadCheckpoint checkpoint = null;
+		File checkpointFile = null;
+		if (checkpointDir != null) {
+			checkpointFile = UploadCheckpoint.locate(checkpointDir, bucket, key, file);
+			checkpoint = UploadCheckpoint.load(checkpointFile);
+			if (checkpoint != null && !(checkpoint.matches(bucket, key, file, size) && this.verify(obs, checkpoint))) {
+				checkpoint.delete();
+				checkpoint = null;
+			}
+		}
+
+		final String uploadId;
+		if (checkpoint != null) {
+			uploadId = checkpoint.getUploadId();
+			if (verboseLogger != null) {
+				verboseLogger.format("...Resuming multipart upload of %s, %d/%d parts already uploaded%n",
+					file.getName(), checkpoint.getPartCount(), partCount);
+			}
+		} else {
+			final InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key);
+			initRequest.setMetadata(metadata);
+			uploadId = this.retryPolicy.call(new RetryPolicy.Attempt<String>() {
+				@Override
+				public String run() throws IOException {
+					MultipartUploader.this.throttle.acquireRequest();
+					return obs.initiateMultipartUpload(initRequest).getUploadId();
+				}
+			}, "initiating upload of " + key, progress);
+			if (checkpointFile != null) {
+				checkpoint = new UploadCheckpoint(checkpointFile, bucket, key, file, size, uploadId);
+				checkpoint.save();
+			}
+			if (verboseLogger != null) {
+				verboseLogger.format("...Multipart upload of %s in %d parts of %d bytes, parallelism %d%n",
+					file.getName(), partCount, size, Math.min(this.parallelism, partCount));
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, partCount),
+			new NamingThreadFactory(new DaemonThreadFactory(), "obsUpload-" + file.getName()));
+		boolean completed = false;
+		try {
+			final UploadCheckpoint partCheckpoint = checkpoint;
+			List<Future<PartEtag>> futures = new ArrayList<>(partCount);
+			for (int i = 0; i < partCount; i++) {
+				final int partNumber = i + 1;
+				if (partCheckpoint != null && partCheckpoint.hasPart(partNumber)) {
+					continue;
+				}
+				final long offset = i * size;
+				final long partLength = Math.min(size, length - offset);
+				futures.add(executor.submit(new Callable<PartEtag>() {
+					@Override
+					public PartEtag call() throws IOException, InterruptedException {
+						UploadPartResult result = MultipartUploader.this.retryPolicy.call(new RetryPolicy.Attempt<UploadPartResult>() {
+							@Override
+							public UploadPartResult run() throws IOException {
+								UploadPartRequest request = new UploadPartRequest(bucket, key);
+								request.setUploadId(uploadId);
+								request.setPartNumber(partNumber);
+								request.setPartSize(partLength);
+								MessageDigest digest = Checksums.md5();
+								UploadPartResult result;
+								try (FileInputStream in = new FileInputStream(file)) {
+									in.getChannel().position(offset);
+									request.setInput(MultipartUploader.this.throttle.limit(new DigestInputStream(in, digest)));
+									MultipartUploader.this.throttle.acquireRequest();
+									result = obs.uploadPart(request);
+								}
+								Checksums.verify(result.getEtag(), digest, key + " part " + partNumber);
+								return result;
+							}
+						}, key + " part " + partNumber, progress);
+						PartEtag partEtag = new PartEtag(result.getEtag(), result.getPartNumber());
+						if (partCheckpoint != null) {
+							partCheckpoint.addPart(partEtag);
+						}
+						progress.addBytes(partLength);
+						return partEtag;
+					}
+				}));
+			}
+
+			List<PartEtag> partEtags = new ArrayList<>(partCount);
+			for (Future<PartEtag> future : futures) {
+				PartEtag partEtag = getResult(future);
+				if (partCheckpoint == null) {
+					partEtags.add(partEtag);
+				}
+			}
+			if (partCheckpoint != null) {
+				partEtags = partCheckpoint.getPartEtags();
+			}
+
+			final CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(bucket, key, uploadId, partEtags);
+			this.retryPolicy.call(new RetryPolicy.Attempt<Void>() {
+				@Override
+				public Void run() throws IOException {
+					MultipartUploader.this.throttle.acquireRequest();
+					obs.completeMultipartUpload(completeRequest);
+					return null;
+				}
+			}, "completing upload of " + key, progress);
+			completed = true;
+			if (partCheckpoint != null) {
+				partCheckpoint.delete();
+			}
+		} finally {
+			executor.shutdownNow();
+			if (!completed) {
+				if (checkpoint == null) {
+					this.abort(obs, bucket, key, uploadId, logger);
+				} else if (logger != null) {
+					logger.format("...Multipart upload of %s interrupted, %d/%d parts kept for resume%n",
+						file.getName(), checkpoint.getPartCount(), partCount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that the upload recorded in the checkpoint still exists and drops
+	 * recorded parts that OBS no longer has.
+	 */
+	private boolean verify(ObsClient obs, UploadCheckpoint checkpoint) {
+		Map<Integer, String> uploadedParts = new HashMap<>();
+		try {
+			ListPartsRequest request = new ListPartsRequest(checkpoint.getBucket(), checkpoint.getKey(), checkpoint.getUploadId());
+			ListPartsResult result;
+			do {
+				result = obs.listParts(request);
+				for (Multipart part : result.getMultipartList()) {
+					uploadedParts.put(part.getPartNumber(), part.getEtag());
+				}
+				if (result.getNextPartNumberMarker() != null) {
+					request.setPartNumberMarker(Integer.valueOf(result.getNextPartNumberMarker()));
+				}
+			} while (result.isTruncated());
+		} catch (ObsException e) {
+			return false;
+		}
+		checkpoint.retainParts(uploadedParts);
+		return true;
+	}
+
+	/**
+	 * Waits for a transfer task, rethrowing OBS and I/O failures as they were
+	 * raised on the worker thread.
+	 */
+	static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ObsException) {
+				throw (ObsException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Transfer failed", cause);
+		}
+	}
+
+	private void abort(ObsClient obs, String bucket, String key, String uploadId, PrintStream logger) {
+		try {
+			obs.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+		} catch (ObsException e) {
+			if (logger != null) {
+				logger.format("...Failed to abort multipart upload %s: %s%n", uploadId, e.getErrorMessage());
+			}
+		}
+	}
+}
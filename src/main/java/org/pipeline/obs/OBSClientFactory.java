@@ -17,6 +17,7 @@ import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 
 import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
+import com.huawei.openstack4j.api.client.IOSClientBuilder;
 import com.huawei.openstack4j.api.types.ServiceType;
 import com.huawei.openstack4j.core.transport.Config;
 import com.huawei.openstack4j.model.common.Identifier;
@@ -29,9 +30,12 @@ import com.obs.services.ObsClient;
 import com.obs.services.ObsConfiguration;
 
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.Map;
 import java.util.HashMap;
 import hudson.EnvVars;
+import hudson.Util;
 
 public class OBSClientFactory {
 
@@ -42,44 +46,122 @@ public class OBSClientFactory {
 	static final String OBS_DEFAULT_REGION = "OBS_DEFAULT_REGION";
 	static final String OBS_REGION = "OBS_REGION";
 	static final String OBS_ENDPOINT_URL = "OBS_ENDPOINT_URL";
+	static final String OBS_IAM_ENDPOINT = "OBS_IAM_ENDPOINT";
+	static final String OBS_FUNCTIONGRAPH_ENDPOINT = "OBS_FUNCTIONGRAPH_ENDPOINT";
+	static final String OBS_MAX_CONNECTIONS = "OBS_MAX_CONNECTIONS";
+	static final String OBS_CONNECTION_TIMEOUT = "OBS_CONNECTION_TIMEOUT";
+	static final String OBS_SOCKET_TIMEOUT = "OBS_SOCKET_TIMEOUT";
+	static final String OBS_KEEP_ALIVE = "OBS_KEEP_ALIVE";
+	static final String OBS_MAX_BANDWIDTH = "OBS_MAX_BANDWIDTH";
+	static final String OBS_MAX_REQUESTS_PER_SECOND = "OBS_MAX_REQUESTS_PER_SECOND";
+	static final String OBS_MAX_RETRIES = "OBS_MAX_RETRIES";
+	static final String OBS_RETRY_BASE_DELAY = "OBS_RETRY_BASE_DELAY";
+	static final String OBS_RETRY_MAX_DELAY = "OBS_RETRY_MAX_DELAY";
+
+	// openstack4j needs a domain even when it builds no endpoint from it
+	private static final String DEFAULT_CLOUD_DOMAIN = "myhuaweicloud.com";
 
 	private OBSClientFactory() {
 		//
 	}
 
+	/**
+	 * Returns an authenticated FunctionGraph client. Clients are cached on the
+	 * controller per access key, region and cloud domain, see {@link OSClientCache}.
+	 */
 	public static OSClientAKSK createOscClient(StepContext context){
+		final EnvVars vars;
+		try {
+			vars = context.get(EnvVars.class);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+		final String region = vars.get(OBS_REGION);
+		final String cloudDomainName = getCloudDomainName(vars);
+
+		return OSClientCache.get(getOscClientKey(vars, cloudDomainName), new Callable<OSClientAKSK>() {
+			@Override
+			public OSClientAKSK call() {
+				long started = System.nanoTime();
+				OSClientAKSK client = authenticate(vars, region, cloudDomainName);
+				StepMetrics.recordAuthentication(region, System.nanoTime() - started);
+				return client;
+			}
+		});
+	}
+
+	/**
+	 * Drops the cached FunctionGraph client for the context, so the next
+	 * {@link #createOscClient(StepContext)} authenticates again.
+	 */
+	public static void invalidateOscClient(StepContext context) {
+		OSClientCache.invalidate(getProjectKey(context));
+	}
+
+	/**
+	 * Returns a key identifying the account, region and cloud domain the
+	 * FunctionGraph client of the context talks to.
+	 */
+	public static String getProjectKey(StepContext context) {
 		EnvVars vars;
 		try {
 			vars = context.get(EnvVars.class);
 		} catch (Exception e) {
 			throw new IllegalArgumentException(e);
 		}
-		String region = vars.get(OBS_REGION);
-		String endpointURL = vars.get(OBS_ENDPOINT_URL);
-		String cloudDomainName =
-			getCloudDomainName(endpointURL, region);
+		return getOscClientKey(vars, getCloudDomainName(vars));
+	}
+
+	private static String getOscClientKey(EnvVars vars, String cloudDomainName) {
+		return vars.get(OBS_ACCESS_KEY_ID) + '|' + vars.get(OBS_REGION) + '|' + cloudDomainName
+			+ '|' + Util.getDigestOf(vars.get(OBS_SECRET_ACCESS_KEY));
+	}
+
+	private static OSClientAKSK authenticate(EnvVars vars, String region, String cloudDomainName) {
 		String projectID = getProjectID(vars, cloudDomainName);
 
+		String functionGraphEndpoint = vars.get(OBS_FUNCTIONGRAPH_ENDPOINT);
+		if (StringUtils.isBlank(functionGraphEndpoint)) {
+			functionGraphEndpoint = "https://functiongraph." + region + "." + cloudDomainName;
+		}
 		OverridableEndpointURLResolver endpointResolver =
 			new OverridableEndpointURLResolver();
 		endpointResolver.addOverrideEndpoint(ServiceType.FGS2_0,
-			"https://functiongraph."+ region + ".myhuaweicloud.com/v2/"
+			StringUtils.removeEnd(functionGraphEndpoint.trim(), "/") + "/v2/"
 				+ projectID);
+		// the client reads the IAM catalog while it authenticates
+		String iamEndpoint = vars.get(OBS_IAM_ENDPOINT);
+		if (StringUtils.isNotBlank(iamEndpoint)) {
+			endpointResolver.addOverrideEndpoint(ServiceType.IDENTITY, StringUtils.removeEnd(iamEndpoint.trim(), "/") + "/v3");
+		}
 
 		Config config = Config.newConfig().
 			withEndpointURLResolver(endpointResolver).withLanguage("zh-cn")
 			.withSSLVerificationDisabled();
 
-		OSClientAKSK osclient = OSFactory.builderAKSK().withConfig(config).
+		// passing the project ID we already resolved saves a second IAM lookup
+		if (StringUtils.isEmpty(projectID)) {
+			return OSFactory.builderAKSK().withConfig(config).
+				credentials(vars.get(OBS_ACCESS_KEY_ID),
+					vars.get(OBS_SECRET_ACCESS_KEY), region,
+					cloudDomainName).authenticate();
+		}
+		return OSFactory.builderAKSK().withConfig(config).
 			credentials(vars.get(OBS_ACCESS_KEY_ID),
-				vars.get(OBS_SECRET_ACCESS_KEY), region,
+				vars.get(OBS_SECRET_ACCESS_KEY), region, projectID,
 				cloudDomainName).authenticate();
-		return osclient;
 	}
 
 	private static String getProjectID(final EnvVars vars, String cloudDomainName) {
+		IOSClientBuilder.AKSK builder = OSFactory.builderAKSK();
+		String iamEndpoint = vars.get(OBS_IAM_ENDPOINT);
+		if (StringUtils.isNotBlank(iamEndpoint)) {
+			OverridableEndpointURLResolver endpointResolver = new OverridableEndpointURLResolver();
+			endpointResolver.addOverrideEndpoint(ServiceType.IDENTITY, StringUtils.removeEnd(iamEndpoint.trim(), "/") + "/v3");
+			builder.withConfig(Config.newConfig().withEndpointURLResolver(endpointResolver));
+		}
 		OSClientAKSK osclient =
-			OSFactory.builderAKSK().credentials(vars.get(OBS_ACCESS_KEY_ID),
+			builder.credentials(vars.get(OBS_ACCESS_KEY_ID),
 				vars.get(OBS_SECRET_ACCESS_KEY), vars.get(OBS_REGION),
 				cloudDomainName).authenticate();
 
@@ -94,19 +176,125 @@ public class OBSClientFactory {
 		return projectID;
 	}
 
-	private static String getCloudDomainName(String url, String region) {
-		String[] vs = url.split(region + "[.]");
-		if (vs.length > 0) {
-			return vs[1];
+	/**
+	 * Returns the cloud domain that the default IAM and FunctionGraph
+	 * endpoints are built from: the part of the OBS endpoint host after the
+	 * region, e.g. {@code myhuaweicloud.com} for
+	 * {@code https://obs.cn-north-4.myhuaweicloud.com}. An endpoint without the
+	 * region in its host, such as an address, needs both endpoints to be set.
+	 */
+	static String getCloudDomainName(EnvVars vars) {
+		String endpoint = vars.get(OBS_ENDPOINT_URL);
+		String region = vars.get(OBS_REGION);
+		String host = StringUtils.isBlank(endpoint) ? "" : host(endpoint).toLowerCase(Locale.ENGLISH);
+		if (StringUtils.isNotBlank(region)) {
+			String label = region.trim().toLowerCase(Locale.ENGLISH) + '.';
+			int start = host.startsWith(label) ? 0 : host.indexOf('.' + label);
+			if (start >= 0 && !host.startsWith(label)) {
+				// skip the dot before the region
+				start++;
+			}
+			if (start >= 0 && host.length() > start + label.length()) {
+				return host.substring(start + label.length());
+			}
+		}
+		if (StringUtils.isNotBlank(vars.get(OBS_IAM_ENDPOINT)) && StringUtils.isNotBlank(vars.get(OBS_FUNCTIONGRAPH_ENDPOINT))) {
+			return DEFAULT_CLOUD_DOMAIN;
 		}
-		return "";
+		throw new IllegalArgumentException("Cannot tell the cloud domain from endpointUrl " + endpoint + " and region " + region
+			+ ", set iamEndpoint and functionGraphEndpoint");
 	}
 
+	/**
+	 * Returns a pooled client for the endpoint, credentials and connection
+	 * settings in the environment. Callers must hand it back with
+	 * {@link #releaseHuaweiObsClient(ObsClient)} instead of closing it.
+	 */
 	public static ObsClient createHuaweiObsClient(EnvVars vars) {
-		ObsClient obs = null;
-		obs = new ObsClient(vars.get(OBS_ACCESS_KEY_ID),
-			vars.get(OBS_SECRET_ACCESS_KEY),
-			vars.get(OBS_ENDPOINT_URL));
-		return obs;
+		ObsConfiguration config = new ObsConfiguration();
+		config.setEndPoint(vars.get(OBS_ENDPOINT_URL));
+		// buckets cannot be addressed as subdomains of an IP address or localhost
+		config.setPathStyle(isAddress(vars.get(OBS_ENDPOINT_URL)));
+		// RetryPolicy retries each part and range with backoff, retries inside the client would multiply its attempts
+		config.setMaxErrorRetry(0);
+		int maxConnections = getInt(vars, OBS_MAX_CONNECTIONS, 0);
+		if (maxConnections > 0) {
+			config.setMaxConnections(maxConnections);
+			config.setMaxIdleConnections(maxConnections);
+		}
+		int connectionTimeout = getInt(vars, OBS_CONNECTION_TIMEOUT, 0);
+		if (connectionTimeout > 0) {
+			config.setConnectionTimeout(connectionTimeout);
+		}
+		int socketTimeout = getInt(vars, OBS_SOCKET_TIMEOUT, 0);
+		if (socketTimeout > 0) {
+			config.setSocketTimeout(socketTimeout);
+		}
+		config.setKeepAlive(!"false".equalsIgnoreCase(vars.get(OBS_KEEP_ALIVE)));
+
+		String key = vars.get(OBS_ENDPOINT_URL)
+			+ '|' + Util.getDigestOf(vars.get(OBS_ACCESS_KEY_ID) + ':' + vars.get(OBS_SECRET_ACCESS_KEY))
+			+ '|' + maxConnections + '|' + connectionTimeout + '|' + socketTimeout + '|' + config.isKeepAlive();
+		return ObsClientPool.acquire(key, vars.get(OBS_ACCESS_KEY_ID),
+			vars.get(OBS_SECRET_ACCESS_KEY), config);
+	}
+
+	public static void releaseHuaweiObsClient(ObsClient obs) {
+		if (obs != null) {
+			ObsClientPool.release(obs);
+		}
+	}
+
+	/**
+	 * Returns true if the host of the endpoint is an IP address or localhost.
+	 */
+	static boolean isAddress(String endpoint) {
+		if (StringUtils.isBlank(endpoint)) {
+			return false;
+		}
+		String host = host(endpoint);
+		return host.startsWith("[") || "localhost".equalsIgnoreCase(host) || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+	}
+
+	/**
+	 * Returns the host of an endpoint given with or without scheme, path and
+	 * port. IPv6 addresses keep their brackets.
+	 */
+	private static String host(String endpoint) {
+		String host = endpoint.trim().replaceFirst("^[a-zA-Z]+://", "");
+		host = host.replaceFirst("[/?].*$", "");
+		if (host.startsWith("[")) {
+			return host.replaceFirst("\\]:\\d+$", "]");
+		}
+		return host.replaceFirst(":\\d+$", "");
+	}
+
+	/**
+	 * Returns a number set by {@code withOBS}, or the default when it is not
+	 * set. Fails naming the variable when it is not a non-negative number.
+	 */
+	static long getLong(EnvVars vars, String name, long defaultValue) {
+		String value = vars.get(name);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		long number;
+		try {
+			number = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+		}
+		if (number < 0) {
+			throw new IllegalArgumentException("Invalid value for " + name + ": " + value + " must not be negative");
+		}
+		return number;
+	}
+
+	static int getInt(EnvVars vars, String name, int defaultValue) {
+		long number = getLong(vars, name, defaultValue);
+		if (number > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid value for " + name + ": " + vars.get(name) + " is too large");
+		}
+		return (int) number;
 	}
 }
@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.common.base.Preconditions;
+import com.obs.services.ObsClient;
+import com.obs.services.model.ListObjectsRequest;
+import com.obs.services.model.ObjectListing;
+import com.obs.services.model.ObsObject;
+
+import org.pipeline.obs.utils.SizeUtils;
+import org.pipeline.obs.utils.StepUtils;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Copies an object, or every object below a prefix, from one OBS location to
+ * another. The copy is done by OBS, so no data passes through Jenkins and the
+ * step runs on the controller without an agent.
+ */
+public class OBSCopyStep extends Step {
+
+	private final String fromBucket;
+	private final String fromPath;
+	private final String toBucket;
+	private String toPath = "";
+	private String partSize;
+	private String copyThreshold;
+	private int parallelism = ObjectCopier.DEFAULT_PARALLELISM;
+	private int maxRequestsPerSecond;
+	private boolean verbose;
+
+	@DataBoundConstructor
+	public OBSCopyStep(String fromBucket, String fromPath, String toBucket) {
+		this.fromBucket = fromBucket;
+		this.fromPath = fromPath;
+		this.toBucket = toBucket;
+	}
+
+	public String getFromBucket() {
+		return this.fromBucket;
+	}
+
+	public String getFromPath() {
+		return this.fromPath;
+	}
+
+	public String getToBucket() {
+		return this.toBucket;
+	}
+
+	public String getToPath() {
+		return this.toPath;
+	}
+
+	@DataBoundSetter
+	public void setToPath(String toPath) {
+		this.toPath = toPath;
+	}
+
+	public String getPartSize() {
+		return this.partSize;
+	}
+
+	@DataBoundSetter
+	public void setPartSize(String partSize) {
+		this.partSize = partSize;
+	}
+
+	public String getCopyThreshold() {
+		return this.copyThreshold;
+	}
+
+	@DataBoundSetter
+	public void setCopyThreshold(String copyThreshold) {
+		this.copyThreshold = copyThreshold;
+	}
+
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	@DataBoundSetter
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getMaxRequestsPerSecond() {
+		return this.maxRequestsPerSecond;
+	}
+
+	@DataBoundSetter
+	public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+	}
+
+	public boolean isVerbose() {
+		return this.verbose;
+	}
+
+	@DataBoundSetter
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new OBSCopyStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requires(TaskListener.class, EnvVars.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "obsCopy";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Copy objects within obs";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<String> {
+
+		protected static final long serialVersionUID = 1L;
+
+		protected final transient OBSCopyStep step;
+
+		public Execution(OBSCopyStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		public String run() throws Exception {
+			final String fromBucket = this.step.getFromBucket();
+			final String fromPath = this.step.getFromPath() != null ? this.step.getFromPath() : "";
+			final String toBucket = this.step.getToBucket();
+			String toPath = this.step.getToPath() != null ? this.step.getToPath() : "";
+
+			Preconditions.checkArgument(fromBucket != null && !fromBucket.isEmpty(), "From bucket must not be null or empty");
+			Preconditions.checkArgument(toBucket != null && !toBucket.isEmpty(), "To bucket must not be null or empty");
+			Preconditions.checkArgument(this.step.getParallelism() > 0, "Parallelism must be greater than 0");
+
+			final boolean prefix = fromPath.isEmpty() || fromPath.endsWith("/");
+			if (prefix) {
+				Preconditions.checkArgument(toPath.isEmpty() || toPath.endsWith("/"), "To path must end with / when copying a prefix");
+			} else if (toPath.isEmpty() || toPath.endsWith("/")) {
+				toPath += fromPath.substring(fromPath.lastIndexOf('/') + 1);
+			}
+			Preconditions.checkArgument(!(fromBucket.equals(toBucket) && fromPath.equals(toPath)), "Source and target must differ");
+
+			EnvVars envVars = this.getContext().get(EnvVars.class);
+			final ObjectCopier copier = new ObjectCopier(
+				SizeUtils.parse(this.step.getPartSize(), ObjectCopier.DEFAULT_PART_SIZE),
+				SizeUtils.parse(this.step.getCopyThreshold(), ObjectCopier.DEFAULT_COPY_THRESHOLD),
+				this.step.getParallelism(),
+				TransferThrottle.of(envVars, null, this.step.getMaxRequestsPerSecond()),
+				RetryPolicy.of(envVars));
+
+			TaskListener listener = this.getContext().get(TaskListener.class);
+			listener.getLogger().format("Copying obs://%s/%s to obs://%s/%s%n", fromBucket, fromPath, toBucket, toPath);
+			final ObsClient obs = OBSClientFactory.createHuaweiObsClient(envVars);
+			try {
+				TransferProgress progress;
+				if (prefix) {
+					progress = this.copyPrefix(obs, copier, fromBucket, fromPath, toBucket, toPath, listener);
+				} else {
+					progress = new TransferProgress(listener.getLogger(), this.step.isVerbose(), 1, "Copied");
+					long length = this.metadataLength(obs, copier, fromBucket, fromPath, listener);
+					copier.copy(obs, fromBucket, fromPath, toBucket, toPath, length, progress);
+				}
+				progress.finish();
+				StepMetrics.recordTransfer(this.getContext(), "obsCopy", toBucket, progress);
+				if (progress.getFiles() == 0) {
+					listener.getLogger().println("Nothing to copy");
+				} else {
+					listener.getLogger().format("Copy complete, %s%n", progress.summary());
+				}
+			} finally {
+				OBSClientFactory.releaseHuaweiObsClient(obs);
+			}
+			return String.format("obs://%s/%s", toBucket, toPath);
+		}
+
+		private long metadataLength(final ObsClient obs, final ObjectCopier copier, final String bucket, final String key, TaskListener listener) throws IOException, InterruptedException {
+			return copier.getRetryPolicy().call(new RetryPolicy.Attempt<Long>() {
+				@Override
+				public Long run() throws IOException {
+					copier.getThrottle().acquireRequest();
+					return obs.getObjectMetadata(bucket, key).getContentLength();
+				}
+			}, key, listener.getLogger());
+		}
+
+		private TransferProgress copyPrefix(final ObsClient obs, final ObjectCopier copier, final String fromBucket, final String fromPath,
+			final String toBucket, final String toPath, TaskListener listener) throws IOException, InterruptedException {
+			Map<String, Long> objects = new LinkedHashMap<>();
+			final ListObjectsRequest request = new ListObjectsRequest(fromBucket);
+			request.setPrefix(fromPath);
+			request.setMaxKeys(1000);
+			ObjectListing listing;
+			do {
+				listing = copier.getRetryPolicy().call(new RetryPolicy.Attempt<ObjectListing>() {
+					@Override
+					public ObjectListing run() throws IOException {
+						copier.getThrottle().acquireRequest();
+						return obs.listObjects(request);
+					}
+				}, "listing " + fromPath, listener.getLogger());
+				for (ObsObject object : listing.getObjects()) {
+					// skip folder placeholders
+					if (!object.getObjectKey().endsWith("/")) {
+						objects.put(object.getObjectKey(), object.getMetadata().getContentLength());
+					}
+				}
+				request.setMarker(listing.getNextMarker());
+			} while (listing.isTruncated());
+
+			final TransferProgress progress = new TransferProgress(listener.getLogger(), this.step.isVerbose(), objects.size(), "Copied");
+			if (objects.isEmpty()) {
+				return progress;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(copier.getParallelism(), objects.size()),
+				new NamingThreadFactory(new DaemonThreadFactory(), "obsCopy"));
+			try {
+				CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+				for (final Map.Entry<String, Long> object : objects.entrySet()) {
+					final String key = object.getKey();
+					final String target = toPath + key.substring(fromPath.length());
+					completionService.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							copier.copy(obs, fromBucket, key, toBucket, target, object.getValue(), progress);
+							return key;
+						}
+					});
+				}
+				for (int i = 0; i < objects.size(); i++) {
+					MultipartUploader.getResult(completionService.take());
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			return progress;
+		}
+	}
+}
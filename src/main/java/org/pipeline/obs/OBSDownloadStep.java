@@ -0,0 +1,323 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.common.base.Preconditions;
+import com.obs.services.ObsClient;
+import com.obs.services.model.ListObjectsRequest;
+import com.obs.services.model.ObjectListing;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.ObsObject;
+
+import org.pipeline.obs.utils.SizeUtils;
+import org.pipeline.obs.utils.StepUtils;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+public class OBSDownloadStep extends Step {
+
+	private final String bucket;
+	private String path = "";
+	private String file;
+	private String partSize;
+	private String rangeThreshold;
+	private int parallelism = RangedDownloader.DEFAULT_PARALLELISM;
+	private String maxBandwidth;
+	private int maxRequestsPerSecond;
+	private boolean verbose = true;
+
+	@DataBoundConstructor
+	public OBSDownloadStep(String bucket) {
+		this.bucket = bucket;
+	}
+
+	public String getBucket() {
+		return this.bucket;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	@DataBoundSetter
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getFile() {
+		return this.file;
+	}
+
+	@DataBoundSetter
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	public String getPartSize() {
+		return this.partSize;
+	}
+
+	@DataBoundSetter
+	public void setPartSize(String partSize) {
+		this.partSize = partSize;
+	}
+
+	public String getRangeThreshold() {
+		return this.rangeThreshold;
+	}
+
+	@DataBoundSetter
+	public void setRangeThreshold(String rangeThreshold) {
+		this.rangeThreshold = rangeThreshold;
+	}
+
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	@DataBoundSetter
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public String getMaxBandwidth() {
+		return this.maxBandwidth;
+	}
+
+	@DataBoundSetter
+	public void setMaxBandwidth(String maxBandwidth) {
+		this.maxBandwidth = maxBandwidth;
+	}
+
+	public int getMaxRequestsPerSecond() {
+		return this.maxRequestsPerSecond;
+	}
+
+	@DataBoundSetter
+	public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+	}
+
+	public boolean isVerbose() {
+		return this.verbose;
+	}
+
+	@DataBoundSetter
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new OBSDownloadStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requires(TaskListener.class, EnvVars.class, FilePath.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "obsDownload";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Copy file from obs";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<String> {
+
+		protected static final long serialVersionUID = 1L;
+
+		protected final transient OBSDownloadStep step;
+
+		public Execution(OBSDownloadStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		public String run() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String path = this.step.getPath() != null ? this.step.getPath() : "";
+			final String file = this.step.getFile();
+
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(this.step.getParallelism() > 0, "Parallelism must be greater than 0");
+
+			final RangedDownloader downloader = new RangedDownloader(
+				SizeUtils.parse(this.step.getPartSize(), RangedDownloader.DEFAULT_PART_SIZE),
+				SizeUtils.parse(this.step.getRangeThreshold(), RangedDownloader.DEFAULT_RANGE_THRESHOLD),
+				this.step.getParallelism(),
+				TransferThrottle.of(this.getContext().get(EnvVars.class), this.step.getMaxBandwidth(), this.step.getMaxRequestsPerSecond()),
+				RetryPolicy.of(this.getContext().get(EnvVars.class)));
+
+			FilePath target = this.getContext().get(FilePath.class);
+			if (file != null && !"".equals(file.trim())) {
+				target = target.child(file);
+			}
+
+			TaskListener listener = this.getContext().get(TaskListener.class);
+			listener.getLogger().format("Downloading obs://%s/%s to %s %n", bucket, path, target.toURI());
+			TransferProgress progress = target.act(new RemoteDownloader(this.getContext().get(EnvVars.class), listener, bucket, path, downloader, this.step.isVerbose()));
+			StepMetrics.recordTransfer(this.getContext(), "obsDownload", bucket, progress);
+			if (progress.getFiles() == 0) {
+				listener.getLogger().println("Nothing to download");
+			} else {
+				listener.getLogger().format("Download complete, %s%n", progress.summary());
+			}
+			return target.getRemote();
+		}
+	}
+
+	/**
+	 * Downloads a single object, or every object below a prefix when the path
+	 * is empty or ends with {@code /}.
+	 */
+	private static class RemoteDownloader extends MasterToSlaveFileCallable<TransferProgress> {
+
+		protected static final long serialVersionUID = 1L;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String path;
+		private final RangedDownloader downloader;
+		private final boolean verbose;
+
+		RemoteDownloader(EnvVars envVars, TaskListener taskListener, String bucket, String path, RangedDownloader downloader, boolean verbose) {
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.path = path;
+			this.downloader = downloader;
+			this.verbose = verbose;
+		}
+
+		@Override
+		public TransferProgress invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			final ObsClient obs =
+				OBSClientFactory.createHuaweiObsClient(this.envVars);
+			try {
+				if (this.path.isEmpty() || this.path.endsWith("/")) {
+					return this.downloadPrefix(obs, localFile);
+				}
+				File target = localFile.isDirectory()
+					? new File(localFile, this.path.substring(this.path.lastIndexOf('/') + 1)) : localFile;
+				TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, 1, "Downloaded");
+				// the metadata gives the length, the encoding and the ETag the ranges are pinned to
+				ObjectMetadata metadata = this.downloader.getRetryPolicy().call(new RetryPolicy.Attempt<ObjectMetadata>() {
+					@Override
+					public ObjectMetadata run() throws IOException {
+						RemoteDownloader.this.downloader.getThrottle().acquireRequest();
+						return obs.getObjectMetadata(RemoteDownloader.this.bucket, RemoteDownloader.this.path);
+					}
+				}, this.path, progress);
+				this.downloader.download(obs, this.bucket, this.path, target, metadata, progress);
+				progress.finish();
+				return progress;
+			} finally {
+				OBSClientFactory.releaseHuaweiObsClient(obs);
+			}
+		}
+
+		private TransferProgress downloadPrefix(final ObsClient obs, File localDir) throws IOException, InterruptedException {
+			Map<String, Long> objects = new LinkedHashMap<>();
+			final ListObjectsRequest request = new ListObjectsRequest(this.bucket);
+			request.setPrefix(this.path);
+			request.setMaxKeys(1000);
+			ObjectListing listing;
+			do {
+				listing = this.downloader.getRetryPolicy().call(new RetryPolicy.Attempt<ObjectListing>() {
+					@Override
+					public ObjectListing run() throws IOException {
+						RemoteDownloader.this.downloader.getThrottle().acquireRequest();
+						return obs.listObjects(request);
+					}
+				}, "listing " + this.path, this.taskListener.getLogger());
+				for (ObsObject object : listing.getObjects()) {
+					// skip folder placeholders
+					if (!object.getObjectKey().endsWith("/")) {
+						objects.put(object.getObjectKey(), object.getMetadata().getContentLength());
+					}
+				}
+				request.setMarker(listing.getNextMarker());
+			} while (listing.isTruncated());
+			final TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, objects.size(), "Downloaded");
+			if (objects.isEmpty()) {
+				progress.finish();
+				return progress;
+			}
+
+			String root = localDir.getCanonicalPath() + File.separator;
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.downloader.getParallelism(), objects.size()),
+				new NamingThreadFactory(new DaemonThreadFactory(), "obsDownload"));
+			try {
+				CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+				for (final Map.Entry<String, Long> object : objects.entrySet()) {
+					final String key = object.getKey();
+					final File target = new File(localDir, key.substring(this.path.length()).replace('/', File.separatorChar));
+					if (!target.getCanonicalPath().startsWith(root)) {
+						throw new IOException("Object key " + key + " points outside of " + localDir);
+					}
+					completionService.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							RemoteDownloader.this.downloader.download(obs, RemoteDownloader.this.bucket, key, target, object.getValue(), progress);
+							return key;
+						}
+					});
+				}
+				for (int i = 0; i < objects.size(); i++) {
+					MultipartUploader.getResult(completionService.take());
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			progress.finish();
+			return progress;
+		}
+	}
+}
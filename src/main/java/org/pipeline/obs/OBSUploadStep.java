@@ -16,15 +16,29 @@ package org.pipeline.obs;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
@@ -36,9 +50,9 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import com.google.common.base.Preconditions;
 import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.ObjectMetadata;
 import com.obs.services.model.PutObjectRequest;
-import com.obs.services.model.ProgressListener;
-import com.obs.services.model.ProgressStatus;
 
 import com.huawei.openstack4j.openstack.fgs.v2.domain.FunctionMetadata;
 import com.huawei.openstack4j.api.OSClient;
@@ -51,16 +65,31 @@ import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
 import com.huawei.openstack4j.model.identity.v3.User;
 import com.huawei.openstack4j.openstack.fgs.v2.domain.FuncInvocations;
 
+import org.pipeline.obs.utils.FileScanner;
+import org.pipeline.obs.utils.ParallelGzipOutputStream;
+import org.pipeline.obs.utils.SizeUtils;
 import org.pipeline.obs.utils.StepUtils;
+import org.pipeline.obs.utils.TextInputStream;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
 import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.DirScanner;
+import hudson.util.NamingThreadFactory;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
 import jenkins.MasterToSlaveFileCallable;
 
 public class OBSUploadStep extends Step {
 
+	static final List<String> ARCHIVE_FORMATS = Arrays.asList("tar", "tar.gz", "zip");
+	static final List<String> STORAGE_CLASSES = Arrays.asList("STANDARD", "WARM", "COLD");
+
 	private final String bucket;
 	private ObsClient obs;
 	private String file;
@@ -71,6 +100,24 @@ public class OBSUploadStep extends Step {
 	private String workingDir;
 	private String[] metadatas;
 	private boolean verbose = true;
+	private String partSize;
+	private String multipartThreshold;
+	private int parallelism = MultipartUploader.DEFAULT_PARALLELISM;
+	private boolean resumable;
+	private boolean sync;
+	private boolean deleteRemoved;
+	private String charset;
+	private String contentType;
+	private String archive;
+	private int compressionThreads = 1;
+	private String compress;
+	private String cacheControl;
+	private String maxBandwidth;
+	private int maxRequestsPerSecond;
+	private boolean createBucket;
+	private String bucketRegion;
+	private String storageClass;
+	private List<Object> destinations;
 
 	@DataBoundConstructor
 	public OBSUploadStep(String bucket) {
@@ -161,6 +208,168 @@ public class OBSUploadStep extends Step {
 		return this.verbose;
 	}
 
+	public String getPartSize() {
+		return this.partSize;
+	}
+
+	@DataBoundSetter
+	public void setPartSize(String partSize) {
+		this.partSize = partSize;
+	}
+
+	public String getMultipartThreshold() {
+		return this.multipartThreshold;
+	}
+
+	@DataBoundSetter
+	public void setMultipartThreshold(String multipartThreshold) {
+		this.multipartThreshold = multipartThreshold;
+	}
+
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	@DataBoundSetter
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public boolean isResumable() {
+		return this.resumable;
+	}
+
+	@DataBoundSetter
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	public boolean isSync() {
+		return this.sync;
+	}
+
+	@DataBoundSetter
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	public boolean isDeleteRemoved() {
+		return this.deleteRemoved;
+	}
+
+	@DataBoundSetter
+	public void setDeleteRemoved(boolean deleteRemoved) {
+		this.deleteRemoved = deleteRemoved;
+	}
+
+	public String getCharset() {
+		return this.charset;
+	}
+
+	@DataBoundSetter
+	public void setCharset(String charset) {
+		this.charset = charset;
+	}
+
+	public String getContentType() {
+		return this.contentType;
+	}
+
+	@DataBoundSetter
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public String getArchive() {
+		return this.archive;
+	}
+
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+
+	public int getCompressionThreads() {
+		return this.compressionThreads;
+	}
+
+	@DataBoundSetter
+	public void setCompressionThreads(int compressionThreads) {
+		this.compressionThreads = compressionThreads;
+	}
+
+	public String getCompress() {
+		return this.compress;
+	}
+
+	@DataBoundSetter
+	public void setCompress(String compress) {
+		this.compress = compress;
+	}
+
+	public String getCacheControl() {
+		return this.cacheControl;
+	}
+
+	@DataBoundSetter
+	public void setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+	}
+
+	public String getMaxBandwidth() {
+		return this.maxBandwidth;
+	}
+
+	@DataBoundSetter
+	public void setMaxBandwidth(String maxBandwidth) {
+		this.maxBandwidth = maxBandwidth;
+	}
+
+	public int getMaxRequestsPerSecond() {
+		return this.maxRequestsPerSecond;
+	}
+
+	@DataBoundSetter
+	public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+	}
+
+	public boolean isCreateBucket() {
+		return this.createBucket;
+	}
+
+	@DataBoundSetter
+	public void setCreateBucket(boolean createBucket) {
+		this.createBucket = createBucket;
+	}
+
+	public String getBucketRegion() {
+		return this.bucketRegion;
+	}
+
+	@DataBoundSetter
+	public void setBucketRegion(String bucketRegion) {
+		this.bucketRegion = bucketRegion;
+	}
+
+	public String getStorageClass() {
+		return this.storageClass;
+	}
+
+	@DataBoundSetter
+	public void setStorageClass(String storageClass) {
+		this.storageClass = storageClass;
+	}
+
+	public List<Object> getDestinations() {
+		return this.destinations;
+	}
+
+	@DataBoundSetter
+	public void setDestinations(List<Object> destinations) {
+		this.destinations = destinations;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new OBSUploadStep.Execution(this, context);
@@ -185,7 +394,7 @@ public class OBSUploadStep extends Step {
 		}
 	}
 
-	public static class Execution extends SynchronousNonBlockingStepExecution<String> {
+	public static class Execution extends SynchronousNonBlockingStepExecution<Object> {
 
 		protected static final long serialVersionUID = 1L;
 
@@ -197,7 +406,7 @@ public class OBSUploadStep extends Step {
 		}
 
 		@Override
-		public String run() throws Exception {
+		public Object run() throws Exception {
 			final String file = this.step.getFile();
 			final String text = this.step.getText();
 			final String bucket = this.step.getBucket();
@@ -209,7 +418,6 @@ public class OBSUploadStep extends Step {
 			final boolean verbose = this.step.getVerbose();
 			boolean omitSourcePath = false;
 			boolean sendingText = false;
-			String localPath = null;
 
 			if (this.step.getMetadatas() != null && this.step.getMetadatas().length != 0) {
 				for (String metadata : this.step.getMetadatas()) {
@@ -220,8 +428,60 @@ public class OBSUploadStep extends Step {
 			}
 
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
-			Preconditions.checkArgument(file != null || includePathPattern != null, "File or IncludePathPattern must not be null");
+			Preconditions.checkArgument(file != null || includePathPattern != null || text != null, "File, IncludePathPattern or Text must not be null");
 			Preconditions.checkArgument(includePathPattern == null || file == null, "File and IncludePathPattern cannot be use together");
+			Preconditions.checkArgument(text == null || (file == null && includePathPattern == null), "Text cannot be used together with File or IncludePathPattern");
+			Preconditions.checkArgument(text == null || (!path.isEmpty() && !path.endsWith("/")), "Text requires a Path naming the object");
+			Preconditions.checkArgument(this.step.getParallelism() > 0, "Parallelism must be greater than 0");
+			Preconditions.checkArgument(!this.step.isSync() || includePathPattern != null, "Sync requires IncludePathPattern");
+			Preconditions.checkArgument(!this.step.isDeleteRemoved() || this.step.isSync(), "DeleteRemoved requires Sync");
+			final String compress = this.step.getCompress();
+			Compression.validate(compress);
+			Preconditions.checkArgument(compress == null || !this.step.isResumable(), "Compress cannot be used with Resumable");
+			Preconditions.checkArgument(compress == null || text == null, "Compress cannot be used with Text");
+			// the remote objects would have their compressed size, so every file would look changed
+			Preconditions.checkArgument(compress == null || !this.step.isSync(), "Compress cannot be used with Sync");
+			final String archive = this.step.getArchive();
+			if (archive != null) {
+				Preconditions.checkArgument(ARCHIVE_FORMATS.contains(archive), "Archive must be one of %s", ARCHIVE_FORMATS);
+				Preconditions.checkArgument(includePathPattern != null && !this.step.isSync(), "Archive requires IncludePathPattern and cannot be used with Sync");
+				Preconditions.checkArgument(compress == null, "Archive cannot be used with Compress");
+				Preconditions.checkArgument(!path.isEmpty() && !path.endsWith("/"), "Archive requires a Path naming the object");
+				Preconditions.checkArgument(this.step.getCompressionThreads() > 0, "CompressionThreads must be greater than 0");
+			}
+
+			final boolean fanOut = this.step.getDestinations() != null && !this.step.getDestinations().isEmpty();
+			if (fanOut) {
+				Preconditions.checkArgument(text == null && archive == null, "Destinations cannot be used with Text or Archive");
+				Preconditions.checkArgument(!this.step.isSync() && !this.step.isResumable() && compress == null,
+					"Destinations cannot be used with Sync, Resumable or Compress");
+				Preconditions.checkArgument(!this.step.isCreateBucket(), "Destinations cannot be used with CreateBucket");
+			}
+
+			final ObjectHeaders headers = new ObjectHeaders(metadatas, this.step.getContentType(), this.step.getCacheControl());
+			final MultipartUploader multipartUploader = new MultipartUploader(
+				SizeUtils.parse(this.step.getPartSize(), MultipartUploader.DEFAULT_PART_SIZE),
+				SizeUtils.parse(this.step.getMultipartThreshold(), MultipartUploader.DEFAULT_MULTIPART_THRESHOLD),
+				this.step.getParallelism(),
+				TransferThrottle.of(this.getContext().get(EnvVars.class), this.step.getMaxBandwidth(), this.step.getMaxRequestsPerSecond()),
+				RetryPolicy.of(this.getContext().get(EnvVars.class)));
+			// every destination gets the same chunk, which is held in memory
+			Preconditions.checkArgument(!fanOut || multipartUploader.getPartSize() <= Integer.MAX_VALUE, "Destinations require a PartSize of at most 2GB");
+
+			if (this.step.getStorageClass() != null) {
+				Preconditions.checkArgument(STORAGE_CLASSES.contains(this.step.getStorageClass().toUpperCase(Locale.ENGLISH)),
+					"StorageClass must be one of %s", STORAGE_CLASSES);
+			}
+			if (this.step.isCreateBucket()) {
+				EnvVars envVars = this.getContext().get(EnvVars.class);
+				String region = this.step.getBucketRegion() != null ? this.step.getBucketRegion() : envVars.get(OBSClientFactory.OBS_REGION);
+				ObsClient obs = OBSClientFactory.createHuaweiObsClient(envVars);
+				try {
+					Buckets.create(obs, bucket, region, this.step.getStorageClass(), this.getContext().get(TaskListener.class).getLogger());
+				} finally {
+					OBSClientFactory.releaseHuaweiObsClient(obs);
+				}
+			}
 
 			final List<FilePath> children = new ArrayList<>();
 			final FilePath dir;
@@ -230,25 +490,62 @@ public class OBSUploadStep extends Step {
 			} else {
 				dir = this.getContext().get(FilePath.class);
 			}
+			// checkpoints live next to the workspace so they survive retries but are never picked up by includePathPattern
+			final String checkpointDir;
+			if (this.step.isResumable()) {
+				checkpointDir = WorkspaceList.tempDir(this.getContext().get(FilePath.class)).child("obs-checkpoints").getRemote();
+			} else {
+				checkpointDir = null;
+			}
+
 			if (text != null) {
 				sendingText = true;
 			} else if (file != null) {
 				children.add(dir.child(file));
 				omitSourcePath = true;
-			} else if (excludePathPattern != null && !excludePathPattern.trim().isEmpty()) {
-				children.addAll(Arrays.asList(dir.list(includePathPattern, excludePathPattern, true)));
-			} else {
-				children.addAll(Arrays.asList(dir.list(includePathPattern, null, true)));
-
 			}
 
 			TaskListener listener = Execution.this.getContext().get(TaskListener.class);
 
 			if (sendingText) {
-				return String.format("obs://%s/%s", bucket, localPath);
-			} else if (children.isEmpty()) {
-				listener.getLogger().println("Nothing to upload");
-				return null;
+				Charset charset = this.step.getCharset() != null ? Charset.forName(this.step.getCharset()) : StandardCharsets.UTF_8;
+				String contentType = this.step.getContentType() != null ? this.step.getContentType() : "text/plain; charset=" + charset.name();
+				ObjectHeaders textHeaders = new ObjectHeaders(metadatas, contentType, this.step.getCacheControl());
+				listener.getLogger().format("Uploading text to obs://%s/%s %n", bucket, path);
+				// the text is already on the controller, so upload it from here instead of shipping it to the agent
+				ObsClient obs = OBSClientFactory.createHuaweiObsClient(this.getContext().get(EnvVars.class));
+				TransferProgress progress = new TransferProgress(listener.getLogger(), verbose, 1);
+				try {
+					uploadText(obs, bucket, path, text, charset, textHeaders, multipartUploader, progress);
+				} catch (ObsException e) {
+					if (Buckets.isMissing(e)) {
+						throw Buckets.missing(bucket, e);
+					}
+					throw e;
+				} finally {
+					OBSClientFactory.releaseHuaweiObsClient(obs);
+				}
+				progress.finish();
+				StepMetrics.recordTransfer(this.getContext(), "obsUpload", bucket, progress);
+				listener.getLogger().format("Upload complete, %s%n", progress.summary());
+				return String.format("obs://%s/%s", bucket, path);
+			} else if (fanOut) {
+				EnvVars envVars = this.getContext().get(EnvVars.class);
+				List<UploadDestination> destinations = new ArrayList<>();
+				destinations.add(new UploadDestination(bucket, path, envVars));
+				for (Object destination : this.step.getDestinations()) {
+					destinations.add(UploadDestination.of(destination, envVars, this.getContext().get(Run.class), path));
+				}
+				FilePath source = omitSourcePath ? children.get(0) : dir;
+				listener.getLogger().format("Uploading %s to %d destinations: %s%n",
+					omitSourcePath ? source.toURI() : includePathPattern, destinations.size(), destinations);
+				if (omitSourcePath && !source.exists()) {
+					listener.getLogger().println("Upload failed due to missing source file");
+					throw new FileNotFoundException(source.toURI().toString());
+				}
+				List<FanOutUploader.Result> results = source.act(new RemoteFanOutUploader(listener, omitSourcePath ? null : includePathPattern,
+					excludePathPattern, destinations, headers, multipartUploader, verbose));
+				return this.report(results, listener);
 			} else if (omitSourcePath) {
 				FilePath child = children.get(0);
 				listener.getLogger().format("Uploading %s to obs://%s/%s %n",
@@ -258,111 +555,460 @@ public class OBSUploadStep extends Step {
 					throw new FileNotFoundException(child.toURI().toString());
 				}
 
-				child.act(new RemoteUploader(Execution.this.getContext().get(EnvVars.class), listener, bucket, path, metadatas));
-
-				listener.getLogger().println("Upload complete");
+				TransferProgress progress = child.act(new RemoteUploader(Execution.this.getContext().get(EnvVars.class), listener, bucket, path, headers, multipartUploader, checkpointDir, compress, verbose));
+				StepMetrics.recordTransfer(this.getContext(), "obsUpload", bucket, progress);
+				listener.getLogger().format("Upload complete, %s%n", progress.summary());
+				return String.format("obs://%s/%s", bucket, path);
+			} else if (archive != null) {
+				listener.getLogger().format("Archiving %s as %s to obs://%s/%s %n",
+					includePathPattern, archive, bucket, path);
+				TransferProgress progress = dir.act(new RemoteArchiveUploader(Execution.this.getContext().get(EnvVars.class), listener, includePathPattern, excludePathPattern, bucket, path, headers, archive, this.step.getCompressionThreads(), multipartUploader, verbose));
+				StepMetrics.recordTransfer(this.getContext(), "obsUpload", bucket, progress);
+				listener.getLogger().format("Upload complete, %s archived%n", progress.summary());
 				return String.format("obs://%s/%s", bucket, path);
 			} else {
-				listener.getLogger().println("Not support upload from " +
-					"directory");
-				List<File> fileList = new ArrayList<>();
 				listener.getLogger().format("Uploading %s to obs://%s/%s %n",
 					includePathPattern, bucket, path);
-				for (FilePath child : children) {
-					fileList.add(child.act(FIND_FILE_ON_SLAVE));
+				TransferProgress progress = dir.act(new RemoteListUploader(Execution.this.getContext().get(EnvVars.class), listener, includePathPattern, excludePathPattern, bucket, path, headers, multipartUploader, checkpointDir, compress, this.step.isSync(), this.step.isDeleteRemoved(), verbose));
+				StepMetrics.recordTransfer(this.getContext(), "obsUpload", bucket, progress);
+				if (progress.getFiles() == 0) {
+					listener.getLogger().println("Nothing to upload");
+				} else {
+					listener.getLogger().format("Upload complete, %s%n", progress.summary());
 				}
-				dir.act(new RemoteListUploader(Execution.this.getContext().get(EnvVars.class), listener, fileList, bucket, path, metadatas));
-				listener.getLogger().println("Upload complete");
 				return String.format("obs://%s/%s", bucket, path);
 			}
 		}
 
+		/**
+		 * Logs and records the outcome per destination and returns it as one
+		 * map per destination. Fails only when no destination got the files.
+		 */
+		private List<Map<String, Object>> report(List<FanOutUploader.Result> results, TaskListener listener) throws AbortException {
+			List<Map<String, Object>> outcome = new ArrayList<>(results.size());
+			int failed = 0;
+			for (FanOutUploader.Result result : results) {
+				UploadDestination destination = result.getDestination();
+				StepMetrics.recordTransfer(this.getContext(), "obsUpload", destination.getRegion(), destination.getBucket(), result.getProgress());
+				Map<String, Object> entry = new LinkedHashMap<>();
+				entry.put("destination", destination.toString());
+				entry.put("region", destination.getRegion());
+				entry.put("success", result.getError() == null);
+				if (result.getError() == null) {
+					listener.getLogger().format("Upload to %s complete, %s%n", destination, result.getProgress().summary());
+				} else {
+					listener.getLogger().format("Upload to %s failed: %s%n", destination, result.getError());
+					entry.put("error", result.getError());
+					failed++;
+				}
+				outcome.add(entry);
+			}
+			if (failed == results.size()) {
+				throw new AbortException("Upload failed for all " + failed + " destinations");
+			}
+			return outcome;
+		}
+	}
+
+	/**
+	 * Uploads one local file, using a multipart upload when the file is large
+	 * enough. Must be called on the agent that holds the file. The file is read
+	 * once; its MD5 is computed while it is sent.
+	 */
+	static void uploadFile(final ObsClient obs, final String bucket, final String key, final File localFile, final MultipartUploader multipartUploader, String checkpointDir, String compress, ObjectHeaders headers, TransferProgress progress) throws IOException, InterruptedException {
+		final ObjectMetadata metadata = headers.toMetadata(key);
+		if (compress != null && Compression.isCompressible(localFile.getName())) {
+			Compression.uploadGzip(obs, bucket, key, localFile, metadata, multipartUploader, progress);
+		} else if (multipartUploader.isMultipart(localFile.length())) {
+			multipartUploader.upload(obs, bucket, key, localFile, metadata, checkpointDir != null ? new File(checkpointDir) : null, progress);
+		} else {
+			multipartUploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+				@Override
+				public Void run() throws IOException {
+					putFile(obs, bucket, key, localFile, metadata, multipartUploader.getThrottle());
+					return null;
+				}
+			}, key, progress);
+			progress.addBytes(localFile.length());
+		}
+		headers.applyCacheControl(obs, bucket, key, multipartUploader, progress);
+		progress.fileDone(bucket, key);
+	}
+
+	private static void putFile(ObsClient obs, String bucket, String key, File localFile, ObjectMetadata metadata, TransferThrottle throttle) throws IOException {
+		PutObjectRequest request = new PutObjectRequest(bucket, key);
+		metadata.setContentLength(localFile.length());
+		request.setMetadata(metadata);
+		MessageDigest digest = Checksums.md5();
+		try (InputStream in = new DigestInputStream(new FileInputStream(localFile), digest)) {
+			request.setInput(throttle.limit(in));
+			throttle.acquireRequest();
+			Checksums.verify(obs.putObject(request).getEtag(), digest, key);
+		}
+	}
+
+	/**
+	 * Uploads a string, encoding and hashing it while the request body is
+	 * written. The string is encoded again if the request is retried.
+	 */
+	static void uploadText(final ObsClient obs, final String bucket, final String key, final String text, final Charset charset, ObjectHeaders headers, MultipartUploader multipartUploader, TransferProgress progress) throws IOException, InterruptedException {
+		final ObjectMetadata metadata = headers.toMetadata(key);
+		metadata.setContentLength(TextInputStream.encodedLength(text, charset));
+		final TransferThrottle throttle = multipartUploader.getThrottle();
+		multipartUploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+			@Override
+			public Void run() throws IOException {
+				PutObjectRequest request = new PutObjectRequest(bucket, key);
+				MessageDigest digest = Checksums.md5();
+				request.setInput(throttle.limit(new DigestInputStream(new TextInputStream(text, charset), digest)));
+				request.setMetadata(metadata);
+				throttle.acquireRequest();
+				Checksums.verify(obs.putObject(request).getEtag(), digest, key);
+				return null;
+			}
+		}, key, progress);
+		headers.applyCacheControl(obs, bucket, key, multipartUploader, progress);
+		progress.addBytes(metadata.getContentLength());
+		progress.fileDone(bucket, key);
 	}
 
-	private static class RemoteUploader extends MasterToSlaveFileCallable<Void> {
+	private static class RemoteUploader extends MasterToSlaveFileCallable<TransferProgress> {
 
 		protected static final long serialVersionUID = 1L;
 		private final EnvVars envVars;
 		private final TaskListener taskListener;
 		private final String bucket;
 		private final String path;
-		private final Map<String, String> metadatas;
+		private final ObjectHeaders headers;
+		private final MultipartUploader multipartUploader;
+		private final String checkpointDir;
+		private final String compress;
+		private final boolean verbose;
 
-		RemoteUploader(EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas) {
+		RemoteUploader(EnvVars envVars, TaskListener taskListener, String bucket, String path, ObjectHeaders headers, MultipartUploader multipartUploader, String checkpointDir, String compress, boolean verbose) {
 			this.envVars = envVars;
 			this.taskListener = taskListener;
 			this.bucket = bucket;
 			this.path = path;
-			this.metadatas = metadatas;
+			this.headers = headers;
+			this.multipartUploader = multipartUploader;
+			this.checkpointDir = checkpointDir;
+			this.compress = compress;
+			this.verbose = verbose;
 		}
 
 		@Override
-		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+		public TransferProgress invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
 			ObsClient obs =
 				OBSClientFactory.createHuaweiObsClient(this.envVars);
+			TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, 1);
+			try {
+				this.upload(obs, localFile, progress);
+			} catch (ObsException e) {
+				if (Buckets.isMissing(e)) {
+					throw Buckets.missing(this.bucket, e);
+				}
+				throw e;
+			} finally {
+				OBSClientFactory.releaseHuaweiObsClient(obs);
+			}
+			progress.finish();
+			return progress;
+		}
 
+		private void upload(ObsClient obs, File localFile, TransferProgress progress) throws IOException, InterruptedException {
 			if (localFile.isFile()) {
 				String path = this.path;
 				if (path.endsWith("/") || path.isEmpty()) {
 					path += localFile.getName();
 				}
-				if (!obs.headBucket(this.bucket)) {
-					throw new FileNotFoundException("Bucket "
-						+ this.bucket + " does not exist");
-				}
+				uploadFile(obs, this.bucket, path, localFile, this.multipartUploader, this.checkpointDir, this.compress, this.headers, progress);
+			}
+		}
+	}
 
-				PutObjectRequest request = new PutObjectRequest(this.bucket, path);
-				request.setFile(localFile);
-				request.setProgressListener(new ProgressListener() {
+	/**
+	 * Archives the matching files and streams the archive into a multipart
+	 * upload as it is produced, without writing it to disk.
+	 */
+	private static class RemoteArchiveUploader extends MasterToSlaveFileCallable<TransferProgress> {
 
-					@Override
-					public void progressChanged(ProgressStatus status) {
-						taskListener.getLogger().format("...Upload file to " +
-							"obs bucket, average speed:%s, " +
-							"percentage:%s%%%n",
-							status.getAverageSpeed(),
-							status.getTransferPercentage());
-					}
-				});
-				// get upload progress feedback in every 1MB data
-				request.setProgressInterval(1024 * 1024L);
-				obs.putObject(request);
-				return null;
-			}
+		protected static final long serialVersionUID = 1L;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final String bucket;
+		private final String path;
+		private final ObjectHeaders headers;
+		private final String format;
+		private final int compressionThreads;
+		private final MultipartUploader multipartUploader;
+		private final boolean verbose;
 
-			return null;
+		RemoteArchiveUploader(EnvVars envVars, TaskListener taskListener, String includePathPattern, String excludePathPattern, String bucket, String path, ObjectHeaders headers, String format, int compressionThreads, MultipartUploader multipartUploader, boolean verbose) {
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.bucket = bucket;
+			this.path = path;
+			this.headers = headers;
+			this.format = format;
+			this.compressionThreads = compressionThreads;
+			this.multipartUploader = multipartUploader;
+			this.verbose = verbose;
+		}
+
+		@Override
+		public TransferProgress invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			String excludes = this.excludePathPattern != null && !this.excludePathPattern.trim().isEmpty() ? this.excludePathPattern : null;
+			ObsClient obs =
+				OBSClientFactory.createHuaweiObsClient(this.envVars);
+			TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, 1);
+			MultipartOutputStream out = new MultipartOutputStream(obs, this.bucket, this.path, this.headers.toMetadata(this.path), this.multipartUploader, progress);
+			ParallelGzipOutputStream gzip = null;
+			try {
+				Archiver archiver;
+				if ("zip".equals(this.format)) {
+					archiver = ArchiverFactory.ZIP.create(out);
+				} else if ("tar".equals(this.format)) {
+					archiver = ArchiverFactory.TAR.create(out);
+				} else if (this.compressionThreads > 1) {
+					gzip = new ParallelGzipOutputStream(out, this.compressionThreads);
+					archiver = ArchiverFactory.TAR.create(gzip);
+				} else {
+					archiver = ArchiverFactory.TARGZ.create(out);
+				}
+				new DirScanner.Glob(this.includePathPattern, excludes).scan(localFile, archiver);
+				// closing the archiver closes the stream, which completes the upload
+				archiver.close();
+				this.headers.applyCacheControl(obs, this.bucket, this.path, this.multipartUploader, progress);
+				progress.addFiles(archiver.countEntries());
+				progress.finish();
+				return progress;
+			} catch (ObsException e) {
+				out.abort();
+				if (Buckets.isMissing(e)) {
+					throw Buckets.missing(this.bucket, e);
+				}
+				throw e;
+			} catch (IOException | RuntimeException e) {
+				out.abort();
+				throw e;
+			} finally {
+				// the compression threads are left running when the scan fails before the archiver is closed
+				if (gzip != null) {
+					gzip.abort();
+				}
+				OBSClientFactory.releaseHuaweiObsClient(obs);
+			}
 		}
 	}
 
-	private static class RemoteListUploader extends MasterToSlaveFileCallable<Void> {
+	private static class RemoteListUploader extends MasterToSlaveFileCallable<TransferProgress> {
 
 		protected static final long serialVersionUID = 1L;
 		private final EnvVars envVars;
 		private final TaskListener taskListener;
 		private final String bucket;
 		private final String path;
-		private final List<File> fileList;
-		private final Map<String, String> metadatas;
-
-		RemoteListUploader(EnvVars envVars, TaskListener taskListener, List<File> fileList, String bucket, String path, Map<String, String> metadatas) {
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final ObjectHeaders headers;
+		private final MultipartUploader multipartUploader;
+		private final String checkpointDir;
+		private final String compress;
+		private final boolean sync;
+		private final boolean deleteRemoved;
+		private final boolean verbose;
+
+		RemoteListUploader(EnvVars envVars, TaskListener taskListener, String includePathPattern, String excludePathPattern, String bucket, String path, ObjectHeaders headers, MultipartUploader multipartUploader, String checkpointDir, String compress, boolean sync, boolean deleteRemoved, boolean verbose) {
 			this.envVars = envVars;
 			this.taskListener = taskListener;
-			this.fileList = fileList;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
 			this.bucket = bucket;
 			this.path = path;
-			this.metadatas = metadatas;
+			this.headers = headers;
+			this.multipartUploader = multipartUploader;
+			this.checkpointDir = checkpointDir;
+			this.compress = compress;
+			this.sync = sync;
+			this.deleteRemoved = deleteRemoved;
+			this.verbose = verbose;
 		}
 
 		@Override
-		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			return null;
+		public TransferProgress invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!localFile.isDirectory()) {
+				TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, 0);
+				progress.finish();
+				return progress;
+			}
+			long scanStarted = System.nanoTime();
+			List<FileScanner.ScannedFile> includedFiles = new FileScanner(this.includePathPattern, this.excludePathPattern).scan(localFile);
+			TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, includedFiles.size());
+			if (includedFiles.isEmpty()) {
+				progress.finish();
+				return progress;
+			}
+			long totalSize = 0;
+			for (FileScanner.ScannedFile file : includedFiles) {
+				totalSize += file.getSize();
+			}
+			if (progress.getVerboseLogger() != null) {
+				progress.getVerboseLogger().format("...Found %d files, %s in %d ms%n", includedFiles.size(), SizeUtils.format(totalSize),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scanStarted));
+			}
+			// start the largest files first, so a big file does not run alone at the end
+			Collections.sort(includedFiles, new Comparator<FileScanner.ScannedFile>() {
+				@Override
+				public int compare(FileScanner.ScannedFile a, FileScanner.ScannedFile b) {
+					return Long.compare(b.getSize(), a.getSize());
+				}
+			});
+
+			ObsClient obs =
+				OBSClientFactory.createHuaweiObsClient(this.envVars);
+			try {
+				this.upload(obs, includedFiles, progress);
+			} catch (ObsException e) {
+				if (Buckets.isMissing(e)) {
+					throw Buckets.missing(this.bucket, e);
+				}
+				throw e;
+			} finally {
+				OBSClientFactory.releaseHuaweiObsClient(obs);
+			}
+			progress.finish();
+			return progress;
+		}
+
+		private void upload(final ObsClient obs, List<FileScanner.ScannedFile> includedFiles, final TransferProgress progress) throws IOException, InterruptedException {
+			String prefix = this.path;
+			if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+				prefix += "/";
+			}
+
+			final SyncManifest manifest = this.sync ? SyncManifest.load(obs, this.bucket, prefix, this.multipartUploader, progress) : null;
+			int uploaded = 0;
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.multipartUploader.getParallelism(), includedFiles.size()),
+				new NamingThreadFactory(new DaemonThreadFactory(), "obsUpload"));
+			try {
+				CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+				for (final FileScanner.ScannedFile scanned : includedFiles) {
+					final File file = scanned.getFile();
+					final String key = prefix + scanned.getPath();
+					completionService.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							if (manifest != null && !manifest.isChanged(key, file, scanned.getSize(), scanned.getLastModified())) {
+								return null;
+							}
+							uploadFile(obs, RemoteListUploader.this.bucket, key, file, RemoteListUploader.this.multipartUploader, RemoteListUploader.this.checkpointDir, RemoteListUploader.this.compress, RemoteListUploader.this.headers, progress);
+							return key;
+						}
+					});
+				}
+				for (int i = 0; i < includedFiles.size(); i++) {
+					if (MultipartUploader.getResult(completionService.take()) != null) {
+						uploaded++;
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+
+			if (manifest != null) {
+				List<String> removed = this.deleteRemoved ? manifest.getRemovedKeys() : Collections.<String>emptyList();
+				manifest.deleteObjects(obs, removed);
+				manifest.save(obs);
+				this.taskListener.getLogger().format("Sync: %d files uploaded, %d unchanged, %d removed%n",
+					uploaded, includedFiles.size() - uploaded, removed.size());
+			}
 		}
 	}
 
-	private static MasterToSlaveFileCallable<File> FIND_FILE_ON_SLAVE = new MasterToSlaveFileCallable<File>() {
+	/**
+	 * Reads every file once and sends it to all destinations, see
+	 * {@link FanOutUploader}.
+	 */
+	private static class RemoteFanOutUploader extends MasterToSlaveFileCallable<ArrayList<FanOutUploader.Result>> {
+
+		protected static final long serialVersionUID = 1L;
+		private final TaskListener taskListener;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final List<UploadDestination> destinations;
+		private final ObjectHeaders headers;
+		private final MultipartUploader multipartUploader;
+		private final boolean verbose;
+
+		/**
+		 * @param includePathPattern the files to upload from the directory, or
+		 *            null to upload the file itself
+		 */
+		RemoteFanOutUploader(TaskListener taskListener, String includePathPattern, String excludePathPattern, List<UploadDestination> destinations, ObjectHeaders headers, MultipartUploader multipartUploader, boolean verbose) {
+			this.taskListener = taskListener;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.destinations = destinations;
+			this.headers = headers;
+			this.multipartUploader = multipartUploader;
+			this.verbose = verbose;
+		}
+
 		@Override
-		public File invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			return localFile;
+		public ArrayList<FanOutUploader.Result> invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			List<FileScanner.ScannedFile> includedFiles = Collections.emptyList();
+			if (this.includePathPattern != null && localFile.isDirectory()) {
+				includedFiles = new FileScanner(this.includePathPattern, this.excludePathPattern).scan(localFile);
+				Collections.sort(includedFiles, new Comparator<FileScanner.ScannedFile>() {
+					@Override
+					public int compare(FileScanner.ScannedFile a, FileScanner.ScannedFile b) {
+						return Long.compare(b.getSize(), a.getSize());
+					}
+				});
+			}
+			int files = this.includePathPattern == null ? 1 : includedFiles.size();
+			TransferProgress progress = new TransferProgress(this.taskListener.getLogger(), this.verbose, files);
+			FanOutUploader fanOut = new FanOutUploader(this.destinations, this.multipartUploader, this.headers, progress);
+			try {
+				if (this.includePathPattern == null) {
+					fanOut.upload(localFile, localFile.getName(), true);
+				} else if (!includedFiles.isEmpty()) {
+					this.upload(fanOut, includedFiles);
+				}
+			} finally {
+				fanOut.close();
+			}
+			progress.finish();
+			return new ArrayList<>(fanOut.getResults());
 		}
-	};
+
+		private void upload(final FanOutUploader fanOut, List<FileScanner.ScannedFile> includedFiles) throws IOException, InterruptedException {
+			// every worker reads one file at a time, the fan out to the destinations runs below it
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.multipartUploader.getParallelism(), includedFiles.size()),
+				new NamingThreadFactory(new DaemonThreadFactory(), "obsUpload"));
+			try {
+				CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+				for (final FileScanner.ScannedFile scanned : includedFiles) {
+					completionService.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							fanOut.upload(scanned.getFile(), scanned.getPath(), false);
+							return null;
+						}
+					});
+				}
+				for (int i = 0; i < includedFiles.size(); i++) {
+					MultipartUploader.getResult(completionService.take());
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
 }
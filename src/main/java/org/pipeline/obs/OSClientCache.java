@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
+import com.huawei.openstack4j.openstack.internal.OSClientSession;
+
+import jenkins.util.Timer;
+
+/**
+ * Caches authenticated FunctionGraph clients on the controller, keyed by
+ * access key, region and cloud domain, so the IAM authentication and project
+ * lookup run once per {@link #TTL_MILLIS} instead of once per step. Entries
+ * are refreshed in the background shortly before they expire.
+ */
+final class OSClientCache {
+
+	private static final Logger LOGGER = Logger.getLogger(OSClientCache.class.getName());
+
+	static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+		Long.getLong(OSClientCache.class.getName() + ".ttlMinutes", 30));
+	static final long REFRESH_AHEAD_MILLIS = TTL_MILLIS / 5;
+
+	private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+	private static final class Entry {
+		private final OSClientAKSK client;
+		private final long expiresAt;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(OSClientAKSK client) {
+			this.client = client;
+			this.expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+		}
+	}
+
+	private OSClientCache() {
+		//
+	}
+
+	/**
+	 * Returns the cached client for the key, authenticating with the loader
+	 * when there is none or it expired. The client is bound to the calling
+	 * thread, as openstack4j keeps the current session in a thread local.
+	 */
+	static OSClientAKSK get(final String key, final Callable<OSClientAKSK> loader) {
+		Entry entry = ENTRIES.get(key);
+		long now = System.currentTimeMillis();
+		if (entry == null || now >= entry.expiresAt) {
+			entry = load(key, loader);
+		} else if (now >= entry.expiresAt - REFRESH_AHEAD_MILLIS && entry.refreshing.compareAndSet(false, true)) {
+			final Entry stale = entry;
+			Timer.get().submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(key, loader);
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Failed to refresh FunctionGraph client", e);
+						stale.refreshing.set(false);
+					}
+				}
+			});
+		}
+		OSClientSession.setCurrent((OSClientSession) entry.client);
+		return entry.client;
+	}
+
+	/**
+	 * Drops the cached client, for example after a request failed because the
+	 * credentials or project changed.
+	 */
+	static void invalidate(String key) {
+		ENTRIES.remove(key);
+	}
+
+	private static Entry load(String key, Callable<OSClientAKSK> loader) {
+		OSClientAKSK client;
+		try {
+			client = loader.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		Entry entry = new Entry(client);
+		ENTRIES.put(key, entry);
+		return entry;
+	}
+}
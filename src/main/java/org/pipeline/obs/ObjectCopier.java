@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.AbortMultipartUploadRequest;
+import com.obs.services.model.CompleteMultipartUploadRequest;
+import com.obs.services.model.CopyObjectRequest;
+import com.obs.services.model.CopyPartRequest;
+import com.obs.services.model.CopyPartResult;
+import com.obs.services.model.InitiateMultipartUploadRequest;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.PartEtag;
+
+import org.pipeline.obs.utils.SizeUtils;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Copies objects inside OBS without transferring their data. Objects up to
+ * the copy threshold are copied with a single request, keeping all their
+ * metadata; larger objects are copied as parts of a multipart upload, with up
+ * to {@code parallelism} parts in flight.
+ */
+class ObjectCopier {
+
+	static final long DEFAULT_PART_SIZE = 256 * SizeUtils.MB;
+	// the largest object a single copy request accepts
+	static final long DEFAULT_COPY_THRESHOLD = 5 * SizeUtils.GB;
+	static final int DEFAULT_PARALLELISM = 8;
+
+	private final long partSize;
+	private final long copyThreshold;
+	private final int parallelism;
+	private final TransferThrottle throttle;
+	private final RetryPolicy retryPolicy;
+
+	ObjectCopier(long partSize, long copyThreshold, int parallelism, TransferThrottle throttle, RetryPolicy retryPolicy) {
+		if (partSize < MultipartUploader.MIN_PART_SIZE || partSize > MultipartUploader.MAX_PART_SIZE) {
+			throw new IllegalArgumentException("Part size must be between 100KB and 5GB");
+		}
+		if (copyThreshold > DEFAULT_COPY_THRESHOLD) {
+			throw new IllegalArgumentException("Copy threshold must not exceed 5GB");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be greater than 0");
+		}
+		this.partSize = partSize;
+		this.copyThreshold = copyThreshold;
+		this.parallelism = parallelism;
+		this.throttle = throttle;
+		this.retryPolicy = retryPolicy;
+	}
+
+	int getParallelism() {
+		return this.parallelism;
+	}
+
+	TransferThrottle getThrottle() {
+		return this.throttle;
+	}
+
+	RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	boolean isMultipart(long length) {
+		return length > this.copyThreshold && length > this.partSize;
+	}
+
+	/**
+	 * Copies one object of the given length and adds it to the progress.
+	 */
+	void copy(final ObsClient obs, final String fromBucket, final String fromKey, final String toBucket, final String toKey, long length, TransferProgress progress) throws IOException, InterruptedException {
+		if (this.isMultipart(length)) {
+			this.copyParts(obs, fromBucket, fromKey, toBucket, toKey, length, progress);
+		} else {
+			this.retryPolicy.call(new RetryPolicy.Attempt<Void>() {
+				@Override
+				public Void run() throws IOException {
+					ObjectCopier.this.throttle.acquireRequest();
+					obs.copyObject(new CopyObjectRequest(fromBucket, fromKey, toBucket, toKey));
+					return null;
+				}
+			}, fromKey, progress);
+		}
+		progress.addBytes(length);
+		progress.fileDone(toBucket, toKey);
+	}
+
+	/**
+	 * Returns the part size for an object of the given length, growing it up
+	 * to the largest part size when the configured one needs too many parts.
+	 */
+	long partSizeFor(long length) {
+		long size = this.partSize;
+		while ((length + size - 1) / size > MultipartUploader.MAX_PART_COUNT && size < MultipartUploader.MAX_PART_SIZE) {
+			size = Math.min(size * 2, MultipartUploader.MAX_PART_SIZE);
+		}
+		return size;
+	}
+
+	private void copyParts(final ObsClient obs, final String fromBucket, final String fromKey, final String toBucket, final String toKey, final long length, TransferProgress progress) throws IOException, InterruptedException {
+		// checked before the upload is initiated, so a failure leaves nothing behind to abort
+		final long size = this.partSizeFor(length);
+		final int partCount = (int) ((length + size - 1) / size);
+		if (partCount > MultipartUploader.MAX_PART_COUNT) {
+			throw new IOException("Object " + fromKey + " needs more than " + MultipartUploader.MAX_PART_COUNT + " parts of the largest part size");
+		}
+		final RetryPolicy retry = this.retryPolicy;
+		final ObjectMetadata source = retry.call(new RetryPolicy.Attempt<ObjectMetadata>() {
+			@Override
+			public ObjectMetadata run() throws IOException {
+				ObjectCopier.this.throttle.acquireRequest();
+				return obs.getObjectMetadata(fromBucket, fromKey);
+			}
+		}, fromKey, progress);
+		final InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(toBucket, toKey);
+		initRequest.setMetadata(copyableMetadata(source));
+		final String uploadId = retry.call(new RetryPolicy.Attempt<String>() {
+			@Override
+			public String run() throws IOException {
+				ObjectCopier.this.throttle.acquireRequest();
+				return obs.initiateMultipartUpload(initRequest).getUploadId();
+			}
+		}, "initiating copy to " + toKey, progress);
+
+		if (progress.getVerboseLogger() != null) {
+			progress.getVerboseLogger().format("...Multipart copy of %s in %d parts of %d bytes, parallelism %d%n",
+				fromKey, partCount, size, Math.min(this.parallelism, partCount));
+		}
+		final TransferProgress logTo = progress;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, partCount),
+			new NamingThreadFactory(new DaemonThreadFactory(), "obsCopy-" + toKey));
+		boolean completed = false;
+		try {
+			List<Future<PartEtag>> futures = new ArrayList<>(partCount);
+			for (int i = 0; i < partCount; i++) {
+				final int partNumber = i + 1;
+				final long offset = i * size;
+				final long end = Math.min(offset + size, length) - 1;
+				futures.add(executor.submit(new Callable<PartEtag>() {
+					@Override
+					public PartEtag call() throws IOException, InterruptedException {
+						CopyPartResult result = retry.call(new RetryPolicy.Attempt<CopyPartResult>() {
+							@Override
+							public CopyPartResult run() throws IOException {
+								CopyPartRequest request = new CopyPartRequest(uploadId, fromBucket, fromKey, toBucket, toKey, partNumber);
+								request.setByteRangeStart(offset);
+								request.setByteRangeEnd(end);
+								ObjectCopier.this.throttle.acquireRequest();
+								return obs.copyPart(request);
+							}
+						}, fromKey + " part " + partNumber, logTo);
+						return new PartEtag(result.getEtag(), result.getPartNumber());
+					}
+				}));
+			}
+			final List<PartEtag> partEtags = new ArrayList<>(partCount);
+			for (Future<PartEtag> future : futures) {
+				partEtags.add(MultipartUploader.getResult(future));
+			}
+			retry.call(new RetryPolicy.Attempt<Void>() {
+				@Override
+				public Void run() throws IOException {
+					ObjectCopier.this.throttle.acquireRequest();
+					obs.completeMultipartUpload(new CompleteMultipartUploadRequest(toBucket, toKey, uploadId, partEtags));
+					return null;
+				}
+			}, "completing copy to " + toKey, progress);
+			completed = true;
+		} finally {
+			executor.shutdownNow();
+			if (!completed) {
+				try {
+					obs.abortMultipartUpload(new AbortMultipartUploadRequest(toBucket, toKey, uploadId));
+				} catch (ObsException e) {
+					// the upload expires on its own if it cannot be aborted now
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the metadata a multipart copy can carry over. OBS reports user
+	 * metadata mixed with system headers, so only the content headers and the
+	 * metadata this plugin writes itself are kept.
+	 */
+	private static ObjectMetadata copyableMetadata(ObjectMetadata source) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentType(source.getContentType());
+		metadata.setContentEncoding(source.getContentEncoding());
+		Object originalLength = source.getUserMetadata(Compression.ORIGINAL_LENGTH);
+		if (originalLength != null) {
+			metadata.addUserMetadata(Compression.ORIGINAL_LENGTH, String.valueOf(originalLength));
+		}
+		return metadata;
+	}
+}
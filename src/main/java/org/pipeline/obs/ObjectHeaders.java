@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.obs.services.ObsClient;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.SetObjectMetadataRequest;
+
+import org.pipeline.obs.utils.MimeTypes;
+
+/**
+ * User metadata and content headers applied to every uploaded object.
+ */
+class ObjectHeaders implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final HashMap<String, String> userMetadata;
+	private final String contentType;
+	private final String cacheControl;
+
+	ObjectHeaders(Map<String, String> userMetadata, String contentType, String cacheControl) {
+		this.userMetadata = new HashMap<>(userMetadata);
+		this.contentType = contentType;
+		this.cacheControl = cacheControl;
+	}
+
+	/**
+	 * Returns new metadata for the object, with the configured content type
+	 * or one detected from the key.
+	 */
+	ObjectMetadata toMetadata(String key) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		for (Map.Entry<String, String> entry : this.userMetadata.entrySet()) {
+			metadata.addUserMetadata(entry.getKey(), entry.getValue());
+		}
+		metadata.setContentType(this.contentType != null ? this.contentType : MimeTypes.detect(key));
+		return metadata;
+	}
+
+	/**
+	 * Sets the Cache-Control header of an uploaded object. The OBS client drops
+	 * Cache-Control from the metadata of a PUT or an initiated upload and only
+	 * sends it when updating metadata, so this costs one more request, throttled
+	 * and retried like the upload. It is skipped when no cache control is
+	 * configured.
+	 */
+	void applyCacheControl(final ObsClient obs, final String bucket, final String key, MultipartUploader uploader, TransferProgress progress) throws IOException, InterruptedException {
+		if (this.cacheControl == null) {
+			return;
+		}
+		final SetObjectMetadataRequest request = new SetObjectMetadataRequest(bucket, key);
+		request.setRemoveUnset(false);
+		request.setCacheControl(this.cacheControl);
+		final TransferThrottle throttle = uploader.getThrottle();
+		uploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+			@Override
+			public Void run() throws IOException {
+				throttle.acquireRequest();
+				obs.setObjectMetadata(request);
+				return null;
+			}
+		}, "setting Cache-Control of " + key, progress);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.obs.services.ObsClient;
+import com.obs.services.ObsConfiguration;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Keeps one {@link ObsClient} per endpoint, credentials and connection
+ * settings in the JVM it runs in (usually an agent), so consecutive uploads
+ * reuse warm connections. Clients that stay unused for
+ * {@link #IDLE_TIMEOUT_MILLIS} are closed.
+ */
+final class ObsClientPool {
+
+	private static final Logger LOGGER = Logger.getLogger(ObsClientPool.class.getName());
+
+	static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(
+		Long.getLong(ObsClientPool.class.getName() + ".idleTimeoutMinutes", 5));
+
+	private static final Map<String, Entry> ENTRIES = new HashMap<>();
+	private static final Map<ObsClient, Entry> LEASED = new IdentityHashMap<>();
+	private static ScheduledExecutorService evictor;
+	private static boolean shutdownHookInstalled;
+
+	private static final class Entry {
+		private final String key;
+		private final ObsClient client;
+		private int leases;
+		private long lastUsed;
+
+		Entry(String key, ObsClient client) {
+			this.key = key;
+			this.client = client;
+		}
+	}
+
+	private ObsClientPool() {
+		//
+	}
+
+	/**
+	 * Returns the shared client for the given settings, creating it if needed.
+	 * Every call must be paired with {@link #release(ObsClient)}.
+	 */
+	static synchronized ObsClient acquire(String key, String accessKey, String secretKey, ObsConfiguration config) {
+		Entry entry = ENTRIES.get(key);
+		if (entry == null) {
+			entry = new Entry(key, new ObsClient(accessKey, secretKey, config));
+			ENTRIES.put(key, entry);
+			LEASED.put(entry.client, entry);
+			startEvictor();
+		}
+		entry.leases++;
+		entry.lastUsed = System.currentTimeMillis();
+		return entry.client;
+	}
+
+	static synchronized void release(ObsClient client) {
+		Entry entry = LEASED.get(client);
+		if (entry != null && entry.leases > 0) {
+			entry.leases--;
+			entry.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Closes every pooled client. Clients still in use are closed as well.
+	 */
+	static synchronized void shutdown() {
+		for (Entry entry : ENTRIES.values()) {
+			close(entry);
+		}
+		ENTRIES.clear();
+		LEASED.clear();
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+	}
+
+	static synchronized void evictIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = ENTRIES.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.leases == 0 && now - entry.lastUsed >= IDLE_TIMEOUT_MILLIS) {
+				it.remove();
+				LEASED.remove(entry.client);
+				close(entry);
+			}
+		}
+	}
+
+	private static void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(
+			new NamingThreadFactory(new DaemonThreadFactory(), "ObsClientPool evictor"));
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		if (!shutdownHookInstalled) {
+			Runtime.getRuntime().addShutdownHook(new Thread("ObsClientPool shutdown") {
+				@Override
+				public void run() {
+					shutdown();
+				}
+			});
+			shutdownHookInstalled = true;
+		}
+	}
+
+	private static void close(Entry entry) {
+		try {
+			entry.client.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to close OBS client " + entry.key, e);
+		}
+	}
+}
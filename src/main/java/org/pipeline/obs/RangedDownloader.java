@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.GetObjectRequest;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.ObsObject;
+
+import org.pipeline.obs.utils.SizeUtils;
+import hudson.AbortException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Downloads a single object from OBS, splitting it into byte ranges that are
+ * fetched concurrently when the object is larger than the threshold. Runs on
+ * the agent; every worker writes its range into a preallocated file at its
+ * own offset, and the file only replaces the target once it is complete.
+ * Objects stored with gzip content encoding are decompressed. A failed range,
+ * or a failed download of a small object, is retried on its own. Ranges are
+ * requested with the ETag of the object, so a download fails instead of
+ * mixing two versions when the object is replaced meanwhile.
+ */
+public class RangedDownloader implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long DEFAULT_PART_SIZE = 16 * SizeUtils.MB;
+	static final long DEFAULT_RANGE_THRESHOLD = 64 * SizeUtils.MB;
+	static final int DEFAULT_PARALLELISM = 4;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int PRECONDITION_FAILED = 412;
+
+	private final long partSize;
+	private final long rangeThreshold;
+	private final int parallelism;
+	private final TransferThrottle throttle;
+	private final RetryPolicy retryPolicy;
+
+	public RangedDownloader(long partSize, long rangeThreshold, int parallelism) {
+		this(partSize, rangeThreshold, parallelism, TransferThrottle.NONE, RetryPolicy.DEFAULT);
+	}
+
+	RangedDownloader(long partSize, long rangeThreshold, int parallelism, TransferThrottle throttle, RetryPolicy retryPolicy) {
+		if (partSize < MultipartUploader.MIN_PART_SIZE) {
+			throw new IllegalArgumentException("Part size must be at least 100KB");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be greater than 0");
+		}
+		this.partSize = partSize;
+		this.rangeThreshold = rangeThreshold;
+		this.parallelism = parallelism;
+		this.throttle = throttle;
+		this.retryPolicy = retryPolicy;
+	}
+
+	public long getPartSize() {
+		return this.partSize;
+	}
+
+	public long getRangeThreshold() {
+		return this.rangeThreshold;
+	}
+
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	TransferThrottle getThrottle() {
+		return this.throttle;
+	}
+
+	RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	public boolean isRanged(long length) {
+		return length >= this.rangeThreshold && length > this.partSize;
+	}
+
+	/**
+	 * Downloads the object to the target file, creating parent directories as
+	 * needed. The length is the object size as listed by OBS; the metadata of
+	 * the object is only fetched when it is large enough for ranges.
+	 */
+	public void download(final ObsClient obs, final String bucket, final String key, File target, long length, final TransferProgress progress) throws IOException, InterruptedException {
+		if (!this.isRanged(length)) {
+			this.download(obs, bucket, key, target, null, progress);
+			return;
+		}
+		ObjectMetadata metadata = this.retryPolicy.call(new RetryPolicy.Attempt<ObjectMetadata>() {
+			@Override
+			public ObjectMetadata run() throws IOException {
+				RangedDownloader.this.throttle.acquireRequest();
+				return obs.getObjectMetadata(bucket, key);
+			}
+		}, key, progress);
+		this.download(obs, bucket, key, target, metadata, progress);
+	}
+
+	/**
+	 * Downloads the object described by the metadata of a HEAD request, or
+	 * the whole object in one request when the metadata is null.
+	 */
+	public void download(final ObsClient obs, final String bucket, final String key, File target, ObjectMetadata metadata, final TransferProgress progress) throws IOException, InterruptedException {
+		File parent = target.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new FileNotFoundException("Cannot create directory " + parent);
+		}
+		final File temp = new File(parent, "." + target.getName() + ".obsdownload");
+		boolean completed = false;
+		try {
+			// ranges of a compressed object cannot be decoded on their own
+			if (metadata != null && this.isRanged(metadata.getContentLength()) && !Compression.isGzip(metadata)) {
+				this.downloadRanges(obs, bucket, key, temp, metadata.getContentLength(), metadata.getEtag(), progress);
+			} else {
+				this.retryPolicy.call(new RetryPolicy.Attempt<Void>() {
+					@Override
+					public Void run() throws IOException {
+						RangedDownloader.this.throttle.acquireRequest();
+						ObsObject object = obs.getObject(bucket, key);
+						InputStream content = RangedDownloader.this.throttle.limit(object.getObjectContent());
+						try (InputStream in = Compression.isGzip(object.getMetadata()) ? new GZIPInputStream(content) : content) {
+							progress.addBytes(Files.copy(in, temp.toPath(), StandardCopyOption.REPLACE_EXISTING));
+						}
+						return null;
+					}
+				}, key, progress);
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			completed = true;
+		} catch (ObsException e) {
+			if (e.getResponseCode() == PRECONDITION_FAILED) {
+				throw new AbortException(String.format("obs://%s/%s was replaced during the download", bucket, key));
+			}
+			throw e;
+		} finally {
+			if (!completed) {
+				Files.deleteIfExists(temp.toPath());
+			}
+		}
+		progress.fileDone(bucket, key);
+	}
+
+	private void downloadRanges(final ObsClient obs, final String bucket, final String key, File temp, final long length, final String etag, final TransferProgress progress) throws IOException, InterruptedException {
+		final long size = this.partSize;
+		final int partCount = (int) ((length + size - 1) / size);
+		int threads = Math.min(this.parallelism, partCount);
+		if (progress.getVerboseLogger() != null) {
+			progress.getVerboseLogger().format("...Ranged download of %s in %d parts of %d bytes, parallelism %d%n",
+				key, partCount, size, threads);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+			new NamingThreadFactory(new DaemonThreadFactory(), "obsDownload-" + temp.getName()));
+		try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+			file.setLength(length);
+			final FileChannel channel = file.getChannel();
+			List<Future<Void>> futures = new ArrayList<>(partCount);
+			for (int i = 0; i < partCount; i++) {
+				final long offset = i * size;
+				final long end = Math.min(offset + size, length) - 1;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException, InterruptedException {
+						return RangedDownloader.this.retryPolicy.call(new RetryPolicy.Attempt<Void>() {
+							@Override
+							public Void run() throws IOException {
+								GetObjectRequest request = new GetObjectRequest(bucket, key);
+								request.setRangeStart(offset);
+								request.setRangeEnd(end);
+								// every range has to come from the same version of the object
+								request.setIfMatchTag(etag);
+								RangedDownloader.this.throttle.acquireRequest();
+								try (InputStream in = RangedDownloader.this.throttle.limit(obs.getObject(request).getObjectContent())) {
+									writeAt(in, channel, offset, end - offset + 1);
+								}
+								progress.addBytes(end - offset + 1);
+								return null;
+							}
+						}, key + " range " + offset + "-" + end, progress);
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				MultipartUploader.getResult(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Copies exactly {@code count} bytes from the stream into the channel,
+	 * starting at the given position.
+	 */
+	static void writeAt(InputStream in, FileChannel channel, long position, long count) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long written = 0;
+		while (written < count) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, count - written));
+			if (read < 0) {
+				throw new IOException("Unexpected end of range at " + (position + written));
+			}
+			wrapped.clear().limit(read);
+			while (wrapped.hasRemaining()) {
+				written += channel.write(wrapped, position + written);
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Counts the requests {@link RetryPolicy} sends for one step: every attempt,
+ * the retries among them, the ones that failed, and their latency. Latencies
+ * are kept as a uniform sample of at most {@link #SAMPLE_SIZE} values, so the
+ * stats stay small when they are sent back from the agent.
+ */
+class RequestStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// the reservoir size Dropwizard uses for its histograms
+	static final int SAMPLE_SIZE = 1028;
+
+	private long requests;
+	private long retries;
+	private long failures;
+	private long totalLatency;
+	private final long[] latencies = new long[SAMPLE_SIZE];
+
+	/**
+	 * Records one attempt and how long it took, in nanoseconds.
+	 */
+	synchronized void record(long latency, boolean success) {
+		if (this.requests < SAMPLE_SIZE) {
+			this.latencies[(int) this.requests] = latency;
+		} else {
+			long slot = ThreadLocalRandom.current().nextLong(this.requests + 1);
+			if (slot < SAMPLE_SIZE) {
+				this.latencies[(int) slot] = latency;
+			}
+		}
+		this.requests++;
+		this.totalLatency += latency;
+		if (!success) {
+			this.failures++;
+		}
+	}
+
+	synchronized void retried() {
+		this.retries++;
+	}
+
+	synchronized long getRequests() {
+		return this.requests;
+	}
+
+	synchronized long getRetries() {
+		return this.retries;
+	}
+
+	synchronized long getFailures() {
+		return this.failures;
+	}
+
+	/**
+	 * Returns the summed latency of all attempts, in nanoseconds.
+	 */
+	synchronized long getTotalLatency() {
+		return this.totalLatency;
+	}
+
+	/**
+	 * Returns the sampled latencies, in nanoseconds.
+	 */
+	synchronized long[] getLatencies() {
+		return Arrays.copyOf(this.latencies, (int) Math.min(this.requests, SAMPLE_SIZE));
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.huawei.openstack4j.api.exceptions.ResponseException;
+import com.obs.services.exception.ObsException;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+
+/**
+ * Retries a single unit of work, such as one part, one range or one file,
+ * when OBS or FunctionGraph fails with an error that is likely to go away:
+ * throttling, an unavailable or failing server, or a broken connection.
+ * Waits grow exponentially with full jitter, and a {@code Retry-After} sent
+ * by the server is honored.
+ */
+class RetryPolicy implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int DEFAULT_MAX_RETRIES = 3;
+	static final long DEFAULT_BASE_DELAY = 500;
+	static final long DEFAULT_MAX_DELAY = 20000;
+
+	static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+
+	// upper bound for waits requested by the server
+	private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toMillis(5);
+
+	private final int maxRetries;
+	private final long baseDelay;
+	private final long maxDelay;
+
+	RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Returns the policy configured by {@code withOBS}. Fails naming the
+	 * variable when a setting is not a non-negative number.
+	 */
+	static RetryPolicy of(EnvVars vars) {
+		return new RetryPolicy(
+			OBSClientFactory.getInt(vars, OBSClientFactory.OBS_MAX_RETRIES, DEFAULT_MAX_RETRIES),
+			OBSClientFactory.getLong(vars, OBSClientFactory.OBS_RETRY_BASE_DELAY, DEFAULT_BASE_DELAY),
+			OBSClientFactory.getLong(vars, OBSClientFactory.OBS_RETRY_MAX_DELAY, DEFAULT_MAX_DELAY));
+	}
+
+	int getMaxRetries() {
+		return this.maxRetries;
+	}
+
+	/**
+	 * A unit of work that can be repeated from the start.
+	 */
+	interface Attempt<T> {
+		T run() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Runs an idempotent request, retrying transient failures.
+	 */
+	<T> T call(Attempt<T> attempt, String what, PrintStream logger) throws IOException, InterruptedException {
+		return this.execute(attempt, what, logger, null, false);
+	}
+
+	/**
+	 * Runs an idempotent request of a transfer, retrying transient failures
+	 * and counting the attempts in the transfer's request stats.
+	 */
+	<T> T call(Attempt<T> attempt, String what, TransferProgress progress) throws IOException, InterruptedException {
+		return this.execute(attempt, what, progress.getLogger(), progress.getRequestStats(), false);
+	}
+
+	/**
+	 * Runs a request that must not be repeated once the server processed it,
+	 * retrying only when it was throttled or refused as unavailable.
+	 */
+	<T> T callIfRejected(Attempt<T> attempt, String what, PrintStream logger) throws IOException, InterruptedException {
+		return this.execute(attempt, what, logger, null, true);
+	}
+
+	/**
+	 * Like {@link #callIfRejected(Attempt, String, PrintStream)}, counting the
+	 * attempts in the given stats.
+	 */
+	<T> T callIfRejected(Attempt<T> attempt, String what, PrintStream logger, RequestStats stats) throws IOException, InterruptedException {
+		return this.execute(attempt, what, logger, stats, true);
+	}
+
+	private <T> T execute(Attempt<T> attempt, String what, PrintStream logger, RequestStats stats, boolean rejectedOnly) throws IOException, InterruptedException {
+		for (int retry = 0;; retry++) {
+			long started = System.nanoTime();
+			try {
+				T result = attempt.run();
+				if (stats != null) {
+					stats.record(System.nanoTime() - started, true);
+				}
+				return result;
+			} catch (IOException | RuntimeException e) {
+				if (stats != null) {
+					stats.record(System.nanoTime() - started, false);
+				}
+				if (retry >= this.maxRetries || !(rejectedOnly ? isRejected(e) : isTransient(e))) {
+					throw e;
+				}
+				if (stats != null) {
+					stats.retried();
+				}
+				long delay = this.delay(retry, e);
+				if (logger != null) {
+					logger.format("...Retrying %s in %d ms (%d/%d): %s%n", what, delay, retry + 1, this.maxRetries, describe(e));
+				}
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	/**
+	 * Returns the server's {@code Retry-After}, or a random wait of up to
+	 * {@code baseDelay * 2^retry}, capped at {@code maxDelay}.
+	 */
+	long delay(int retry, Throwable e) {
+		long retryAfter = retryAfter(e);
+		if (retryAfter >= 0) {
+			return Math.min(retryAfter, MAX_RETRY_AFTER);
+		}
+		long ceiling = Math.min(this.maxDelay, this.baseDelay << Math.min(retry, 20));
+		return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+	}
+
+	static boolean isTransient(Throwable e) {
+		if (e instanceof ObsException) {
+			int code = ((ObsException) e).getResponseCode();
+			// no response at all means the connection failed
+			return code <= 0 ? e.getCause() instanceof IOException : isRetryableStatus(code);
+		}
+		if (e instanceof ResponseException) {
+			return isRetryableStatus(((ResponseException) e).getStatus());
+		}
+		if (e instanceof SocketTimeoutException) {
+			return true;
+		}
+		return e instanceof IOException && !(e instanceof InterruptedIOException)
+			&& !(e instanceof FileNotFoundException) && !(e instanceof AbortException);
+	}
+
+	static boolean isRejected(Throwable e) {
+		int code = -1;
+		if (e instanceof ObsException) {
+			code = ((ObsException) e).getResponseCode();
+		} else if (e instanceof ResponseException) {
+			code = ((ResponseException) e).getStatus();
+		}
+		return code == 429 || code == 503;
+	}
+
+	private static boolean isRetryableStatus(int code) {
+		return code == 408 || code == 429 || code >= 500 && code != 501 && code != 505;
+	}
+
+	/**
+	 * Returns the wait in milliseconds requested by the server, or -1. The
+	 * OBS client only keeps the response headers it knows, so the header may
+	 * have been dropped before it gets here.
+	 */
+	private static long retryAfter(Throwable e) {
+		if (!(e instanceof ObsException) || ((ObsException) e).getResponseHeaders() == null) {
+			return -1;
+		}
+		for (Map.Entry<String, String> header : ((ObsException) e).getResponseHeaders().entrySet()) {
+			if ("Retry-After".equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+				try {
+					return TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().trim()));
+				} catch (NumberFormatException ex) {
+					// HTTP dates are rare for OBS, fall back to backoff
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a one-line description of the failure for the build log.
+	 */
+	static String describe(Throwable e) {
+		if (e instanceof ObsException && ((ObsException) e).getResponseCode() > 0) {
+			ObsException obsException = (ObsException) e;
+			return obsException.getResponseCode() + " " + StringUtils.defaultString(obsException.getErrorCode(), obsException.getResponseStatus());
+		}
+		if (e instanceof ResponseException) {
+			// toString() of the FunctionGraph exceptions needs a newer Guava than Jenkins provides
+			return StringUtils.trim(((ResponseException) e).getStatus() + " " + StringUtils.defaultString(e.getMessage()));
+		}
+		return StringUtils.defaultIfEmpty(e.getMessage(), e.toString());
+	}
+}
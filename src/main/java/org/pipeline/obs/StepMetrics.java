@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import hudson.EnvVars;
+import hudson.model.Run;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Records what the steps did, on the controller: in the Dropwizard registry
+ * of the Metrics plugin, where the Prometheus plugin and other reporters pick
+ * it up, and in the {@link HuaweiCloudMetricsAction} of the build. Dropwizard
+ * metrics have no tags, so the step and region are part of the name, e.g.
+ * {@code huaweicloud.obs.obsUpload.cn-north-4.bytes}. Buckets and functions
+ * are only shown per build, and regions beyond {@link #MAX_REGIONS} are
+ * counted as {@code other}, so the registry does not grow without limit.
+ * Recording never fails a step.
+ */
+final class StepMetrics {
+
+	private static final Logger LOGGER = Logger.getLogger(StepMetrics.class.getName());
+
+	static final String PREFIX = "huaweicloud";
+
+	// more than there are regions, custom endpoints may add some
+	static final int MAX_REGIONS = 64;
+
+	private static final Set<String> REGIONS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private StepMetrics() {
+		//
+	}
+
+	/**
+	 * Records the bytes, objects, throughput and requests of an OBS transfer.
+	 */
+	static void recordTransfer(StepContext context, String step, String bucket, TransferProgress progress) {
+		recordTransfer(context, step, region(context), bucket, progress);
+	}
+
+	/**
+	 * Records a transfer to a bucket in a region other than the one of the
+	 * surrounding {@code withOBS}. The duration and throughput are only
+	 * recorded once the progress was finished where the transfer ran.
+	 */
+	static void recordTransfer(StepContext context, String step, String region, String bucket, TransferProgress progress) {
+		boolean finished = progress.isFinished();
+		if (!finished) {
+			LOGGER.log(Level.FINE, "Transfer of {0} to obs://{1} was not finished, recording no duration", new Object[] {step, bucket});
+		}
+		MetricRegistry registry = registry();
+		if (registry != null) {
+			String base = MetricRegistry.name(PREFIX, "obs", step, regionSegment(region));
+			registry.meter(MetricRegistry.name(base, "bytes")).mark(progress.getBytes());
+			registry.meter(MetricRegistry.name(base, "objects")).mark(progress.getFiles());
+			if (finished && progress.getBytes() > 0) {
+				registry.histogram(MetricRegistry.name(base, "throughput")).update(progress.getRate());
+			}
+			recordRequests(registry, base, progress.getRequestStats());
+		}
+		HuaweiCloudMetricsAction action = action(context);
+		if (action != null) {
+			action.add(step, "obs://" + bucket, region, progress.getFiles(), progress.getBytes(),
+				finished ? TimeUnit.NANOSECONDS.toMillis(progress.getDuration()) : 0, 0, progress.getRequestStats());
+		}
+	}
+
+	/**
+	 * Records the invocations of one function by a step, with how many failed
+	 * and how long they took together.
+	 */
+	static void recordInvocations(StepContext context, String step, String functionName, String functionUrn,
+		int invocations, int failed, long duration, RequestStats stats) {
+		String region = region(context);
+		String function = functionLabel(functionName, functionUrn);
+		MetricRegistry registry = registry();
+		if (registry != null) {
+			String base = MetricRegistry.name(PREFIX, "functiongraph", step, regionSegment(region));
+			registry.meter(MetricRegistry.name(base, "invocations")).mark(invocations);
+			registry.meter(MetricRegistry.name(base, "failures")).mark(failed);
+			recordRequests(registry, base, stats);
+		}
+		HuaweiCloudMetricsAction action = action(context);
+		if (action != null) {
+			action.add(step, function, region, invocations, 0, TimeUnit.NANOSECONDS.toMillis(duration), failed, stats);
+		}
+	}
+
+	/**
+	 * Records the time taken to authenticate with IAM and look up the project.
+	 */
+	static void recordAuthentication(String region, long duration) {
+		MetricRegistry registry = registry();
+		if (registry != null) {
+			registry.timer(MetricRegistry.name(PREFIX, "iam", regionSegment(region), "authentication")).update(duration, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Records the time taken to list the functions of a project.
+	 */
+	static void recordLookup(String region, long duration) {
+		MetricRegistry registry = registry();
+		if (registry != null) {
+			registry.timer(MetricRegistry.name(PREFIX, "functiongraph", regionSegment(region), "lookup")).update(duration, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private static void recordRequests(MetricRegistry registry, String base, RequestStats stats) {
+		registry.meter(MetricRegistry.name(base, "requests")).mark(stats.getRequests());
+		registry.meter(MetricRegistry.name(base, "retries")).mark(stats.getRetries());
+		registry.meter(MetricRegistry.name(base, "errors")).mark(stats.getFailures());
+		Timer latency = registry.timer(MetricRegistry.name(base, "latency"));
+		for (long sample : stats.getLatencies()) {
+			latency.update(sample, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Returns the function name, or the name part of the URN.
+	 */
+	static String functionLabel(String functionName, String functionUrn) {
+		if (StringUtils.isNotEmpty(functionName)) {
+			return functionName;
+		}
+		// urn:fss:<region>:<project>:function:<package>:<name>[:<version>]
+		String[] parts = StringUtils.defaultString(functionUrn).split(":");
+		return parts.length > 6 ? parts[6] : StringUtils.defaultString(functionUrn);
+	}
+
+	/**
+	 * Returns the region as a single level of the metric name, or
+	 * {@code other} once {@link #MAX_REGIONS} different regions were seen.
+	 */
+	static String regionSegment(String region) {
+		String segment = StringUtils.isEmpty(region) ? "default" : region.replace('.', '_');
+		if (REGIONS.contains(segment)) {
+			return segment;
+		}
+		synchronized (REGIONS) {
+			if (REGIONS.contains(segment) || REGIONS.size() < MAX_REGIONS) {
+				REGIONS.add(segment);
+				return segment;
+			}
+		}
+		return "other";
+	}
+
+	private static String region(StepContext context) {
+		try {
+			EnvVars vars = context.get(EnvVars.class);
+			return vars != null ? vars.get(OBSClientFactory.OBS_REGION) : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static MetricRegistry registry() {
+		try {
+			return Metrics.metricRegistry();
+		} catch (RuntimeException | AssertionError e) {
+			// thrown while Jenkins or the Metrics plugin is not started
+			LOGGER.log(Level.FINE, "Metrics registry not available", e);
+			return null;
+		}
+	}
+
+	private static HuaweiCloudMetricsAction action(StepContext context) {
+		try {
+			Run<?, ?> run = context.get(Run.class);
+			return run != null ? HuaweiCloudMetricsAction.of(run) : null;
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Build not available for metrics", e);
+			return null;
+		}
+	}
+}
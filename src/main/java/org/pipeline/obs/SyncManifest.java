@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+import com.obs.services.model.DeleteObjectsRequest;
+import com.obs.services.model.ListObjectsRequest;
+import com.obs.services.model.ObjectListing;
+import com.obs.services.model.ObjectMetadata;
+import com.obs.services.model.ObsObject;
+
+import hudson.Util;
+
+/**
+ * Remote state of an upload prefix used by sync uploads to skip files that
+ * did not change since the last upload.
+ *
+ * A file is unchanged when the remote object has the same size and the
+ * manifest written by the previous sync recorded the same size and
+ * modification time for it, which needs no hashing. Otherwise the file is
+ * hashed, and it is unchanged when the remote object's ETag is its MD5 or the
+ * manifest recorded that MD5 (multipart uploads do not have MD5 ETags).
+ *
+ * Each manifest entry holds the MD5, size and modification time of a file,
+ * separated by spaces; entries of older manifests hold only the MD5.
+ */
+class SyncManifest {
+
+	static final String MANIFEST_NAME = ".obs-sync-manifest";
+
+	private static final int DELETE_BATCH_SIZE = 1000;
+
+	private final String bucket;
+	private final String prefix;
+	private final Map<String, ObjectMetadata> remoteObjects;
+	private final Properties previous;
+	private final Map<String, String> current = new ConcurrentHashMap<>();
+	private final MultipartUploader uploader;
+	private final TransferProgress progress;
+
+	private SyncManifest(String bucket, String prefix, Map<String, ObjectMetadata> remoteObjects, Properties previous, MultipartUploader uploader, TransferProgress progress) {
+		this.bucket = bucket;
+		this.prefix = prefix;
+		this.remoteObjects = remoteObjects;
+		this.previous = previous;
+		this.uploader = uploader;
+		this.progress = progress;
+	}
+
+	/**
+	 * Lists the objects below the prefix and reads the manifest of the previous
+	 * sync. Its requests, and the ones that delete objects and save the
+	 * manifest, are throttled and retried like the uploads.
+	 */
+	static SyncManifest load(final ObsClient obs, final String bucket, final String prefix, final MultipartUploader uploader, TransferProgress progress) throws IOException, InterruptedException {
+		Map<String, ObjectMetadata> remoteObjects = new HashMap<>();
+		final ListObjectsRequest request = new ListObjectsRequest(bucket);
+		request.setPrefix(prefix);
+		request.setMaxKeys(1000);
+		ObjectListing listing;
+		do {
+			listing = uploader.getRetryPolicy().call(new RetryPolicy.Attempt<ObjectListing>() {
+				@Override
+				public ObjectListing run() throws IOException {
+					uploader.getThrottle().acquireRequest();
+					return obs.listObjects(request);
+				}
+			}, "listing " + prefix, progress);
+			for (ObsObject object : listing.getObjects()) {
+				remoteObjects.put(object.getObjectKey(), object.getMetadata());
+			}
+			request.setMarker(listing.getNextMarker());
+		} while (listing.isTruncated());
+
+		final Properties previous = new Properties();
+		if (remoteObjects.containsKey(prefix + MANIFEST_NAME)) {
+			try {
+				uploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+					@Override
+					public Void run() throws IOException {
+						uploader.getThrottle().acquireRequest();
+						previous.clear();
+						try (InputStream in = obs.getObject(bucket, prefix + MANIFEST_NAME).getObjectContent()) {
+							previous.load(in);
+						}
+						return null;
+					}
+				}, prefix + MANIFEST_NAME, progress);
+			} catch (ObsException e) {
+				// a missing or unreadable manifest only means more files are uploaded
+				previous.clear();
+			}
+		}
+		return new SyncManifest(bucket, prefix, remoteObjects, previous, uploader, progress);
+	}
+
+	/**
+	 * Records the state of a local file and tells whether it has to be
+	 * uploaded. The file is only hashed when its size or modification time
+	 * differ from the manifest.
+	 */
+	boolean isChanged(String key, File file, long length, long lastModified) throws IOException {
+		ObjectMetadata remote = this.remoteObjects.get(key);
+		boolean sameSize = remote != null && remote.getContentLength() != null && remote.getContentLength() == length;
+		String[] recorded = StringUtils.split(this.previous.getProperty(key, ""), ' ');
+		if (sameSize && recorded.length == 3 && recorded[1].equals(Long.toString(length)) && recorded[2].equals(Long.toString(lastModified))) {
+			this.current.put(key, recorded[0] + ' ' + length + ' ' + lastModified);
+			return false;
+		}
+
+		String md5 = md5Hex(file);
+		this.current.put(key, md5 + ' ' + length + ' ' + lastModified);
+		if (!sameSize) {
+			return true;
+		}
+		String etag = remote.getEtag() != null ? remote.getEtag().replace("\"", "") : "";
+		return !md5.equalsIgnoreCase(etag) && !(recorded.length > 0 && md5.equals(recorded[0]));
+	}
+
+	/**
+	 * Returns the remote objects below the prefix that have no local file any more.
+	 */
+	List<String> getRemovedKeys() {
+		List<String> removed = new ArrayList<>();
+		for (String key : this.remoteObjects.keySet()) {
+			if (!this.current.containsKey(key) && !key.equals(this.prefix + MANIFEST_NAME)) {
+				removed.add(key);
+			}
+		}
+		return removed;
+	}
+
+	void deleteObjects(final ObsClient obs, List<String> keys) throws IOException, InterruptedException {
+		for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE) {
+			final DeleteObjectsRequest request = new DeleteObjectsRequest(this.bucket);
+			request.setQuiet(true);
+			for (String key : keys.subList(i, Math.min(i + DELETE_BATCH_SIZE, keys.size()))) {
+				request.addKeyAndVersion(key);
+			}
+			this.uploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+				@Override
+				public Void run() throws IOException {
+					SyncManifest.this.uploader.getThrottle().acquireRequest();
+					obs.deleteObjects(request);
+					return null;
+				}
+			}, "deleting removed objects below " + this.prefix, this.progress);
+		}
+	}
+
+	/**
+	 * Stores the state of all local files next to the uploaded objects.
+	 */
+	void save(final ObsClient obs) throws IOException, InterruptedException {
+		Properties properties = new Properties();
+		properties.putAll(this.current);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		properties.store(out, "OBS sync manifest");
+		final byte[] content = out.toByteArray();
+		this.uploader.getRetryPolicy().call(new RetryPolicy.Attempt<Void>() {
+			@Override
+			public Void run() throws IOException {
+				SyncManifest.this.uploader.getThrottle().acquireRequest();
+				obs.putObject(SyncManifest.this.bucket, SyncManifest.this.prefix + MANIFEST_NAME, new ByteArrayInputStream(content));
+				return null;
+			}
+		}, this.prefix + MANIFEST_NAME, this.progress);
+	}
+
+	static String md5Hex(File file) throws IOException {
+		MessageDigest digest = Checksums.md5();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return Util.toHexString(digest.digest());
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+/**
+ * Progress of all transfers of one step. Concurrent parts and files add to
+ * the same counters, and a progress line is written at most once per
+ * interval, so the build log grows with the duration of the upload rather
+ * than with its size. Bytes are counted when a part or file is done, so
+ * retried data is counted once. Created on the agent and sent back to the
+ * controller for the summary and the step metrics.
+ */
+class TransferProgress implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+	private final transient PrintStream logger;
+	private final boolean verbose;
+	private final int totalFiles;
+	private final long interval;
+	private final String action;
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger files = new AtomicInteger();
+	private final RequestStats requestStats = new RequestStats();
+	// System.nanoTime() of the JVM the transfer runs in, meaningless anywhere else
+	private final transient long startedAt = System.nanoTime();
+	private final transient AtomicLong reportedAt = new AtomicLong(this.startedAt);
+	private volatile long duration = -1;
+
+	TransferProgress(PrintStream logger, boolean verbose, int totalFiles) {
+		this(logger, verbose, totalFiles, "Uploaded", DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * @param action past tense verb for the log, e.g. "Copied"
+	 */
+	TransferProgress(PrintStream logger, boolean verbose, int totalFiles, String action) {
+		this(logger, verbose, totalFiles, action, DEFAULT_INTERVAL);
+	}
+
+	TransferProgress(PrintStream logger, boolean verbose, int totalFiles, String action, long interval) {
+		this.logger = logger;
+		this.verbose = verbose;
+		this.totalFiles = totalFiles;
+		this.action = action;
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns the stream for messages that are always shown, such as retries.
+	 */
+	PrintStream getLogger() {
+		return this.logger;
+	}
+
+	/**
+	 * Returns the stream for per-file messages, or null in quiet mode.
+	 */
+	PrintStream getVerboseLogger() {
+		return this.verbose ? this.logger : null;
+	}
+
+	long getBytes() {
+		return this.bytes.get();
+	}
+
+	int getFiles() {
+		return this.files.get();
+	}
+
+	/**
+	 * Returns the stats of the requests sent for the transfers.
+	 */
+	RequestStats getRequestStats() {
+		return this.requestStats;
+	}
+
+	/**
+	 * Returns the time from start to {@link #finish()}, or until now while
+	 * the transfer runs, in nanoseconds. A copy sent to the controller is
+	 * always finished, so the duration is the one measured on the agent.
+	 */
+	long getDuration() {
+		return this.duration >= 0 ? this.duration : System.nanoTime() - this.startedAt;
+	}
+
+	boolean isFinished() {
+		return this.duration >= 0;
+	}
+
+	/**
+	 * Returns the average rate in bytes per second.
+	 */
+	long getRate() {
+		return rate(this.bytes.get(), this.getDuration());
+	}
+
+	void addBytes(long count) {
+		this.bytes.addAndGet(count);
+		this.report();
+	}
+
+	void fileDone(String bucket, String key) {
+		this.fileDone(String.format("obs://%s/%s", bucket, key));
+	}
+
+	/**
+	 * Counts a file, described as e.g. "obs://bucket/key" in the log.
+	 */
+	void fileDone(String description) {
+		this.files.incrementAndGet();
+		if (this.verbose && this.totalFiles > 1) {
+			this.logger.format("...%s %s%n", this.action, description);
+		}
+		this.report();
+	}
+
+	/**
+	 * Counts files that were uploaded as one object, e.g. archive entries.
+	 */
+	void addFiles(int count) {
+		this.files.addAndGet(count);
+	}
+
+	/**
+	 * Stops the clock for the summary. Only the first call counts.
+	 */
+	void finish() {
+		if (this.duration < 0) {
+			this.duration = System.nanoTime() - this.startedAt;
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// the start time does not travel, so stop the clock before leaving this JVM
+		this.finish();
+		out.defaultWriteObject();
+	}
+
+	private void report() {
+		if (!this.verbose) {
+			return;
+		}
+		long now = System.nanoTime();
+		long last = this.reportedAt.get();
+		if (now - last < this.interval || !this.reportedAt.compareAndSet(last, now)) {
+			return;
+		}
+		long elapsed = now - this.startedAt;
+		if (this.totalFiles > 1) {
+			this.logger.format("...Progress: %d/%d files, %s %s, %s/s%n", this.files.get(), this.totalFiles,
+				SizeUtils.format(this.bytes.get()), this.action.toLowerCase(Locale.ENGLISH), SizeUtils.format(rate(this.bytes.get(), elapsed)));
+		} else {
+			this.logger.format("...Progress: %s %s, %s/s%n",
+				SizeUtils.format(this.bytes.get()), this.action.toLowerCase(Locale.ENGLISH), SizeUtils.format(rate(this.bytes.get(), elapsed)));
+		}
+	}
+
+	/**
+	 * Returns e.g. "12 files, 1.20 GB in 35.2 s (34.9 MB/s)", followed by the
+	 * number of retries if there were any.
+	 */
+	String summary() {
+		long elapsed = this.getDuration();
+		String summary = String.format(Locale.ENGLISH, "%d %s, %s in %.1f s (%s/s)",
+			this.files.get(), this.files.get() == 1 ? "file" : "files", SizeUtils.format(this.bytes.get()),
+			elapsed / 1e9, SizeUtils.format(rate(this.bytes.get(), elapsed)));
+		long retries = this.requestStats.getRetries();
+		return retries > 0 ? summary + String.format(", %d %s", retries, retries == 1 ? "retry" : "retries") : summary;
+	}
+
+	private static long rate(long bytes, long nanos) {
+		return nanos > 0 ? (long) (bytes * 1e9 / nanos) : 0;
+	}
+}
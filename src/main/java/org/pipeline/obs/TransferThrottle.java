@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import org.pipeline.obs.utils.SizeUtils;
+import hudson.EnvVars;
+
+/**
+ * Optional bandwidth and request rate caps for OBS transfers. The limits are
+ * enforced by one token bucket per limit type that lives in the JVM the
+ * transfer runs in (usually an agent) and is shared by every throttled upload
+ * and download there, so concurrent pipelines on one host share the cap. When
+ * throttled transfers ask for different limits, the lowest one applies to all
+ * of them until its transfers stop using the bucket.
+ */
+class TransferThrottle implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final TransferThrottle NONE = new TransferThrottle(0, 0);
+
+	private static final TokenBucket BANDWIDTH = new TokenBucket();
+	private static final TokenBucket REQUESTS = new TokenBucket();
+
+	private final long bytesPerSecond;
+	private final int requestsPerSecond;
+
+	TransferThrottle(long bytesPerSecond, int requestsPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.requestsPerSecond = requestsPerSecond;
+	}
+
+	/**
+	 * Returns the limits of a step, falling back to the ones set by
+	 * {@code withOBS} for the limits the step does not set. Fails naming the
+	 * variable when one set by {@code withOBS} is invalid.
+	 */
+	static TransferThrottle of(EnvVars vars, String maxBandwidth, int maxRequestsPerSecond) {
+		long bandwidth;
+		if (StringUtils.isNotBlank(maxBandwidth)) {
+			bandwidth = SizeUtils.parse(maxBandwidth, 0);
+		} else {
+			try {
+				bandwidth = SizeUtils.parse(vars.get(OBSClientFactory.OBS_MAX_BANDWIDTH), 0);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid value for " + OBSClientFactory.OBS_MAX_BANDWIDTH + ": "
+					+ vars.get(OBSClientFactory.OBS_MAX_BANDWIDTH), e);
+			}
+		}
+		int requests = maxRequestsPerSecond > 0 ? maxRequestsPerSecond
+			: OBSClientFactory.getInt(vars, OBSClientFactory.OBS_MAX_REQUESTS_PER_SECOND, 0);
+		return new TransferThrottle(bandwidth, requests);
+	}
+
+	long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	int getRequestsPerSecond() {
+		return this.requestsPerSecond;
+	}
+
+	/**
+	 * Waits until another request may be sent.
+	 */
+	void acquireRequest() throws InterruptedIOException {
+		if (this.requestsPerSecond > 0) {
+			REQUESTS.acquire(1, this.requestsPerSecond);
+		}
+	}
+
+	/**
+	 * Returns a stream that reads no faster than the bandwidth limit allows.
+	 */
+	InputStream limit(InputStream in) {
+		if (this.bytesPerSecond <= 0) {
+			return in;
+		}
+		final long rate = this.bytesPerSecond;
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					BANDWIDTH.acquire(1, rate);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					BANDWIDTH.acquire(read, rate);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Refills tokens at the lowest rate its callers ask for, up to one second
+	 * worth of tokens. Taking more tokens than available puts the bucket into
+	 * debt, so callers are delayed in proportion to what they took. A lower
+	 * rate replaces the current one at once; a higher rate only once the
+	 * callers of the current rate have not come back for {@link #IDLE_NANOS}
+	 * after their last wait.
+	 */
+	private static final class TokenBucket {
+		private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+		private long rate;
+		private long rateExpiresAt;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+
+		void acquire(long count, long limit) throws InterruptedIOException {
+			long waitNanos;
+			synchronized (this) {
+				long now = System.nanoTime();
+				this.tokens = Math.min(this.rate, this.tokens + (now - this.refilledAt) * this.rate / 1e9);
+				this.refilledAt = now;
+				boolean adopted = this.rate == 0 || limit <= this.rate || now - this.rateExpiresAt > 0;
+				if (adopted) {
+					// an unused bucket starts full
+					this.tokens = this.rate == 0 ? limit : Math.min(limit, this.tokens);
+					this.rate = limit;
+				}
+				this.tokens -= count;
+				waitNanos = this.tokens >= 0 ? 0 : (long) (-this.tokens * 1e9 / this.rate);
+				if (adopted) {
+					this.rateExpiresAt = now + waitNanos + IDLE_NANOS;
+				}
+			}
+			if (waitNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.obs.services.model.PartEtag;
+
+import hudson.Util;
+
+/**
+ * Records the parts of a multipart upload that already reached OBS, so a
+ * later run of the same upload only sends the missing parts.
+ */
+class UploadCheckpoint {
+
+	private static final String PART_PREFIX = "part.";
+
+	private final File checkpointFile;
+	private final String bucket;
+	private final String key;
+	private final String sourcePath;
+	private final long length;
+	private final long lastModified;
+	private final long partSize;
+	private final String uploadId;
+	private final Map<Integer, String> parts = new TreeMap<>();
+
+	UploadCheckpoint(File checkpointFile, String bucket, String key, File source, long partSize, String uploadId) {
+		this(checkpointFile, bucket, key, source.getAbsolutePath(), source.length(), source.lastModified(), partSize, uploadId);
+	}
+
+	private UploadCheckpoint(File checkpointFile, String bucket, String key, String sourcePath, long length, long lastModified, long partSize, String uploadId) {
+		this.checkpointFile = checkpointFile;
+		this.bucket = bucket;
+		this.key = key;
+		this.sourcePath = sourcePath;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.partSize = partSize;
+		this.uploadId = uploadId;
+	}
+
+	/**
+	 * Returns the checkpoint file used for uploading the given file to the
+	 * given object.
+	 */
+	static File locate(File checkpointDir, String bucket, String key, File source) {
+		return new File(checkpointDir, Util.getDigestOf(bucket + '/' + key + '\n' + source.getAbsolutePath()) + ".properties");
+	}
+
+	/**
+	 * Loads a checkpoint, or returns null if there is none or it cannot be read.
+	 */
+	static UploadCheckpoint load(File checkpointFile) {
+		if (!checkpointFile.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(checkpointFile)) {
+			properties.load(in);
+			UploadCheckpoint checkpoint = new UploadCheckpoint(checkpointFile,
+				properties.getProperty("bucket"),
+				properties.getProperty("key"),
+				properties.getProperty("source"),
+				Long.parseLong(properties.getProperty("length")),
+				Long.parseLong(properties.getProperty("lastModified")),
+				Long.parseLong(properties.getProperty("partSize")),
+				properties.getProperty("uploadId"));
+			for (String name : properties.stringPropertyNames()) {
+				if (name.startsWith(PART_PREFIX)) {
+					checkpoint.parts.put(Integer.valueOf(name.substring(PART_PREFIX.length())), properties.getProperty(name));
+				}
+			}
+			return checkpoint;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether this checkpoint was written for the same object, the same
+	 * unchanged source file and the same part layout.
+	 */
+	boolean matches(String bucket, String key, File source, long partSize) {
+		return bucket.equals(this.bucket)
+			&& key.equals(this.key)
+			&& source.getAbsolutePath().equals(this.sourcePath)
+			&& source.length() == this.length
+			&& source.lastModified() == this.lastModified
+			&& partSize == this.partSize
+			&& this.uploadId != null;
+	}
+
+	String getBucket() {
+		return this.bucket;
+	}
+
+	String getKey() {
+		return this.key;
+	}
+
+	String getUploadId() {
+		return this.uploadId;
+	}
+
+	synchronized boolean hasPart(int partNumber) {
+		return this.parts.containsKey(partNumber);
+	}
+
+	synchronized void retainParts(Map<Integer, String> uploadedParts) {
+		Iterator<Map.Entry<Integer, String>> it = this.parts.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, String> part = it.next();
+			String etag = uploadedParts.get(part.getKey());
+			if (etag == null || !unquote(etag).equals(unquote(part.getValue()))) {
+				it.remove();
+			}
+		}
+	}
+
+	private static String unquote(String etag) {
+		return etag.replace("\"", "");
+	}
+
+	synchronized List<PartEtag> getPartEtags() {
+		List<PartEtag> partEtags = new ArrayList<>(this.parts.size());
+		for (Map.Entry<Integer, String> part : this.parts.entrySet()) {
+			partEtags.add(new PartEtag(part.getValue(), part.getKey()));
+		}
+		return partEtags;
+	}
+
+	synchronized int getPartCount() {
+		return this.parts.size();
+	}
+
+	synchronized void addPart(PartEtag partEtag) throws IOException {
+		this.parts.put(partEtag.getPartNumber(), partEtag.getEtag());
+		this.save();
+	}
+
+	synchronized void save() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("bucket", this.bucket);
+		properties.setProperty("key", this.key);
+		properties.setProperty("source", this.sourcePath);
+		properties.setProperty("length", String.valueOf(this.length));
+		properties.setProperty("lastModified", String.valueOf(this.lastModified));
+		properties.setProperty("partSize", String.valueOf(this.partSize));
+		properties.setProperty("uploadId", this.uploadId);
+		for (Map.Entry<Integer, String> part : this.parts.entrySet()) {
+			properties.setProperty(PART_PREFIX + part.getKey(), part.getValue());
+		}
+
+		File dir = this.checkpointFile.getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create checkpoint directory " + dir);
+		}
+		// write to a temporary file first so a crash never leaves a truncated checkpoint
+		File tmp = new File(dir, this.checkpointFile.getName() + ".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			properties.store(out, "OBS multipart upload checkpoint");
+		}
+		Files.move(tmp.toPath(), this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	synchronized void delete() {
+		if (this.checkpointFile.exists() && !this.checkpointFile.delete()) {
+			this.checkpointFile.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.base.Preconditions;
+
+import hudson.EnvVars;
+import hudson.model.Run;
+
+/**
+ * A bucket and path that {@code obsUpload} writes to, with the endpoint,
+ * region and credentials to use for it. Settings a destination leaves out are
+ * taken from the surrounding {@code withOBS}.
+ */
+class UploadDestination implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final List<String> KEYS = Arrays.asList("bucket", "path", "region", "endpointUrl", "credentials");
+
+	private final String bucket;
+	private final String path;
+	private final EnvVars envVars;
+
+	UploadDestination(String bucket, String path, EnvVars envVars) {
+		this.bucket = bucket;
+		this.path = path;
+		this.envVars = envVars;
+	}
+
+	/**
+	 * Returns the destination described by a map of the {@link #KEYS}, based
+	 * on the environment of the step.
+	 */
+	static UploadDestination of(Object spec, EnvVars base, Run<?, ?> run, String defaultPath) {
+		Preconditions.checkArgument(spec instanceof Map, "Destinations must be maps, got %s", spec);
+		Map<?, ?> map = (Map<?, ?>) spec;
+		for (Object key : map.keySet()) {
+			Preconditions.checkArgument(KEYS.contains(String.valueOf(key)), "Unknown destination setting %s, expected one of %s", key, KEYS);
+		}
+		String bucket = value(map, "bucket");
+		Preconditions.checkArgument(StringUtils.isNotEmpty(bucket), "Every destination needs a bucket");
+		String path = map.containsKey("path") ? StringUtils.defaultString(value(map, "path")) : defaultPath;
+
+		EnvVars vars = new EnvVars(base);
+		String region = value(map, "region");
+		String endpointUrl = value(map, "endpointUrl");
+		// OBS endpoints are per region, another region on the same endpoint would send the bytes to the wrong one
+		Preconditions.checkArgument(StringUtils.isEmpty(region) || region.equals(base.get(OBSClientFactory.OBS_REGION))
+			|| StringUtils.isNotEmpty(endpointUrl), "Destination %s sets region %s but no endpointUrl", bucket, region);
+		if (StringUtils.isNotEmpty(region)) {
+			vars.override(OBSClientFactory.OBS_DEFAULT_REGION, region);
+			vars.override(OBSClientFactory.OBS_REGION, region);
+		}
+		if (StringUtils.isNotEmpty(endpointUrl)) {
+			vars.override(OBSClientFactory.OBS_ENDPOINT_URL, endpointUrl);
+		}
+		String credentials = value(map, "credentials");
+		if (StringUtils.isNotEmpty(credentials)) {
+			StandardUsernamePasswordCredentials usernamePasswordCredentials = CredentialsProvider.findCredentialById(credentials,
+				StandardUsernamePasswordCredentials.class, run, Collections.emptyList());
+			Preconditions.checkArgument(usernamePasswordCredentials != null, "Credentials %s not found", credentials);
+			vars.override(OBSClientFactory.OBS_ACCESS_KEY_ID, usernamePasswordCredentials.getUsername());
+			vars.override(OBSClientFactory.OBS_SECRET_ACCESS_KEY, usernamePasswordCredentials.getPassword().getPlainText());
+		}
+		return new UploadDestination(bucket, path, vars);
+	}
+
+	private static String value(Map<?, ?> map, String key) {
+		Object value = map.get(key);
+		return value != null ? value.toString() : null;
+	}
+
+	String getBucket() {
+		return this.bucket;
+	}
+
+	String getPath() {
+		return this.path;
+	}
+
+	String getRegion() {
+		return this.envVars.get(OBSClientFactory.OBS_REGION);
+	}
+
+	EnvVars getEnvVars() {
+		return this.envVars;
+	}
+
+	/**
+	 * Returns the key of a file uploaded to the destination: the path itself
+	 * when it names an object, or the file's relative path below it.
+	 */
+	String keyFor(String relativePath, boolean single) {
+		if (this.path.isEmpty() || this.path.endsWith("/")) {
+			return this.path + (single ? relativePath.substring(relativePath.lastIndexOf('/') + 1) : relativePath);
+		}
+		return single ? this.path : this.path + "/" + relativePath;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("obs://%s/%s", this.bucket, this.path);
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.huawei.openstack4j.api.OSClient.OSClientAKSK;
+
+import org.pipeline.obs.utils.StepUtils;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+
+/**
+ * Waits for a function invoked with {@code invokeFunction(async: true)} to
+ * finish. The step schedules polls of FunctionGraph on a timer with an
+ * increasing delay and holds no executor thread while waiting; the polls
+ * themselves run on a small pool of their own, so slow FunctionGraph calls do
+ * not hold up the shared Jenkins timer. Polling resumes after a controller
+ * restart.
+ */
+public class WaitForFunctionStep extends Step {
+
+	private final String requestId;
+	private String functionName;
+	private String functionUrn;
+	private int timeout;
+
+	@DataBoundConstructor
+	public WaitForFunctionStep(String requestId) {
+		this.requestId = requestId;
+	}
+
+	public String getRequestId() {
+		return this.requestId;
+	}
+
+	public String getFunctionName() {
+		return this.functionName;
+	}
+
+	@DataBoundSetter
+	public void setFunctionName(String functionName) {
+		this.functionName = functionName;
+	}
+
+	public String getFunctionUrn() {
+		return this.functionUrn;
+	}
+
+	@DataBoundSetter
+	public void setFunctionUrn(String functionUrn) {
+		this.functionUrn = functionUrn;
+	}
+
+	public int getTimeout() {
+		return this.timeout;
+	}
+
+	@DataBoundSetter
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new WaitForFunctionStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requiresDefault();
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "waitForFunction";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Wait for an asynchronous function invocation";
+		}
+	}
+
+	public static class Execution extends AbstractStepExecutionImpl {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final long INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+		private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+		private static final int MAX_CONSECUTIVE_ERRORS = 5;
+		private static final int POLL_THREADS = 4;
+
+		private static final ThreadPoolExecutor POLLS = new ThreadPoolExecutor(POLL_THREADS, POLL_THREADS, 1, TimeUnit.MINUTES,
+			new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "waitForFunction"));
+
+		static {
+			POLLS.allowCoreThreadTimeOut(true);
+		}
+
+		private final String requestId;
+		private final String functionName;
+		private String functionUrn;
+		private final long deadline;
+		private long delay = INITIAL_DELAY_MILLIS;
+		private int errors;
+
+		private transient volatile ScheduledFuture<?> task;
+		private transient volatile boolean stopped;
+
+		public Execution(WaitForFunctionStep step, StepContext context) {
+			super(context);
+			this.requestId = step.getRequestId();
+			this.functionName = step.getFunctionName();
+			this.functionUrn = step.getFunctionUrn();
+			this.deadline = step.getTimeout() > 0
+				? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(step.getTimeout()) : 0;
+		}
+
+		@Override
+		public boolean start() throws Exception {
+			Preconditions.checkArgument(this.requestId != null && !this.requestId.isEmpty(), "RequestId must not be null or empty");
+			// checked here, a bad argument would otherwise count as a transient poll error
+			Preconditions.checkArgument(StringUtils.isNotEmpty(this.functionName) || StringUtils.isNotEmpty(this.functionUrn),
+				"FunctionName or FunctionUrn must not be null or empty");
+			this.getContext().get(TaskListener.class).getLogger().format("Waiting for function invocation %s%n", this.requestId);
+			this.schedule(0);
+			return false;
+		}
+
+		@Override
+		public void onResume() {
+			this.delay = INITIAL_DELAY_MILLIS;
+			this.schedule(this.delay);
+		}
+
+		@Override
+		public void stop(Throwable cause) throws Exception {
+			this.stopped = true;
+			ScheduledFuture<?> current = this.task;
+			if (current != null) {
+				current.cancel(false);
+			}
+			this.getContext().onFailure(cause);
+		}
+
+		private void schedule(long delayMillis) {
+			// a poll that was already running when the step was stopped must not start another one
+			if (this.stopped) {
+				return;
+			}
+			// the timer only hands the poll over, the request runs on the poll threads
+			this.task = Timer.get().schedule(new Runnable() {
+				@Override
+				public void run() {
+					POLLS.execute(new Runnable() {
+						@Override
+						public void run() {
+							Execution.this.poll();
+						}
+					});
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private void poll() {
+			if (this.stopped) {
+				return;
+			}
+			StepContext context = this.getContext();
+			try {
+				TaskListener listener = context.get(TaskListener.class);
+				OSClientAKSK osclient = OBSClientFactory.createOscClient(context);
+				if (this.functionUrn == null || this.functionUrn.isEmpty()) {
+					this.functionUrn = InvokeFunctionStep.resolveFunctionUrn(osclient,
+						OBSClientFactory.getProjectKey(context), this.functionName, this.functionUrn, listener);
+				}
+
+				AsyncInvocationService.AsyncInvocation invocation =
+					new AsyncInvocationService().getInvocation(this.functionUrn, this.requestId);
+				this.errors = 0;
+				if (invocation != null && invocation.isFinished()) {
+					if (AsyncInvocationService.STATUS_SUCCESS.equals(invocation.getStatus())) {
+						listener.getLogger().format("Function invocation %s succeeded%n", this.requestId);
+						context.onSuccess(invocation.getStatus());
+					} else {
+						context.onFailure(new AbortException("Function invocation " + this.requestId + " "
+							+ invocation.getStatus() + ": " + invocation.getErrorMessage()));
+					}
+					return;
+				}
+			} catch (Exception e) {
+				if (++this.errors >= MAX_CONSECUTIVE_ERRORS) {
+					context.onFailure(e);
+					return;
+				}
+				this.logError(e);
+			}
+
+			if (this.deadline > 0 && System.currentTimeMillis() >= this.deadline) {
+				context.onFailure(new AbortException("Timed out waiting for function invocation " + this.requestId));
+				return;
+			}
+			this.schedule(this.delay);
+			this.delay = Math.min(this.delay * 2, MAX_DELAY_MILLIS);
+		}
+
+		private void logError(Exception e) {
+			try {
+				this.getContext().get(TaskListener.class).getLogger().format("Polling function invocation %s failed (%d/%d), retrying: %s%n",
+					this.requestId, this.errors, MAX_CONSECUTIVE_ERRORS, RetryPolicy.describe(e));
+			} catch (IOException ignored) {
+				// the build log is gone, the next poll reports to the step context
+			} catch (InterruptedException ignored) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -50,7 +50,18 @@ public class WithOBSStep extends Step {
 
 	private String region = "";
 	private String endpointUrl = "";
+	private String iamEndpoint;
+	private String functionGraphEndpoint;
 	private String credentials = "";
+	private int maxConnections;
+	private int connectionTimeout;
+	private int socketTimeout;
+	private boolean keepAlive = true;
+	private String maxBandwidth;
+	private int maxRequestsPerSecond;
+	private Integer maxRetries;
+	private int retryBaseDelay;
+	private int retryMaxDelay;
 
 	@DataBoundConstructor
 	public WithOBSStep() {
@@ -75,6 +86,24 @@ public class WithOBSStep extends Step {
 		this.endpointUrl = endpointUrl;
 	}
 
+	public String getIamEndpoint() {
+		return this.iamEndpoint;
+	}
+
+	@DataBoundSetter
+	public void setIamEndpoint(String iamEndpoint) {
+		this.iamEndpoint = iamEndpoint;
+	}
+
+	public String getFunctionGraphEndpoint() {
+		return this.functionGraphEndpoint;
+	}
+
+	@DataBoundSetter
+	public void setFunctionGraphEndpoint(String functionGraphEndpoint) {
+		this.functionGraphEndpoint = functionGraphEndpoint;
+	}
+
 	public String getCredentials() {
 		return this.credentials;
 	}
@@ -84,6 +113,87 @@ public class WithOBSStep extends Step {
 		this.credentials = credentials;
 	}
 
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	@DataBoundSetter
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getConnectionTimeout() {
+		return this.connectionTimeout;
+	}
+
+	@DataBoundSetter
+	public void setConnectionTimeout(int connectionTimeout) {
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return this.socketTimeout;
+	}
+
+	@DataBoundSetter
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	public boolean isKeepAlive() {
+		return this.keepAlive;
+	}
+
+	@DataBoundSetter
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public String getMaxBandwidth() {
+		return this.maxBandwidth;
+	}
+
+	@DataBoundSetter
+	public void setMaxBandwidth(String maxBandwidth) {
+		this.maxBandwidth = maxBandwidth;
+	}
+
+	public int getMaxRequestsPerSecond() {
+		return this.maxRequestsPerSecond;
+	}
+
+	@DataBoundSetter
+	public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+	}
+
+	public Integer getMaxRetries() {
+		return this.maxRetries;
+	}
+
+	@DataBoundSetter
+	public void setMaxRetries(Integer maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getRetryBaseDelay() {
+		return this.retryBaseDelay;
+	}
+
+	@DataBoundSetter
+	public void setRetryBaseDelay(int retryBaseDelay) {
+		this.retryBaseDelay = retryBaseDelay;
+	}
+
+	public int getRetryMaxDelay() {
+		return this.retryMaxDelay;
+	}
+
+	@DataBoundSetter
+	public void setRetryMaxDelay(int retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new WithOBSStep.Execution(this, context);
@@ -163,6 +273,37 @@ public class WithOBSStep extends Step {
 			}
 
 			obsEnv.override(OBSClientFactory.OBS_ENDPOINT_URL, this.step.getEndpointUrl());
+			if (this.step.getIamEndpoint() != null && !this.step.getIamEndpoint().trim().isEmpty()) {
+				obsEnv.override(OBSClientFactory.OBS_IAM_ENDPOINT, this.step.getIamEndpoint().trim());
+			}
+			if (this.step.getFunctionGraphEndpoint() != null && !this.step.getFunctionGraphEndpoint().trim().isEmpty()) {
+				obsEnv.override(OBSClientFactory.OBS_FUNCTIONGRAPH_ENDPOINT, this.step.getFunctionGraphEndpoint().trim());
+			}
+			if (this.step.getMaxConnections() > 0) {
+				obsEnv.override(OBSClientFactory.OBS_MAX_CONNECTIONS, String.valueOf(this.step.getMaxConnections()));
+			}
+			if (this.step.getConnectionTimeout() > 0) {
+				obsEnv.override(OBSClientFactory.OBS_CONNECTION_TIMEOUT, String.valueOf(this.step.getConnectionTimeout()));
+			}
+			if (this.step.getSocketTimeout() > 0) {
+				obsEnv.override(OBSClientFactory.OBS_SOCKET_TIMEOUT, String.valueOf(this.step.getSocketTimeout()));
+			}
+			obsEnv.override(OBSClientFactory.OBS_KEEP_ALIVE, String.valueOf(this.step.isKeepAlive()));
+			if (this.step.getMaxBandwidth() != null && !this.step.getMaxBandwidth().trim().isEmpty()) {
+				obsEnv.override(OBSClientFactory.OBS_MAX_BANDWIDTH, this.step.getMaxBandwidth().trim());
+			}
+			if (this.step.getMaxRequestsPerSecond() > 0) {
+				obsEnv.override(OBSClientFactory.OBS_MAX_REQUESTS_PER_SECOND, String.valueOf(this.step.getMaxRequestsPerSecond()));
+			}
+			if (this.step.getMaxRetries() != null) {
+				obsEnv.override(OBSClientFactory.OBS_MAX_RETRIES, String.valueOf(this.step.getMaxRetries()));
+			}
+			if (this.step.getRetryBaseDelay() > 0) {
+				obsEnv.override(OBSClientFactory.OBS_RETRY_BASE_DELAY, String.valueOf(this.step.getRetryBaseDelay()));
+			}
+			if (this.step.getRetryMaxDelay() > 0) {
+				obsEnv.override(OBSClientFactory.OBS_RETRY_MAX_DELAY, String.valueOf(this.step.getRetryMaxDelay()));
+			}
 
 			EnvironmentExpander expander = new EnvironmentExpander() {
 				@Override
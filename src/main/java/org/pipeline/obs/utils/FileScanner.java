@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Finds the files below a directory that match Ant style include and exclude
+ * patterns, in a single pass with {@link Files#walkFileTree}. Directories that
+ * cannot contain a match or that are excluded as a whole are not entered, and
+ * size and modification time come from the walk, so no file is stat'ed twice.
+ * Matches the semantics of {@code hudson.Util.createFileSet}: comma separated
+ * patterns, a trailing {@code /} meaning everything below, Ant's default
+ * excludes, and symbolic links followed.
+ */
+public class FileScanner {
+
+	// Ant matches on paths with the platform separator
+	private static final String ALL_BELOW = File.separator + "**";
+
+	private final List<String> includes;
+	private final List<String> excludes;
+
+	public FileScanner(String includes, String excludes) {
+		List<String> includePatterns = patterns(includes);
+		this.includes = includePatterns.isEmpty() ? Collections.singletonList("**") : includePatterns;
+		this.excludes = new ArrayList<>(patterns(excludes));
+		for (String exclude : DirectoryScanner.getDefaultExcludes()) {
+			this.excludes.add(exclude.replace('/', File.separatorChar));
+		}
+	}
+
+	/**
+	 * A matched file with the attributes read while walking.
+	 */
+	public static class ScannedFile {
+		private final String path;
+		private final File file;
+		private final long size;
+		private final long lastModified;
+
+		ScannedFile(String path, File file, long size, long lastModified) {
+			this.path = path;
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Returns the path relative to the scanned directory, separated by '/'.
+		 */
+		public String getPath() {
+			return this.path;
+		}
+
+		public File getFile() {
+			return this.file;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		public long getLastModified() {
+			return this.lastModified;
+		}
+	}
+
+	public List<ScannedFile> scan(File baseDir) throws IOException {
+		final Path base = baseDir.toPath();
+		final List<ScannedFile> files = new ArrayList<>();
+		Files.walkFileTree(base, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (dir.equals(base)) {
+					return FileVisitResult.CONTINUE;
+				}
+				return FileScanner.this.mayContainMatches(base.relativize(dir).toString()) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String path = base.relativize(file).toString();
+				if (attrs.isRegularFile() && FileScanner.this.matches(path)) {
+					files.add(new ScannedFile(path.replace(File.separatorChar, '/'), file.toFile(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				// link cycles are skipped, like the Ant scanner does
+				if (exc instanceof FileSystemLoopException) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				throw exc;
+			}
+		});
+		return files;
+	}
+
+	boolean matches(String path) {
+		return matchesAny(this.includes, path) && !matchesAny(this.excludes, path);
+	}
+
+	/**
+	 * Returns false when no include can match below the directory, or an
+	 * exclude of the form {@code dir/**} covers all of it.
+	 */
+	boolean mayContainMatches(String dir) {
+		for (String exclude : this.excludes) {
+			if (exclude.endsWith(ALL_BELOW) && SelectorUtils.matchPath(exclude.substring(0, exclude.length() - ALL_BELOW.length()), dir)) {
+				return false;
+			}
+		}
+		for (String include : this.includes) {
+			if (SelectorUtils.matchPatternStart(include, dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesAny(List<String> patterns, String path) {
+		for (String pattern : patterns) {
+			if (SelectorUtils.matchPath(pattern, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> patterns(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> patterns = new ArrayList<>();
+		for (String pattern : value.split(",")) {
+			pattern = pattern.trim().replace('/', File.separatorChar).replace('\\', File.separatorChar);
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			if (pattern.endsWith(File.separator)) {
+				pattern += "**";
+			}
+			patterns.add(pattern);
+		}
+		return patterns;
+	}
+}
@@ -14,11 +14,27 @@ package org.pipeline.obs.utils;
  * limitations under the License.
  */
 
-import groovy.json.JsonBuilder;
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+
+import groovy.lang.GString;
 import net.sf.json.JSONSerializer;
 
+/**
+ * JSON conversions for step arguments and results. All of them share one
+ * Jackson mapper, which writes Groovy strings as plain strings, so Pipeline
+ * maps and lists of any depth convert without a detour through JSON text.
+ */
 public class JsonUtils {
 
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+		.registerModule(new SimpleModule("pipeline").addSerializer(GString.class, ToStringSerializer.instance));
+
 	private JsonUtils() {
 		// hidden constructor
 	}
@@ -28,7 +44,28 @@ public class JsonUtils {
 	}
 
 	public static String toString(Object object) {
-		return (new JsonBuilder(object)).toString();
+		try {
+			return MAPPER.writeValueAsString(object);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("Cannot convert to JSON: " + e.getOriginalMessage(), e);
+		}
 	}
 
+	/**
+	 * Converts maps, lists, strings, numbers and booleans to a JSON tree.
+	 */
+	public static JsonNode toJsonNode(Object object) {
+		return MAPPER.valueToTree(object);
+	}
+
+	/**
+	 * Parses JSON text of any kind, not only objects.
+	 */
+	public static JsonNode parse(String json) {
+		try {
+			return MAPPER.readTree(json);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid JSON: " + e.getMessage(), e);
+		}
+	}
 }
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs.utils;
+
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class MimeTypes {
+
+	public static final String DEFAULT = "application/octet-stream";
+
+	// types commonly served from buckets that the JDK table lacks or gets wrong
+	private static final Map<String, String> TYPES = new HashMap<>();
+
+	static {
+		TYPES.put("html", "text/html");
+		TYPES.put("htm", "text/html");
+		TYPES.put("css", "text/css");
+		TYPES.put("js", "application/javascript");
+		TYPES.put("mjs", "application/javascript");
+		TYPES.put("json", "application/json");
+		TYPES.put("map", "application/json");
+		TYPES.put("xml", "application/xml");
+		TYPES.put("txt", "text/plain");
+		TYPES.put("log", "text/plain");
+		TYPES.put("csv", "text/csv");
+		TYPES.put("md", "text/markdown");
+		TYPES.put("yaml", "application/x-yaml");
+		TYPES.put("yml", "application/x-yaml");
+		TYPES.put("svg", "image/svg+xml");
+		TYPES.put("png", "image/png");
+		TYPES.put("jpg", "image/jpeg");
+		TYPES.put("jpeg", "image/jpeg");
+		TYPES.put("gif", "image/gif");
+		TYPES.put("webp", "image/webp");
+		TYPES.put("ico", "image/x-icon");
+		TYPES.put("woff", "font/woff");
+		TYPES.put("woff2", "font/woff2");
+		TYPES.put("ttf", "font/ttf");
+		TYPES.put("wasm", "application/wasm");
+		TYPES.put("pdf", "application/pdf");
+		TYPES.put("zip", "application/zip");
+		TYPES.put("gz", "application/gzip");
+		TYPES.put("tgz", "application/gzip");
+		TYPES.put("tar", "application/x-tar");
+		TYPES.put("jar", "application/java-archive");
+	}
+
+	private MimeTypes() {
+		// hidden constructor
+	}
+
+	/**
+	 * Guesses the content type from the extension of a file name or object
+	 * key, falling back to {@value #DEFAULT}.
+	 */
+	public static String detect(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0 && dot > name.lastIndexOf('/')) {
+			String type = TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+			if (type != null) {
+				return type;
+			}
+		}
+		String type = URLConnection.getFileNameMap().getContentTypeFor(name);
+		return type != null ? type : DEFAULT;
+	}
+}
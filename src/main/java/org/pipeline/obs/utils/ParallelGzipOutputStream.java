@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Gzip compresses on several threads. The input is cut into blocks that are
+ * compressed independently into separate gzip members and written in order;
+ * the concatenation is a valid gzip stream that any gzip reader decompresses
+ * into the original data, at a slightly lower compression ratio.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private final ExecutorService executor;
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+	private final int maxPending;
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int count;
+	private boolean written;
+	private boolean closed;
+
+	public ParallelGzipOutputStream(OutputStream out, int threads) {
+		super(out);
+		this.executor = Executors.newFixedThreadPool(threads,
+			new NamingThreadFactory(new DaemonThreadFactory(), "gzip"));
+		this.maxPending = threads * 2;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, BLOCK_SIZE - this.count);
+			System.arraycopy(b, off, this.block, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+			if (this.count == BLOCK_SIZE) {
+				this.submitBlock();
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// blocks are only complete once full, flushing them early would hurt the ratio
+		this.out.flush();
+	}
+
+	/**
+	 * Writes the remaining blocks and closes the underlying stream. If that
+	 * fails, the underlying stream is left open, so its owner can discard
+	 * the incomplete data instead of having it committed by a close.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			if (this.count > 0 || !this.written) {
+				// an empty input still needs one (empty) member to be valid gzip
+				this.submitBlock();
+			}
+			while (!this.pending.isEmpty()) {
+				this.writeHead();
+			}
+		} finally {
+			this.executor.shutdownNow();
+		}
+		this.out.close();
+	}
+
+	/**
+	 * Stops the compression threads without writing the pending blocks or
+	 * closing the underlying stream. Does nothing once the stream is closed.
+	 */
+	public void abort() {
+		this.closed = true;
+		this.executor.shutdownNow();
+		this.pending.clear();
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = this.block;
+		final int size = this.count;
+		this.pending.add(this.executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 2 + 64);
+				try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+					gzip.write(data, 0, size);
+				}
+				return compressed.toByteArray();
+			}
+		}));
+		this.written = true;
+		this.block = new byte[BLOCK_SIZE];
+		this.count = 0;
+		while (this.pending.size() >= this.maxPending) {
+			this.writeHead();
+		}
+	}
+
+	private void writeHead() throws IOException {
+		try {
+			this.out.write(this.pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw (IOException) new InterruptedIOException().initCause(e);
+		} catch (ExecutionException e) {
+			throw new IOException("Compression failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs.utils;
+
+import java.util.Locale;
+
+public class SizeUtils {
+
+	public static final long KB = 1024L;
+	public static final long MB = 1024L * KB;
+	public static final long GB = 1024L * MB;
+
+	/**
+	 * Parses a human readable size such as "512KB", "64MB", "1g" or "1048576".
+	 * Returns the default value if the size is null or empty.
+	 */
+	public static long parse(String size, long defaultValue) {
+		if (size == null || size.trim().isEmpty()) {
+			return defaultValue;
+		}
+		String value = size.trim().toUpperCase(Locale.ENGLISH);
+		if (value.endsWith("B")) {
+			value = value.substring(0, value.length() - 1);
+		}
+		long unit = 1L;
+		if (value.endsWith("K")) {
+			unit = KB;
+		} else if (value.endsWith("M")) {
+			unit = MB;
+		} else if (value.endsWith("G")) {
+			unit = GB;
+		}
+		if (unit != 1L) {
+			value = value.substring(0, value.length() - 1);
+		}
+		try {
+			long number = Long.parseLong(value.trim());
+			if (number < 0) {
+				throw new IllegalArgumentException("Size must not be negative: " + size);
+			}
+			return number * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size: " + size, e);
+		}
+	}
+
+	/**
+	 * Formats a byte count for log output, e.g. "512 B", "1.5 MB".
+	 */
+	public static String format(long bytes) {
+		if (bytes < KB) {
+			return bytes + " B";
+		}
+		if (bytes < MB) {
+			return String.format(Locale.ENGLISH, "%.1f KB", (double) bytes / KB);
+		}
+		if (bytes < GB) {
+			return String.format(Locale.ENGLISH, "%.1f MB", (double) bytes / MB);
+		}
+		return String.format(Locale.ENGLISH, "%.2f GB", (double) bytes / GB);
+	}
+
+	private SizeUtils() {
+		// Hide utility class constructor
+	}
+}
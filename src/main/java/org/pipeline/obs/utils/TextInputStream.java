@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Streams the encoded bytes of a {@link CharSequence} through a small buffer,
+ * so large strings can be sent without materializing a byte array copy.
+ */
+public class TextInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final CharBuffer chars;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private boolean flushed;
+
+	public TextInputStream(CharSequence text, Charset charset) {
+		this.chars = CharBuffer.wrap(text);
+		this.encoder = newEncoder(charset);
+		this.bytes.flip();
+	}
+
+	/**
+	 * Returns the number of bytes the text encodes to, without keeping the
+	 * encoded bytes.
+	 */
+	public static long encodedLength(CharSequence text, Charset charset) throws CharacterCodingException {
+		CharBuffer in = CharBuffer.wrap(text);
+		CharsetEncoder encoder = newEncoder(charset);
+		ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+		long length = 0;
+		CoderResult result;
+		do {
+			result = encoder.encode(in, out, true);
+			if (result.isError()) {
+				result.throwException();
+			}
+			length += out.position();
+			out.clear();
+		} while (result.isOverflow());
+		do {
+			result = encoder.flush(out);
+			length += out.position();
+			out.clear();
+		} while (result.isOverflow());
+		return length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!this.fill()) {
+			return -1;
+		}
+		return this.bytes.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!this.fill()) {
+			return -1;
+		}
+		int n = Math.min(len, this.bytes.remaining());
+		this.bytes.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return this.bytes.remaining();
+	}
+
+	private boolean fill() throws IOException {
+		while (!this.bytes.hasRemaining() && !this.flushed) {
+			this.bytes.clear();
+			CoderResult result = this.encoder.encode(this.chars, this.bytes, true);
+			if (result.isError()) {
+				result.throwException();
+			}
+			if (result.isUnderflow() && this.encoder.flush(this.bytes).isUnderflow()) {
+				this.flushed = true;
+			}
+			this.bytes.flip();
+		}
+		return this.bytes.hasRemaining();
+	}
+
+	private static CharsetEncoder newEncoder(Charset charset) {
+		return charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+public class FanOutUploaderTest {
+
+	private static final long PART_SIZE = 128 * SizeUtils.KB;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LocalHuaweiCloud cloud;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.cloud.obs().createBucket("mirror");
+	}
+
+	@After
+	public void tearDown() {
+		this.cloud.close();
+	}
+
+	@Test
+	public void sendsEveryFileToEveryDestination() throws Exception {
+		File small = TestSupport.randomFile(this.folder.getRoot(), "small.txt", 1000);
+		File big = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (5 * PART_SIZE + 3));
+
+		List<FanOutUploader.Result> results = this.upload(this.uploader(2), small, big, "builds", "mirror");
+
+		for (FanOutUploader.Result result : results) {
+			assertThat(result.getError()).isNull();
+			assertThat(result.getProgress().getFiles()).isEqualTo(2);
+			assertThat(result.getProgress().getBytes()).isEqualTo(small.length() + big.length());
+		}
+		for (String bucket : Arrays.asList("builds", "mirror")) {
+			assertThat(this.cloud.obs().getObject(bucket, "dist/small.txt").getContent()).isEqualTo(TestSupport.read(small));
+			assertThat(this.cloud.obs().getObject(bucket, "dist/big.bin").getContent()).isEqualTo(TestSupport.read(big));
+		}
+	}
+
+	@Test
+	public void continuesWithTheOtherDestinationsWhenABucketIsMissing() throws Exception {
+		File small = TestSupport.randomFile(this.folder.getRoot(), "small.txt", 1000);
+		File big = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (5 * PART_SIZE));
+
+		List<FanOutUploader.Result> results = this.upload(this.uploader(2), small, big, "builds", "missing");
+
+		assertThat(results.get(0).getError()).isNull();
+		assertThat(results.get(1).getError()).isEqualTo("Bucket missing does not exist");
+		assertThat(this.cloud.obs().getObject("builds", "dist/big.bin").getContent()).isEqualTo(TestSupport.read(big));
+		// the failed destination is not tried again for the second file
+		assertThat(this.cloud.countRequests("POST /missing/")).isZero();
+		assertThat(this.log.toString()).contains("Upload to obs://missing/dist/ failed, continuing with the other destinations");
+	}
+
+	@Test
+	public void abortsTheUploadOfADestinationThatFailsMidway() throws Exception {
+		File small = TestSupport.randomFile(this.folder.getRoot(), "small.txt", 1000);
+		File big = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (8 * PART_SIZE));
+		// the small file and two parts of the big one reach the mirror
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/mirror/", 500, "InternalError").after(3));
+
+		List<FanOutUploader.Result> results = this.upload(this.uploader(2), small, big, "builds", "mirror");
+
+		assertThat(results.get(0).getError()).isNull();
+		assertThat(results.get(1).getError()).startsWith("500 ");
+		assertThat(this.cloud.obs().getObject("builds", "dist/big.bin").getContent()).isEqualTo(TestSupport.read(big));
+		assertThat(this.cloud.obs().getObject("mirror", "dist/small.txt")).isNotNull();
+		assertThat(this.cloud.obs().getObject("mirror", "dist/big.bin")).isNull();
+		assertThat(this.cloud.obs().getOpenUploads()).isZero();
+	}
+
+	@Test
+	public void keepsAtMostParallelismPartsInFlightPerDestination() throws Exception {
+		File small = TestSupport.randomFile(this.folder.getRoot(), "small.txt", 1000);
+		File big = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (10 * PART_SIZE));
+		this.cloud.setLatency(50);
+
+		this.upload(this.uploader(3), small, big, "builds", "mirror");
+
+		assertThat(this.cloud.getMaxConcurrentRequests()).isGreaterThan(2).isLessThanOrEqualTo(6);
+	}
+
+	private MultipartUploader uploader(int parallelism) {
+		return new MultipartUploader(PART_SIZE, PART_SIZE, parallelism, TransferThrottle.NONE, new RetryPolicy(0, 0, 0));
+	}
+
+	private List<FanOutUploader.Result> upload(MultipartUploader uploader, File small, File big, String... buckets) throws Exception {
+		List<UploadDestination> destinations = new ArrayList<>();
+		for (String bucket : buckets) {
+			destinations.add(new UploadDestination(bucket, "dist/", this.cloud.envVars()));
+		}
+		FanOutUploader fanOut = new FanOutUploader(destinations, uploader,
+			new ObjectHeaders(Collections.<String, String>emptyMap(), null, null), new TransferProgress(new PrintStream(this.log, true), false, 2));
+		try {
+			fanOut.upload(small, small.getName(), false);
+			fanOut.upload(big, big.getName(), false);
+			return fanOut.getResults();
+		} finally {
+			fanOut.close();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InvokeFunctionBatchStepTest {
+
+	private LocalHuaweiCloud cloud;
+	private StepContext context;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws Exception {
+		this.cloud = new LocalHuaweiCloud();
+		this.context = TestSupport.stepContext(this.cloud.envVars(), null, new PrintStream(this.log, true));
+	}
+
+	@After
+	public void tearDown() {
+		FunctionUrnCache.invalidate(OBSClientFactory.getProjectKey(this.context));
+		OBSClientFactory.invalidateOscClient(this.context);
+		this.cloud.close();
+	}
+
+	@Test
+	public void invokesEveryPayloadWithBoundedConcurrency() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		this.cloud.setLatency(50);
+		InvokeFunctionBatchStep step = new InvokeFunctionBatchStep("echo");
+		step.setPayloads(this.payloads(8));
+		step.setConcurrency(3);
+
+		List<Map<String, Object>> results = new InvokeFunctionBatchStep.Execution(step, this.context).run();
+
+		assertThat(results).hasSize(8);
+		for (int i = 0; i < results.size(); i++) {
+			assertThat(results.get(i).get("success")).isEqualTo(true);
+			// results come back in the order of the payloads
+			assertThat(results.get(i).get("result")).isEqualTo("{\"shard\":" + i + "}");
+		}
+		assertThat(this.cloud.functionGraph().getInvocations("echo")).isEqualTo(8);
+		assertThat(this.cloud.getMaxConcurrentRequests()).isGreaterThan(1).isLessThanOrEqualTo(3);
+		assertThat(this.log.toString()).contains("Invoke function complete, 8 succeeded, 0 failed");
+	}
+
+	@Test
+	public void reportsFailedPayloadsWithoutFailingTheBatch() throws Exception {
+		this.cloud.functionGraph().addFunction("picky", new LocalFunctionGraph.Handler() {
+			@Override
+			public String invoke(String payload) {
+				if (payload.replaceAll("\\s", "").contains("\"shard\":1")) {
+					throw new IllegalArgumentException("bad shard");
+				}
+				return "ok";
+			}
+		});
+		InvokeFunctionBatchStep step = new InvokeFunctionBatchStep("picky");
+		step.setPayloads(this.payloads(3));
+
+		List<Map<String, Object>> results = new InvokeFunctionBatchStep.Execution(step, this.context).run();
+
+		assertThat(results.get(0)).containsEntry("success", true).containsEntry("result", "ok");
+		assertThat(results.get(1)).containsEntry("success", false).containsKey("error");
+		assertThat(results.get(2)).containsEntry("success", true);
+		assertThat(this.log.toString()).contains("Invoke function complete, 2 succeeded, 1 failed");
+	}
+
+	@Test
+	public void reportsAnInvalidPayloadWithoutFailingTheBatch() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		InvokeFunctionBatchStep step = new InvokeFunctionBatchStep("echo");
+		step.setPayloads(Arrays.<Object>asList("{\"shard\":0}", "{not json", "{\"shard\":2}"));
+
+		List<Map<String, Object>> results = new InvokeFunctionBatchStep.Execution(step, this.context).run();
+
+		assertThat(results).hasSize(3);
+		assertThat(results.get(0)).containsEntry("success", true).containsEntry("result", "{\"shard\":0}");
+		assertThat(results.get(1)).containsEntry("success", false);
+		assertThat((String) results.get(1).get("error")).startsWith("Invalid JSON");
+		assertThat(results.get(2)).containsEntry("success", true).containsEntry("result", "{\"shard\":2}");
+		assertThat(this.cloud.functionGraph().getInvocations("echo")).isEqualTo(2);
+		assertThat(this.log.toString()).contains("Invoke function complete, 2 succeeded, 1 failed");
+	}
+
+	@Test
+	public void submitsAsyncInvocations() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		InvokeFunctionBatchStep step = new InvokeFunctionBatchStep("echo");
+		step.setPayloads(this.payloads(2));
+		step.setAsync(true);
+
+		List<Map<String, Object>> results = new InvokeFunctionBatchStep.Execution(step, this.context).run();
+
+		assertThat(results.get(0).get("result")).isNotEqualTo(results.get(1).get("result"));
+		assertThat(this.cloud.functionGraph().getInvocations("echo")).isEqualTo(2);
+	}
+
+	private List<Object> payloads(int count) {
+		List<Object> payloads = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			payloads.add(Collections.singletonMap("shard", i));
+		}
+		return payloads;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.EnvVars;
+
+public class InvokeFunctionStepTest {
+
+	private static final String INVOCATIONS = "POST /v2/" + LocalFunctionGraph.PROJECT_ID + "/fgs/functions/";
+
+	private LocalHuaweiCloud cloud;
+	private StepContext context;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws Exception {
+		this.cloud = new LocalHuaweiCloud();
+		EnvVars envVars = this.cloud.envVars();
+		envVars.put(OBSClientFactory.OBS_RETRY_BASE_DELAY, "0");
+		this.context = TestSupport.stepContext(envVars, null, new PrintStream(this.log, true));
+	}
+
+	@After
+	public void tearDown() {
+		// clients and URNs are cached per account and region, not per endpoint
+		FunctionUrnCache.invalidate(OBSClientFactory.getProjectKey(this.context));
+		OBSClientFactory.invalidateOscClient(this.context);
+		this.cloud.close();
+	}
+
+	@Test
+	public void invokesAFunctionByName() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		InvokeFunctionStep step = new InvokeFunctionStep("echo");
+		step.setPayload(Collections.singletonMap("version", "1.2"));
+
+		Object result = new InvokeFunctionStep.Execution(step, this.context).run();
+
+		assertThat(result).isEqualTo("{\"version\":\"1.2\"}");
+		assertThat(this.cloud.functionGraph().getInvocations("echo")).isEqualTo(1);
+		assertThat(this.log.toString()).contains("Resolved functionUrn=urn:fss:" + this.cloud.getRegion() + ":");
+	}
+
+	@Test
+	public void sendsTheRequestVersionWithoutAskingForTheLogTail() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		InvokeFunctionStep step = new InvokeFunctionStep("echo");
+		step.setPayloadAsString("{\"version\":\"1.2\"}");
+
+		new InvokeFunctionStep.Execution(step, this.context).run();
+
+		assertThat(this.cloud.functionGraph().getInvocationHeaders("echo"))
+			.containsEntry(FunctionInvocationService.REQUEST_VERSION_HEADER, "v1")
+			.doesNotContainKey("x-cff-log-type");
+	}
+
+	@Test
+	public void invokesAsynchronouslyAndReturnsTheRequestId() throws Exception {
+		String urn = this.cloud.functionGraph().addEchoFunction("echo");
+		InvokeFunctionStep step = new InvokeFunctionStep(null);
+		step.setFunctionUrn(urn);
+		step.setAsync(true);
+
+		Object requestId = new InvokeFunctionStep.Execution(step, this.context).run();
+
+		assertThat(requestId).isInstanceOf(String.class);
+		assertThat((String) requestId).isNotEmpty();
+		assertThat(this.cloud.functionGraph().getInvocations("echo")).isEqualTo(1);
+	}
+
+	@Test
+	public void retriesInvocationsThatWereThrottled() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("POST", "/v2/", 429, "FSS.0429").times(1).retryAfter(0));
+
+		new InvokeFunctionStep.Execution(new InvokeFunctionStep("echo"), this.context).run();
+
+		assertThat(this.cloud.countRequests(INVOCATIONS)).isEqualTo(2);
+		assertThat(this.cloud.functionGraph().getInvocations("echo")).isEqualTo(1);
+	}
+
+	@Test
+	public void doesNotRepeatInvocationsThatFailed() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("POST", "/v2/", 500, "FSS.0500").times(1));
+
+		try {
+			new InvokeFunctionStep.Execution(new InvokeFunctionStep("echo"), this.context).run();
+			fail("The invocation should have failed");
+		} catch (RuntimeException | IOException e) {
+			// the function may have run, so it is not invoked again
+		}
+		assertThat(this.cloud.countRequests(INVOCATIONS)).isEqualTo(1);
+	}
+}
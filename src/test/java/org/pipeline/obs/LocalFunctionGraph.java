@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The IAM and FunctionGraph part of {@link LocalHuaweiCloud}: the project,
+ * catalog and token APIs of IAM, and listing, synchronous and asynchronous
+ * invocation of FunctionGraph functions. Functions are registered with a
+ * {@link Handler} that computes the result from the request body; async
+ * invocations run immediately and report their outcome when queried.
+ */
+class LocalFunctionGraph {
+
+	static final String PROJECT_ID = "0123456789abcdef0123456789abcdef";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final LocalHuaweiCloud cloud;
+	// by URN, in registration order for listing
+	private final Map<String, Function> functions = new LinkedHashMap<>();
+	private final Map<String, ObjectNode> asyncInvocations = new ConcurrentHashMap<>();
+
+	LocalFunctionGraph(LocalHuaweiCloud cloud) {
+		this.cloud = cloud;
+	}
+
+	/**
+	 * Computes the result of an invocation from its JSON request body.
+	 */
+	interface Handler {
+		String invoke(String payload) throws Exception;
+	}
+
+	private static final class Function {
+		private final String name;
+		private final String urn;
+		private final Handler handler;
+		private final AtomicInteger invocations = new AtomicInteger();
+		private volatile Map<String, String> invocationHeaders = Collections.emptyMap();
+
+		Function(String name, String urn, Handler handler) {
+			this.name = name;
+			this.urn = urn;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Registers a function and returns its URN.
+	 */
+	synchronized String addFunction(String name, Handler handler) {
+		String urn = "urn:fss:" + this.cloud.getRegion() + ":" + PROJECT_ID + ":function:default:" + name + ":latest";
+		this.functions.put(urn, new Function(name, urn, handler));
+		return urn;
+	}
+
+	/**
+	 * Registers a function that returns its payload as compact JSON.
+	 */
+	String addEchoFunction(String name) {
+		return this.addFunction(name, new Handler() {
+			@Override
+			public String invoke(String payload) throws IOException {
+				return MAPPER.readTree(payload).toString();
+			}
+		});
+	}
+
+	/**
+	 * Returns how often the function was invoked, synchronously or not.
+	 */
+	synchronized int getInvocations(String name) {
+		for (Function function : this.functions.values()) {
+			if (function.name.equals(name)) {
+				return function.invocations.get();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the {@code x-cff-} headers of the last synchronous invocation of
+	 * the function, with lower case names.
+	 */
+	synchronized Map<String, String> getInvocationHeaders(String name) {
+		for (Function function : this.functions.values()) {
+			if (function.name.equals(name)) {
+				return function.invocationHeaders;
+			}
+		}
+		return Collections.emptyMap();
+	}
+
+	void handleIam(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if ("GET".equals(exchange.getRequestMethod()) && "/v3/projects".equals(path)) {
+			String name = this.cloud.getRegion();
+			String query = exchange.getRequestURI().getRawQuery();
+			if (query != null) {
+				for (String parameter : query.split("&")) {
+					if (parameter.startsWith("name=")) {
+						name = URLDecoder.decode(parameter.substring(5), "UTF-8");
+					}
+				}
+			}
+			ObjectNode body = MAPPER.createObjectNode();
+			ArrayNode projects = body.putArray("projects");
+			if (this.cloud.getRegion().equals(name)) {
+				projects.addObject().put("id", PROJECT_ID).put("name", name).put("domain_id", PROJECT_ID).put("enabled", true);
+			}
+			body.putObject("links").put("self", this.cloud.getEndpoint() + path);
+			this.cloud.sendJson(exchange, 200, body.toString());
+		} else if ("GET".equals(exchange.getRequestMethod()) && ("/v3/services".equals(path) || "/v3/endpoints".equals(path))) {
+			// the catalog is empty, so the client keeps the endpoints it was configured with
+			ObjectNode body = MAPPER.createObjectNode();
+			body.putArray(path.substring("/v3/".length()));
+			body.putObject("links").put("self", this.cloud.getEndpoint() + path);
+			this.cloud.sendJson(exchange, 200, body.toString());
+		} else if ("POST".equals(exchange.getRequestMethod()) && "/v3/auth/tokens".equals(path)) {
+			this.cloud.readBody(exchange);
+			ObjectNode body = MAPPER.createObjectNode();
+			ObjectNode token = body.putObject("token");
+			token.put("expires_at", "2099-01-01T00:00:00.000000Z").put("issued_at", "2019-01-01T00:00:00.000000Z");
+			token.putArray("methods").add("password");
+			token.putObject("project").put("id", PROJECT_ID).put("name", this.cloud.getRegion())
+				.putObject("domain").put("id", PROJECT_ID).put("name", "local");
+			token.putObject("user").put("id", PROJECT_ID).put("name", "local")
+				.putObject("domain").put("id", PROJECT_ID).put("name", "local");
+			token.putArray("catalog");
+			exchange.getResponseHeaders().set("X-Subject-Token", UUID.randomUUID().toString());
+			this.cloud.sendJson(exchange, 201, body.toString());
+		} else {
+			this.sendError(exchange, 404, "IAM.0001", "Not found: " + path);
+		}
+	}
+
+	void handle(HttpExchange exchange) throws IOException {
+		String prefix = "/v2/" + PROJECT_ID + "/fgs/functions";
+		String path = exchange.getRequestURI().getPath();
+		if (!path.startsWith(prefix)) {
+			this.sendError(exchange, 404, "FSS.0404", "Unknown project or API: " + path);
+			return;
+		}
+		String rest = path.substring(prefix.length());
+		String method = exchange.getRequestMethod();
+		if (rest.isEmpty() && "GET".equals(method)) {
+			this.listFunctions(exchange);
+			return;
+		}
+		String[] parts = rest.substring(1).split("/");
+		Function function;
+		synchronized (this) {
+			function = this.functions.get(parts[0]);
+		}
+		String action = parts.length > 1 ? parts[1] : "";
+		if (function == null) {
+			this.sendError(exchange, 404, "FSS.1051", "Function " + parts[0] + " does not exist");
+		} else if ("invocations".equals(action) && "POST".equals(method)) {
+			this.invoke(exchange, function);
+		} else if ("invocations-async".equals(action) && "POST".equals(method)) {
+			this.invokeAsync(exchange, function);
+		} else if ("async-invocations".equals(action) && "GET".equals(method)) {
+			this.getAsyncInvocations(exchange);
+		} else {
+			this.sendError(exchange, 404, "FSS.0404", "Unknown API: " + path);
+		}
+	}
+
+	private void listFunctions(HttpExchange exchange) throws IOException {
+		int marker = 0;
+		int maxItems = 400;
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				String[] pair = parameter.split("=", 2);
+				if (pair.length == 2 && "marker".equals(pair[0]) && !pair[1].isEmpty()) {
+					marker = Integer.parseInt(pair[1]);
+				} else if (pair.length == 2 && "maxitems".equalsIgnoreCase(pair[0])) {
+					maxItems = Integer.parseInt(pair[1]);
+				}
+			}
+		}
+		List<Function> all;
+		synchronized (this) {
+			all = new ArrayList<>(this.functions.values());
+		}
+		ObjectNode body = MAPPER.createObjectNode();
+		ArrayNode list = body.putArray("functions");
+		int end = Math.min(all.size(), marker + maxItems);
+		for (int i = marker; i < end; i++) {
+			list.addObject().put("func_urn", all.get(i).urn).put("func_name", all.get(i).name)
+				.put("namespace", PROJECT_ID).put("project_name", this.cloud.getRegion()).put("package", "default");
+		}
+		body.put("next_marker", end);
+		this.cloud.sendJson(exchange, 200, body.toString());
+	}
+
+	private void invoke(HttpExchange exchange, Function function) throws IOException {
+		String payload = new String(this.cloud.readBody(exchange), StandardCharsets.UTF_8);
+		function.invocations.incrementAndGet();
+		Map<String, String> headers = new HashMap<>();
+		for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+			String headerName = header.getKey().toLowerCase(Locale.ENGLISH);
+			if (headerName.startsWith("x-cff-")) {
+				headers.put(headerName, header.getValue().get(0));
+			}
+		}
+		function.invocationHeaders = headers;
+		String result;
+		try {
+			result = function.handler.invoke(payload);
+		} catch (Exception e) {
+			this.sendError(exchange, 500, "FSS.0500", "Function failed: " + e.getMessage());
+			return;
+		}
+		ObjectNode body = MAPPER.createObjectNode();
+		body.put("request_id", UUID.randomUUID().toString()).put("result", result).put("log", "").put("status", 200);
+		this.cloud.sendJson(exchange, 200, body.toString());
+	}
+
+	private void invokeAsync(HttpExchange exchange, Function function) throws IOException {
+		String payload = new String(this.cloud.readBody(exchange), StandardCharsets.UTF_8);
+		function.invocations.incrementAndGet();
+		String requestId = UUID.randomUUID().toString();
+		ObjectNode invocation = MAPPER.createObjectNode();
+		invocation.put("request_id", requestId);
+		try {
+			function.handler.invoke(payload);
+			invocation.put("status", AsyncInvocationService.STATUS_SUCCESS);
+		} catch (Exception e) {
+			invocation.put("status", AsyncInvocationService.STATUS_FAIL).put("error_message", e.getMessage());
+		}
+		this.asyncInvocations.put(requestId, invocation);
+		this.cloud.sendJson(exchange, 202, MAPPER.createObjectNode().put("request_id", requestId).toString());
+	}
+
+	private void getAsyncInvocations(HttpExchange exchange) throws IOException {
+		ObjectNode body = MAPPER.createObjectNode();
+		ArrayNode invocations = body.putArray("invocations");
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				if (parameter.startsWith("request_id=")) {
+					ObjectNode invocation = this.asyncInvocations.get(URLDecoder.decode(parameter.substring(11), "UTF-8"));
+					if (invocation != null) {
+						invocations.add(invocation);
+					}
+				}
+			}
+		}
+		this.cloud.sendJson(exchange, 200, body.toString());
+	}
+
+	private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+		this.cloud.sendJson(exchange, status, MAPPER.createObjectNode().put("error_code", code).put("error_msg", message).toString());
+	}
+}
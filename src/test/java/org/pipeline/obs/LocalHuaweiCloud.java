@@ -0,0 +1,436 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.obs.services.ObsClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.EnvVars;
+
+/**
+ * An in-process stand-in for the HuaweiCloud services the plugin talks to:
+ * the OBS object, multipart and head APIs ({@link LocalObsService}), and the
+ * IAM project list and FunctionGraph list and invoke APIs
+ * ({@link LocalFunctionGraph}). Everything runs on one HTTP port on
+ * localhost, so tests and benchmarks need no network and no account.
+ *
+ * <p>Latency, bandwidth and faults can be set at any time and apply to the
+ * following requests. Each request is recorded, and the peak number of
+ * requests in flight is tracked, so tests can check retries and concurrency
+ * limits.
+ *
+ * <pre>
+ * try (LocalHuaweiCloud cloud = new LocalHuaweiCloud()) {
+ *     cloud.obs().createBucket("builds");
+ *     cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/", 503, "ServiceUnavailable").times(2));
+ *     EnvVars env = cloud.envVars();
+ *     ...
+ * }
+ * </pre>
+ */
+class LocalHuaweiCloud implements AutoCloseable {
+
+	static final String ACCESS_KEY = "local-access-key";
+	static final String SECRET_KEY = "local-secret-key";
+
+	private static final AtomicInteger REGIONS = new AtomicInteger();
+
+	// the FunctionGraph client caches endpoints by region for the life of the JVM
+	private final String region = "local-" + REGIONS.incrementAndGet();
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final LocalObsService obs = new LocalObsService(this);
+	private final LocalFunctionGraph functionGraph = new LocalFunctionGraph(this);
+
+	private final List<Fault> faults = new CopyOnWriteArrayList<>();
+	private final List<String> requests = new CopyOnWriteArrayList<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private volatile long latencyMillis;
+	private volatile long bandwidth;
+	// shared by all connections, like a single link
+	private long linkFreeAt;
+
+	LocalHuaweiCloud() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.executor = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				LocalHuaweiCloud.this.dispatch(exchange);
+			}
+		});
+		this.server.start();
+	}
+
+	LocalObsService obs() {
+		return this.obs;
+	}
+
+	LocalFunctionGraph functionGraph() {
+		return this.functionGraph;
+	}
+
+	String getRegion() {
+		return this.region;
+	}
+
+	String getEndpoint() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the variables {@code withOBS} would set for this endpoint.
+	 */
+	EnvVars envVars() {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_ENDPOINT_URL, this.getEndpoint());
+		vars.put(OBSClientFactory.OBS_IAM_ENDPOINT, this.getEndpoint());
+		vars.put(OBSClientFactory.OBS_FUNCTIONGRAPH_ENDPOINT, this.getEndpoint());
+		vars.put(OBSClientFactory.OBS_REGION, this.region);
+		vars.put(OBSClientFactory.OBS_ACCESS_KEY_ID, ACCESS_KEY);
+		vars.put(OBSClientFactory.OBS_SECRET_ACCESS_KEY, SECRET_KEY);
+		return vars;
+	}
+
+	/**
+	 * Returns a pooled client for this endpoint, to be released with
+	 * {@link OBSClientFactory#releaseHuaweiObsClient(ObsClient)}.
+	 */
+	ObsClient newObsClient() {
+		return OBSClientFactory.createHuaweiObsClient(this.envVars());
+	}
+
+	/**
+	 * Delays every response by the given time.
+	 */
+	void setLatency(long millis) {
+		this.latencyMillis = millis;
+	}
+
+	/**
+	 * Limits the rate of request and response bodies over all connections,
+	 * in bytes per second; 0 means unlimited.
+	 */
+	void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	void fault(Fault fault) {
+		this.faults.add(fault);
+	}
+
+	void clearFaults() {
+		this.faults.clear();
+	}
+
+	/**
+	 * Returns the requests received so far as {@code "METHOD /path?query"}.
+	 */
+	List<String> getRequests() {
+		return Collections.unmodifiableList(new ArrayList<>(this.requests));
+	}
+
+	/**
+	 * Returns the number of received requests that start with the prefix,
+	 * e.g. {@code "PUT /bucket/dir/"}. Paths are recorded decoded.
+	 */
+	int countRequests(String prefix) {
+		int count = 0;
+		for (String request : this.requests) {
+			if (request.startsWith(prefix)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the largest number of requests that were in flight at once.
+	 */
+	int getMaxConcurrentRequests() {
+		return this.maxInFlight.get();
+	}
+
+	void reset() {
+		this.requests.clear();
+		this.maxInFlight.set(0);
+		this.faults.clear();
+		this.latencyMillis = 0;
+		this.bandwidth = 0;
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	private void dispatch(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String query = exchange.getRequestURI().getRawQuery();
+		String request = exchange.getRequestMethod() + " " + path + (query != null ? "?" + query : "");
+		this.requests.add(request);
+		int current = this.inFlight.incrementAndGet();
+		while (true) {
+			int max = this.maxInFlight.get();
+			if (current <= max || this.maxInFlight.compareAndSet(max, current)) {
+				break;
+			}
+		}
+		try {
+			if (this.latencyMillis > 0) {
+				Thread.sleep(this.latencyMillis);
+			}
+			Fault fault = this.takeFault(exchange.getRequestMethod(), path);
+			if (fault != null) {
+				fault.apply(this, exchange);
+			} else if (path.startsWith("/v3/")) {
+				this.functionGraph.handleIam(exchange);
+			} else if (path.startsWith("/v2/")) {
+				this.functionGraph.handle(exchange);
+			} else {
+				this.obs.handle(exchange);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			this.sendXmlError(exchange, 500, "InternalError", String.valueOf(e));
+		} finally {
+			this.inFlight.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private Fault takeFault(String method, String path) {
+		Iterator<Fault> iterator = this.faults.iterator();
+		while (iterator.hasNext()) {
+			Fault fault = iterator.next();
+			if (fault.matches(method, path) && fault.take()) {
+				return fault;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the request body at the configured bandwidth.
+	 */
+	byte[] readBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = exchange.getRequestBody()) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				this.transfer(read);
+				out.write(buffer, 0, read);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Sends the response body, or only the status when body is null, at the
+	 * configured bandwidth. For HEAD requests, contentLength is announced
+	 * without a body.
+	 */
+	void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("x-obs-request-id", UUID.randomUUID().toString());
+		if (contentType != null) {
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+		}
+		if (body == null || "HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		if (body.length == 0) {
+			return;
+		}
+		try (OutputStream out = exchange.getResponseBody()) {
+			for (int offset = 0; offset < body.length; offset += 64 * 1024) {
+				int length = Math.min(64 * 1024, body.length - offset);
+				this.transfer(length);
+				out.write(body, offset, length);
+			}
+		}
+	}
+
+	void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+		this.send(exchange, status, "application/xml",
+			("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8));
+	}
+
+	void sendXmlError(HttpExchange exchange, int status, String code, String message) throws IOException {
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			this.send(exchange, status, null, null);
+			return;
+		}
+		this.sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + escape(message)
+			+ "</Message><RequestId>" + UUID.randomUUID() + "</RequestId></Error>");
+	}
+
+	void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		this.send(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void transfer(int bytes) throws IOException {
+		long rate = this.bandwidth;
+		if (rate <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long start = Math.max(now, this.linkFreeAt);
+			this.linkFreeAt = start + TimeUnit.SECONDS.toNanos(bytes) / rate;
+			wait = this.linkFreeAt - now;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while throttling", e);
+		}
+	}
+
+	static String escape(String text) {
+		return text == null ? "" : text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	/**
+	 * A failure returned instead of the real response for matching requests,
+	 * a limited number of times or until {@link #clearFaults()}.
+	 */
+	static final class Fault {
+
+		private final String method;
+		private final String pathPrefix;
+		private final int status;
+		private final String code;
+		private long retryAfter = -1;
+		private final AtomicInteger skipped = new AtomicInteger();
+		private final AtomicInteger remaining = new AtomicInteger(Integer.MAX_VALUE);
+
+		private Fault(String method, String pathPrefix, int status, String code) {
+			this.method = method;
+			this.pathPrefix = pathPrefix;
+			this.status = status;
+			this.code = code;
+		}
+
+		/**
+		 * Answers with an error status. Method and path prefix may be null to
+		 * match every request.
+		 */
+		static Fault status(String method, String pathPrefix, int status, String code) {
+			return new Fault(method, pathPrefix, status, code);
+		}
+
+		/**
+		 * Closes the connection without a response.
+		 */
+		static Fault disconnect(String method, String pathPrefix) {
+			return new Fault(method, pathPrefix, -1, null);
+		}
+
+		/**
+		 * Limits the fault to the next {@code count} matching requests.
+		 */
+		Fault times(int count) {
+			this.remaining.set(count);
+			return this;
+		}
+
+		/**
+		 * Lets the first {@code count} matching requests through before the
+		 * fault applies.
+		 */
+		Fault after(int count) {
+			this.skipped.set(count);
+			return this;
+		}
+
+		/**
+		 * Adds a {@code Retry-After} header to the error.
+		 */
+		Fault retryAfter(long seconds) {
+			this.retryAfter = seconds;
+			return this;
+		}
+
+		int getRemaining() {
+			return this.remaining.get();
+		}
+
+		boolean matches(String requestMethod, String path) {
+			return (this.method == null || this.method.equals(requestMethod))
+				&& (this.pathPrefix == null || path.startsWith(this.pathPrefix));
+		}
+
+		boolean take() {
+			if (this.skipped.getAndDecrement() > 0) {
+				return false;
+			}
+			while (true) {
+				int left = this.remaining.get();
+				if (left <= 0) {
+					return false;
+				}
+				if (this.remaining.compareAndSet(left, left - 1)) {
+					return true;
+				}
+			}
+		}
+
+		void apply(LocalHuaweiCloud cloud, HttpExchange exchange) throws IOException {
+			if (this.status < 0) {
+				// closing the exchange before a status line was sent drops the connection
+				return;
+			}
+			if (this.retryAfter >= 0) {
+				exchange.getResponseHeaders().set("Retry-After", String.valueOf(this.retryAfter));
+			}
+			// an error sent before the body was read would reach the client as a reset connection
+			cloud.readBody(exchange);
+			String path = exchange.getRequestURI().getPath();
+			if (path.startsWith("/v2/") || path.startsWith("/v3/")) {
+				cloud.sendJson(exchange, this.status, "{\"error_code\":\"" + this.code + "\",\"error_msg\":\"Injected fault\"}");
+			} else {
+				cloud.sendXmlError(exchange, this.status, this.code, "Injected fault");
+			}
+		}
+	}
+}
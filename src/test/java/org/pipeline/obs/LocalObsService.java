@@ -0,0 +1,527 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import hudson.Util;
+
+/**
+ * The OBS part of {@link LocalHuaweiCloud}: buckets, objects with metadata
+ * and ranged and {@code If-Match} reads, listing, batch delete, server-side
+ * copy and multipart uploads, addressed path style. Objects are kept in
+ * memory; with {@link #setRetainContent(boolean)} switched off only their
+ * size and ETag are kept, for load tests with large objects.
+ */
+class LocalObsService {
+
+	private static final String META_PREFIX = "x-obs-meta-";
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+	private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+	private static final Pattern DELETE_KEY = Pattern.compile("<Key>([^<]*)</Key>");
+
+	private final LocalHuaweiCloud cloud;
+	private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+	private volatile boolean retainContent = true;
+
+	LocalObsService(LocalHuaweiCloud cloud) {
+		this.cloud = cloud;
+	}
+
+	/**
+	 * A stored object or uploaded part.
+	 */
+	static final class StoredObject {
+		private final byte[] content;
+		private final long size;
+		private final String etag;
+		private final Map<String, String> headers;
+		private final Date lastModified = new Date();
+
+		StoredObject(byte[] content, long size, String etag, Map<String, String> headers) {
+			this.content = content;
+			this.size = size;
+			this.etag = etag;
+			this.headers = headers;
+		}
+
+		/**
+		 * Returns the content, or null if content is not retained.
+		 */
+		byte[] getContent() {
+			return this.content;
+		}
+
+		long getSize() {
+			return this.size;
+		}
+
+		String getEtag() {
+			return this.etag;
+		}
+
+		/**
+		 * Returns Content-Type, Content-Encoding, Cache-Control and the user
+		 * metadata (with its {@code x-obs-meta-} prefix) as sent by the client.
+		 */
+		Map<String, String> getHeaders() {
+			return this.headers;
+		}
+	}
+
+	private static final class Upload {
+		private final String bucket;
+		private final String key;
+		private final Map<String, String> headers;
+		private final NavigableMap<Integer, StoredObject> parts = new ConcurrentSkipListMap<>();
+
+		Upload(String bucket, String key, Map<String, String> headers) {
+			this.bucket = bucket;
+			this.key = key;
+			this.headers = headers;
+		}
+	}
+
+	void setRetainContent(boolean retainContent) {
+		this.retainContent = retainContent;
+	}
+
+	void createBucket(String bucket) {
+		this.bucket(bucket, true);
+	}
+
+	void putObject(String bucket, String key, byte[] content, String contentType) {
+		Map<String, String> headers = new HashMap<>();
+		if (contentType != null) {
+			headers.put("Content-Type", contentType);
+		}
+		this.bucket(bucket, true).put(key, this.store(content, headers));
+	}
+
+	/**
+	 * Returns the object, or null if it does not exist.
+	 */
+	StoredObject getObject(String bucket, String key) {
+		NavigableMap<String, StoredObject> objects = this.buckets.get(bucket);
+		return objects != null ? objects.get(key) : null;
+	}
+
+	/**
+	 * Returns the keys in the bucket, in listing order.
+	 */
+	List<String> listKeys(String bucket) {
+		return new ArrayList<>(this.bucket(bucket, false).keySet());
+	}
+
+	/**
+	 * Returns the number of multipart uploads that were neither completed
+	 * nor aborted.
+	 */
+	int getOpenUploads() {
+		return this.uploads.size();
+	}
+
+	void handle(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		int slash = path.indexOf('/', 1);
+		String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+		String key = slash < 0 ? "" : path.substring(slash + 1);
+
+		if (query.containsKey("apiversion")) {
+			exchange.getResponseHeaders().set("x-obs-api", "3.0");
+			this.cloud.send(exchange, 200, null, null);
+		} else if (bucket.isEmpty()) {
+			this.cloud.sendXmlError(exchange, 405, "MethodNotAllowed", "Listing buckets is not supported");
+		} else if (key.isEmpty()) {
+			this.handleBucket(exchange, method, bucket, query);
+		} else if (this.buckets.get(bucket) == null) {
+			this.cloud.sendXmlError(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+		} else if (query.containsKey("uploads") && "POST".equals(method)) {
+			this.initiateUpload(exchange, bucket, key);
+		} else if (query.containsKey("uploadId")) {
+			this.handleUpload(exchange, method, bucket, key, query);
+		} else if ("PUT".equals(method) && query.containsKey("metadata")) {
+			this.setMetadata(exchange, bucket, key);
+		} else if ("PUT".equals(method) && exchange.getRequestHeaders().containsKey("x-obs-copy-source")) {
+			this.copyObject(exchange, bucket, key);
+		} else if ("PUT".equals(method)) {
+			StoredObject object = this.store(this.cloud.readBody(exchange), requestHeaders(exchange.getRequestHeaders()));
+			this.bucket(bucket, false).put(key, object);
+			exchange.getResponseHeaders().set("ETag", '"' + object.etag + '"');
+			this.cloud.send(exchange, 200, null, null);
+		} else if ("GET".equals(method) || "HEAD".equals(method)) {
+			this.getObject(exchange, bucket, key);
+		} else if ("DELETE".equals(method)) {
+			this.bucket(bucket, false).remove(key);
+			this.cloud.send(exchange, 204, null, null);
+		} else {
+			this.cloud.sendXmlError(exchange, 405, "MethodNotAllowed", method);
+		}
+	}
+
+	private void handleBucket(HttpExchange exchange, String method, String bucket, Map<String, String> query) throws IOException {
+		NavigableMap<String, StoredObject> objects = this.buckets.get(bucket);
+		if ("PUT".equals(method)) {
+			this.cloud.readBody(exchange);
+			if (objects != null) {
+				this.cloud.sendXmlError(exchange, 409, "BucketAlreadyOwnedByYou", "Your previous request to create the named bucket succeeded");
+				return;
+			}
+			this.createBucket(bucket);
+			this.cloud.send(exchange, 200, null, null);
+		} else if (objects == null) {
+			this.cloud.sendXmlError(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+		} else if ("HEAD".equals(method)) {
+			this.cloud.send(exchange, 200, null, null);
+		} else if ("GET".equals(method)) {
+			this.listObjects(exchange, bucket, objects, query);
+		} else if ("POST".equals(method) && query.containsKey("delete")) {
+			String body = new String(this.cloud.readBody(exchange), StandardCharsets.UTF_8);
+			StringBuilder xml = new StringBuilder("<DeleteResult>");
+			Matcher matcher = DELETE_KEY.matcher(body);
+			while (matcher.find()) {
+				String key = unescape(matcher.group(1));
+				objects.remove(key);
+				xml.append("<Deleted><Key>").append(LocalHuaweiCloud.escape(key)).append("</Key></Deleted>");
+			}
+			this.cloud.sendXml(exchange, 200, xml.append("</DeleteResult>").toString());
+		} else {
+			this.cloud.sendXmlError(exchange, 405, "MethodNotAllowed", method);
+		}
+	}
+
+	private void listObjects(HttpExchange exchange, String bucket, NavigableMap<String, StoredObject> objects, Map<String, String> query) throws IOException {
+		String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+		String marker = query.get("marker");
+		int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : 1000;
+		StringBuilder contents = new StringBuilder();
+		NavigableMap<String, StoredObject> view = marker != null && !marker.isEmpty() ? objects.tailMap(marker, false) : objects;
+		int count = 0;
+		String last = null;
+		boolean truncated = false;
+		for (Map.Entry<String, StoredObject> entry : view.entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) {
+				if (entry.getKey().compareTo(prefix) > 0) {
+					break;
+				}
+				continue;
+			}
+			if (count == maxKeys) {
+				truncated = true;
+				break;
+			}
+			StoredObject object = entry.getValue();
+			contents.append("<Contents><Key>").append(LocalHuaweiCloud.escape(entry.getKey()))
+				.append("</Key><LastModified>").append(iso8601(object.lastModified))
+				.append("</LastModified><ETag>\"").append(object.etag)
+				.append("\"</ETag><Size>").append(object.size)
+				.append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+			last = entry.getKey();
+			count++;
+		}
+		this.cloud.sendXml(exchange, 200, "<ListBucketResult><Name>" + bucket + "</Name><Prefix>" + LocalHuaweiCloud.escape(prefix)
+			+ "</Prefix><Marker>" + LocalHuaweiCloud.escape(marker) + "</Marker>"
+			+ (truncated ? "<NextMarker>" + LocalHuaweiCloud.escape(last) + "</NextMarker>" : "")
+			+ "<MaxKeys>" + maxKeys + "</MaxKeys><IsTruncated>" + truncated + "</IsTruncated>" + contents + "</ListBucketResult>");
+	}
+
+	private void getObject(HttpExchange exchange, String bucket, String key) throws IOException {
+		StoredObject object = this.getObject(bucket, key);
+		if (object == null) {
+			this.cloud.sendXmlError(exchange, 404, "NoSuchKey", "The specified key does not exist");
+			return;
+		}
+		String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+		if (ifMatch != null && !ifMatch.replace("\"", "").equals(object.etag)) {
+			this.cloud.sendXmlError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+			return;
+		}
+		Headers response = exchange.getResponseHeaders();
+		for (Map.Entry<String, String> header : object.headers.entrySet()) {
+			response.set(header.getKey(), header.getValue());
+		}
+		response.set("ETag", '"' + object.etag + '"');
+		response.set("Last-Modified", rfc1123(object.lastModified));
+		response.set("Accept-Ranges", "bytes");
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			// the server keeps a Content-Length set by hand on HEAD responses
+			response.set("Content-Length", String.valueOf(object.size));
+			this.cloud.send(exchange, 200, null, null);
+			return;
+		}
+		byte[] content = object.content != null ? object.content : new byte[(int) object.size];
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		Matcher matcher = range != null ? RANGE.matcher(range) : null;
+		if (matcher != null && matcher.matches()) {
+			int start = Integer.parseInt(matcher.group(1));
+			int end = matcher.group(2).isEmpty() ? content.length - 1 : Math.min(Integer.parseInt(matcher.group(2)), content.length - 1);
+			if (start > end) {
+				response.set("Content-Range", "bytes */" + content.length);
+				this.cloud.sendXmlError(exchange, 416, "InvalidRange", "The requested range cannot be satisfied");
+				return;
+			}
+			response.set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+			this.cloud.send(exchange, 206, null, Arrays.copyOfRange(content, start, end + 1));
+		} else {
+			this.cloud.send(exchange, 200, null, content);
+		}
+	}
+
+	private void setMetadata(HttpExchange exchange, String bucket, String key) throws IOException {
+		this.cloud.readBody(exchange);
+		StoredObject object = this.getObject(bucket, key);
+		if (object == null) {
+			this.cloud.sendXmlError(exchange, 404, "NoSuchKey", "The specified key does not exist");
+			return;
+		}
+		Map<String, String> headers = new HashMap<>(object.headers);
+		headers.putAll(requestHeaders(exchange.getRequestHeaders()));
+		String cacheControl = exchange.getRequestHeaders().getFirst("x-obs-cache-control");
+		if (cacheControl != null) {
+			headers.put("Cache-Control", cacheControl);
+		}
+		this.bucket(bucket, false).put(key, new StoredObject(object.content, object.size, object.etag, headers));
+		this.cloud.send(exchange, 200, null, null);
+	}
+
+	private void copyObject(HttpExchange exchange, String bucket, String key) throws IOException {
+		this.cloud.readBody(exchange);
+		StoredObject source = this.copySource(exchange);
+		if (source == null) {
+			this.cloud.sendXmlError(exchange, 404, "NoSuchKey", "The specified copy source does not exist");
+			return;
+		}
+		Map<String, String> headers = "REPLACE".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("x-obs-metadata-directive"))
+			? requestHeaders(exchange.getRequestHeaders()) : source.headers;
+		StoredObject copy = new StoredObject(source.content, source.size, source.etag, headers);
+		this.bucket(bucket, false).put(key, copy);
+		this.cloud.sendXml(exchange, 200, "<CopyObjectResult><LastModified>" + iso8601(copy.lastModified)
+			+ "</LastModified><ETag>\"" + copy.etag + "\"</ETag></CopyObjectResult>");
+	}
+
+	private StoredObject copySource(HttpExchange exchange) throws UnsupportedEncodingException {
+		String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-obs-copy-source").replace("+", "%2B"), "UTF-8");
+		source = source.startsWith("/") ? source.substring(1) : source;
+		int slash = source.indexOf('/');
+		return slash < 0 ? null : this.getObject(source.substring(0, slash), source.substring(slash + 1));
+	}
+
+	private void initiateUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+		this.cloud.readBody(exchange);
+		String uploadId = UUID.randomUUID().toString().replace("-", "");
+		this.uploads.put(uploadId, new Upload(bucket, key, requestHeaders(exchange.getRequestHeaders())));
+		this.cloud.sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>"
+			+ LocalHuaweiCloud.escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+	}
+
+	private void handleUpload(HttpExchange exchange, String method, String bucket, String key, Map<String, String> query) throws IOException {
+		String uploadId = query.get("uploadId");
+		Upload upload = this.uploads.get(uploadId);
+		if (upload == null || !upload.bucket.equals(bucket) || !upload.key.equals(key)) {
+			this.cloud.readBody(exchange);
+			this.cloud.sendXmlError(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+			return;
+		}
+		if ("PUT".equals(method) && exchange.getRequestHeaders().containsKey("x-obs-copy-source")) {
+			this.copyPart(exchange, upload, Integer.parseInt(query.get("partNumber")));
+		} else if ("PUT".equals(method)) {
+			StoredObject part = this.store(this.cloud.readBody(exchange), new HashMap<String, String>());
+			upload.parts.put(Integer.parseInt(query.get("partNumber")), part);
+			exchange.getResponseHeaders().set("ETag", '"' + part.etag + '"');
+			this.cloud.send(exchange, 200, null, null);
+		} else if ("GET".equals(method)) {
+			this.listParts(exchange, upload, uploadId);
+		} else if ("POST".equals(method)) {
+			this.completeUpload(exchange, upload, uploadId);
+		} else if ("DELETE".equals(method)) {
+			this.uploads.remove(uploadId);
+			this.cloud.send(exchange, 204, null, null);
+		} else {
+			this.cloud.sendXmlError(exchange, 405, "MethodNotAllowed", method);
+		}
+	}
+
+	private void copyPart(HttpExchange exchange, Upload upload, int partNumber) throws IOException {
+		this.cloud.readBody(exchange);
+		StoredObject source = this.copySource(exchange);
+		if (source == null) {
+			this.cloud.sendXmlError(exchange, 404, "NoSuchKey", "The specified copy source does not exist");
+			return;
+		}
+		long start = 0;
+		long end = source.size - 1;
+		String range = exchange.getRequestHeaders().getFirst("x-obs-copy-source-range");
+		Matcher matcher = range != null ? RANGE.matcher(range) : null;
+		if (matcher != null && matcher.matches()) {
+			start = Long.parseLong(matcher.group(1));
+			end = matcher.group(2).isEmpty() ? end : Long.parseLong(matcher.group(2));
+		}
+		if (start > end || end >= source.size) {
+			this.cloud.sendXmlError(exchange, 400, "InvalidArgument", "Invalid copy source range " + range);
+			return;
+		}
+		StoredObject part;
+		if (source.content != null) {
+			part = this.store(Arrays.copyOfRange(source.content, (int) start, (int) end + 1), new HashMap<String, String>());
+		} else {
+			part = new StoredObject(null, end - start + 1, source.etag + "-" + start, new HashMap<String, String>());
+		}
+		upload.parts.put(partNumber, part);
+		this.cloud.sendXml(exchange, 200, "<CopyPartResult><LastModified>" + iso8601(part.lastModified)
+			+ "</LastModified><ETag>\"" + part.etag + "\"</ETag></CopyPartResult>");
+	}
+
+	private void listParts(HttpExchange exchange, Upload upload, String uploadId) throws IOException {
+		StringBuilder parts = new StringBuilder();
+		int last = 0;
+		for (Map.Entry<Integer, StoredObject> entry : upload.parts.entrySet()) {
+			parts.append("<Part><PartNumber>").append(entry.getKey())
+				.append("</PartNumber><LastModified>").append(iso8601(entry.getValue().lastModified))
+				.append("</LastModified><ETag>\"").append(entry.getValue().etag)
+				.append("\"</ETag><Size>").append(entry.getValue().size).append("</Size></Part>");
+			last = entry.getKey();
+		}
+		this.cloud.sendXml(exchange, 200, "<ListPartsResult><Bucket>" + upload.bucket + "</Bucket><Key>"
+			+ LocalHuaweiCloud.escape(upload.key) + "</Key><UploadId>" + uploadId
+			+ "</UploadId><StorageClass>STANDARD</StorageClass><PartNumberMarker>0</PartNumberMarker><NextPartNumberMarker>"
+			+ last + "</NextPartNumberMarker><MaxParts>1000</MaxParts><IsTruncated>false</IsTruncated>" + parts + "</ListPartsResult>");
+	}
+
+	private void completeUpload(HttpExchange exchange, Upload upload, String uploadId) throws IOException {
+		String body = new String(this.cloud.readBody(exchange), StandardCharsets.UTF_8);
+		ByteArrayOutputStream content = this.retainContent ? new ByteArrayOutputStream() : null;
+		MessageDigest digest = Checksums.md5();
+		long size = 0;
+		int count = 0;
+		Matcher matcher = PART_NUMBER.matcher(body);
+		while (matcher.find()) {
+			StoredObject part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+			if (part == null) {
+				this.cloud.sendXmlError(exchange, 400, "InvalidPart", "Part " + matcher.group(1) + " was not uploaded");
+				return;
+			}
+			if (content != null && part.content != null) {
+				content.write(part.content);
+			}
+			digest.update(part.etag.getBytes(StandardCharsets.UTF_8));
+			size += part.size;
+			count++;
+		}
+		String etag = Util.toHexString(digest.digest()) + "-" + count;
+		this.uploads.remove(uploadId);
+		this.bucket(upload.bucket, false).put(upload.key,
+			new StoredObject(content != null ? content.toByteArray() : null, size, etag, upload.headers));
+		this.cloud.sendXml(exchange, 200, "<CompleteMultipartUploadResult><Location>/" + upload.bucket + "/"
+			+ LocalHuaweiCloud.escape(upload.key) + "</Location><Bucket>" + upload.bucket + "</Bucket><Key>"
+			+ LocalHuaweiCloud.escape(upload.key) + "</Key><ETag>\"" + etag + "\"</ETag></CompleteMultipartUploadResult>");
+	}
+
+	private NavigableMap<String, StoredObject> bucket(String bucket, boolean create) {
+		if (create) {
+			this.buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<String, StoredObject>());
+		}
+		NavigableMap<String, StoredObject> objects = this.buckets.get(bucket);
+		if (objects == null) {
+			throw new IllegalArgumentException("No such bucket " + bucket);
+		}
+		return objects;
+	}
+
+	private StoredObject store(byte[] content, Map<String, String> headers) {
+		MessageDigest digest = Checksums.md5();
+		digest.update(content);
+		return new StoredObject(this.retainContent ? content : null, content.length, Util.toHexString(digest.digest()), headers);
+	}
+
+	/**
+	 * Returns the headers that are stored with an object.
+	 */
+	private static Map<String, String> requestHeaders(Headers request) {
+		Map<String, String> headers = new HashMap<>();
+		for (Map.Entry<String, List<String>> header : request.entrySet()) {
+			String name = header.getKey().toLowerCase(Locale.ENGLISH);
+			String value = header.getValue().get(0);
+			if (name.startsWith(META_PREFIX)) {
+				headers.put(name, value);
+			} else if ("content-type".equals(name)) {
+				headers.put("Content-Type", value);
+			} else if ("content-encoding".equals(name)) {
+				headers.put("Content-Encoding", value);
+			} else if ("cache-control".equals(name)) {
+				headers.put("Cache-Control", value);
+			}
+		}
+		return headers;
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<>();
+		if (query == null || query.isEmpty()) {
+			return parameters;
+		}
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals < 0) {
+				parameters.put(URLDecoder.decode(parameter, "UTF-8"), "");
+			} else {
+				parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+					URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	private static String unescape(String text) {
+		return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	private static String iso8601(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+	private static String rfc1123(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+}
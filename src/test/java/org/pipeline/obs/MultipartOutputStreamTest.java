@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obs.services.ObsClient;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+public class MultipartOutputStreamTest {
+
+	private static final long PART_SIZE = 128 * SizeUtils.KB;
+
+	private LocalHuaweiCloud cloud;
+	private ObsClient obs;
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.obs = this.cloud.newObsClient();
+	}
+
+	@After
+	public void tearDown() {
+		OBSClientFactory.releaseHuaweiObsClient(this.obs);
+		this.cloud.close();
+	}
+
+	@Test
+	public void sendsDataThatFitsIntoOnePartWithOnePut() throws Exception {
+		byte[] content = random(1000);
+
+		try (MultipartOutputStream out = this.stream("report.json", 4)) {
+			out.write(content);
+		}
+
+		assertThat(this.cloud.obs().getObject("builds", "report.json").getContent()).isEqualTo(content);
+		assertThat(this.cloud.countRequests("PUT /builds/report.json")).isEqualTo(1);
+		assertThat(this.cloud.countRequests("POST ")).isZero();
+	}
+
+	@Test
+	public void sendsAnEmptyStreamAsAnEmptyObject() throws Exception {
+		this.stream("empty.txt", 4).close();
+
+		assertThat(this.cloud.obs().getObject("builds", "empty.txt").getContent()).isEmpty();
+	}
+
+	@Test
+	public void uploadsLargeStreamsInParts() throws Exception {
+		byte[] content = random((int) (5 * PART_SIZE + PART_SIZE / 2));
+		this.cloud.setLatency(20);
+
+		try (MultipartOutputStream out = this.stream("big.tar.gz", 2)) {
+			// small writes, as from a compressor
+			for (int off = 0; off < content.length; off += 10000) {
+				out.write(content, off, Math.min(10000, content.length - off));
+			}
+		}
+
+		assertThat(this.cloud.obs().getObject("builds", "big.tar.gz").getContent()).isEqualTo(content);
+		assertThat(this.cloud.countRequests("POST /builds/big.tar.gz?uploads")).isEqualTo(1);
+		assertThat(this.cloud.countRequests("PUT /builds/big.tar.gz?")).isEqualTo(6);
+		assertThat(this.cloud.getMaxConcurrentRequests()).isLessThanOrEqualTo(2);
+		assertThat(this.cloud.obs().getOpenUploads()).isZero();
+	}
+
+	@Test
+	public void abortDiscardsTheUploadedParts() throws Exception {
+		MultipartOutputStream out = this.stream("big.tar.gz", 2);
+		out.write(random((int) (2 * PART_SIZE + 5)));
+
+		out.abort();
+
+		assertThat(this.cloud.obs().getObject("builds", "big.tar.gz")).isNull();
+		assertThat(this.cloud.obs().getOpenUploads()).isZero();
+	}
+
+	private MultipartOutputStream stream(String key, int parallelism) {
+		return new MultipartOutputStream(this.obs, "builds", key, null, new MultipartUploader(PART_SIZE, PART_SIZE, parallelism),
+			new TransferProgress(null, false, 1));
+	}
+
+	private static byte[] random(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+}
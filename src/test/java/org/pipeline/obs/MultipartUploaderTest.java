@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+public class MultipartUploaderTest {
+
+	private static final long PART_SIZE = 128 * SizeUtils.KB;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LocalHuaweiCloud cloud;
+	private ObsClient obs;
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.obs = this.cloud.newObsClient();
+	}
+
+	@After
+	public void tearDown() {
+		OBSClientFactory.releaseHuaweiObsClient(this.obs);
+		this.cloud.close();
+	}
+
+	@Test
+	public void uploadsLargeFilesInParts() throws Exception {
+		File file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (8 * PART_SIZE + 17));
+		MultipartUploader uploader = new MultipartUploader(PART_SIZE, PART_SIZE, 4);
+
+		uploader.upload(this.obs, "builds", "big.bin", file, null);
+
+		assertThat(this.cloud.obs().getObject("builds", "big.bin").getContent()).isEqualTo(TestSupport.read(file));
+		assertThat(this.cloud.countRequests("POST /builds/big.bin?uploads")).isEqualTo(1);
+		assertThat(this.cloud.countRequests("PUT /builds/big.bin?")).isEqualTo(9);
+		assertThat(this.cloud.obs().getOpenUploads()).isZero();
+	}
+
+	@Test
+	public void keepsAtMostParallelismPartsInFlight() throws Exception {
+		File file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (12 * PART_SIZE));
+		this.cloud.setLatency(50);
+
+		new MultipartUploader(PART_SIZE, PART_SIZE, 3).upload(this.obs, "builds", "big.bin", file, null);
+
+		assertThat(this.cloud.getMaxConcurrentRequests()).isGreaterThan(1).isLessThanOrEqualTo(3);
+		assertThat(this.cloud.obs().getObject("builds", "big.bin").getContent()).isEqualTo(TestSupport.read(file));
+	}
+
+	@Test
+	public void abortsTheUploadWhenAPartFails() throws Exception {
+		File file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (4 * PART_SIZE));
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/big.bin", 403, "AccessDenied").after(1));
+		MultipartUploader uploader = new MultipartUploader(PART_SIZE, PART_SIZE, 1, TransferThrottle.NONE, new RetryPolicy(0, 0, 0));
+
+		try {
+			uploader.upload(this.obs, "builds", "big.bin", file, null);
+			fail("The upload should have failed");
+		} catch (ObsException e) {
+			assertThat(e.getResponseCode()).isEqualTo(403);
+		}
+
+		assertThat(this.cloud.obs().getObject("builds", "big.bin")).isNull();
+		assertThat(this.cloud.obs().getOpenUploads()).isZero();
+	}
+
+	@Test
+	public void resumesFromTheCheckpointOfAnInterruptedUpload() throws Exception {
+		File file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (9 * PART_SIZE));
+		File checkpointDir = this.folder.newFolder("checkpoints");
+		// one part at a time, so exactly the first three parts get through
+		MultipartUploader uploader = new MultipartUploader(PART_SIZE, PART_SIZE, 1, TransferThrottle.NONE, new RetryPolicy(0, 0, 0));
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/big.bin", 500, "InternalError").after(3));
+
+		try {
+			uploader.upload(this.obs, "builds", "big.bin", file, null, checkpointDir, new TransferProgress(null, false, 1));
+			fail("The upload should have failed");
+		} catch (ObsException e) {
+			assertThat(e.getResponseCode()).isEqualTo(500);
+		}
+		assertThat(checkpointDir.listFiles()).hasSize(1);
+		assertThat(this.cloud.obs().getOpenUploads()).isEqualTo(1);
+
+		this.cloud.reset();
+		uploader.upload(this.obs, "builds", "big.bin", file, null, checkpointDir, new TransferProgress(null, false, 1));
+
+		assertThat(this.cloud.countRequests("POST /builds/big.bin?uploads")).isZero();
+		assertThat(this.cloud.countRequests("PUT /builds/big.bin?")).isEqualTo(6);
+		assertThat(this.cloud.obs().getObject("builds", "big.bin").getContent()).isEqualTo(TestSupport.read(file));
+		assertThat(this.cloud.obs().getOpenUploads()).isZero();
+		assertThat(checkpointDir.listFiles()).isEmpty();
+	}
+
+	@Test
+	public void restartsWhenTheFileChangedSinceTheCheckpoint() throws Exception {
+		File file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (4 * PART_SIZE));
+		File checkpointDir = this.folder.newFolder("checkpoints");
+		MultipartUploader uploader = new MultipartUploader(PART_SIZE, PART_SIZE, 1, TransferThrottle.NONE, new RetryPolicy(0, 0, 0));
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/big.bin", 500, "InternalError").after(2));
+		try {
+			uploader.upload(this.obs, "builds", "big.bin", file, null, checkpointDir, new TransferProgress(null, false, 1));
+			fail("The upload should have failed");
+		} catch (ObsException e) {
+			assertThat(e.getResponseCode()).isEqualTo(500);
+		}
+
+		this.cloud.reset();
+		file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", (int) (5 * PART_SIZE));
+		uploader.upload(this.obs, "builds", "big.bin", file, null, checkpointDir, new TransferProgress(null, false, 1));
+
+		assertThat(this.cloud.countRequests("POST /builds/big.bin?uploads")).isEqualTo(1);
+		assertThat(this.cloud.countRequests("PUT /builds/big.bin?")).isEqualTo(5);
+		assertThat(this.cloud.obs().getObject("builds", "big.bin").getContent()).isEqualTo(TestSupport.read(file));
+	}
+}
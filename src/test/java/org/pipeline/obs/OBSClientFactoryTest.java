@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import org.junit.Test;
+
+import hudson.EnvVars;
+
+public class OBSClientFactoryTest {
+
+	@Test
+	public void addressesBucketsOfAddressEndpointsByPath() {
+		assertThat(OBSClientFactory.isAddress("http://127.0.0.1:9000")).isTrue();
+		assertThat(OBSClientFactory.isAddress("localhost:9000/")).isTrue();
+		assertThat(OBSClientFactory.isAddress("http://[::1]:9000")).isTrue();
+		assertThat(OBSClientFactory.isAddress("https://obs.cn-north-4.myhuaweicloud.com")).isFalse();
+		assertThat(OBSClientFactory.isAddress("https://obs.10.0.0.1.example.com")).isFalse();
+		assertThat(OBSClientFactory.isAddress(null)).isFalse();
+	}
+
+	@Test
+	public void takesTheCloudDomainFromTheEndpoint() {
+		assertThat(OBSClientFactory.getCloudDomainName(this.vars("https://obs.cn-north-4.myhuaweicloud.com", "cn-north-4")))
+			.isEqualTo("myhuaweicloud.com");
+		assertThat(OBSClientFactory.getCloudDomainName(this.vars("obs.eu-west-0.example.com:443/", "eu-west-0")))
+			.isEqualTo("example.com");
+		assertThat(OBSClientFactory.getCloudDomainName(this.vars("https://eu-west-0.example.com", "eu-west-0")))
+			.isEqualTo("example.com");
+	}
+
+	@Test
+	public void rejectsAnEndpointWithoutTheRegionUnlessTheOtherEndpointsAreSet() {
+		EnvVars vars = this.vars("http://127.0.0.1:9000", "local");
+		vars.put(OBSClientFactory.OBS_IAM_ENDPOINT, "http://127.0.0.1:9000");
+		try {
+			OBSClientFactory.getCloudDomainName(vars);
+			fail("The endpoint should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).isEqualTo("Cannot tell the cloud domain from endpointUrl http://127.0.0.1:9000 and region local"
+				+ ", set iamEndpoint and functionGraphEndpoint");
+		}
+
+		vars.put(OBSClientFactory.OBS_FUNCTIONGRAPH_ENDPOINT, "http://127.0.0.1:9000");
+		assertThat(OBSClientFactory.getCloudDomainName(vars)).isNotEmpty();
+	}
+
+	@Test
+	public void rejectsAnEndpointOfAnotherRegion() {
+		try {
+			OBSClientFactory.getCloudDomainName(this.vars("https://obs.cn-north-4.myhuaweicloud.com", "cn-east-3"));
+			fail("The endpoint should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).startsWith("Cannot tell the cloud domain");
+		}
+	}
+
+	private EnvVars vars(String endpoint, String region) {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_ENDPOINT_URL, endpoint);
+		vars.put(OBSClientFactory.OBS_REGION, region);
+		return vars;
+	}
+}
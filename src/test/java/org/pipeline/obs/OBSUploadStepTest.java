@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import hudson.model.Run;
+
+public class OBSUploadStepTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LocalHuaweiCloud cloud;
+	private File workspace;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.workspace = this.folder.newFolder("workspace");
+	}
+
+	@After
+	public void tearDown() {
+		this.cloud.close();
+	}
+
+	@Test
+	public void syncSkipsUnchangedFilesAndDeletesRemovedOnes() throws Exception {
+		TestSupport.write(this.workspace, "site/a.txt", "a".getBytes(StandardCharsets.UTF_8));
+		TestSupport.write(this.workspace, "site/b.txt", "b".getBytes(StandardCharsets.UTF_8));
+		File removed = TestSupport.write(this.workspace, "site/sub/c.txt", "c".getBytes(StandardCharsets.UTF_8));
+		OBSUploadStep step = this.syncStep(true);
+
+		assertThat(this.run(step)).isEqualTo("obs://builds/site");
+		assertThat(this.cloud.obs().listKeys("builds")).containsExactly(
+			"site/" + SyncManifest.MANIFEST_NAME, "site/a.txt", "site/b.txt", "site/sub/c.txt");
+
+		TestSupport.write(this.workspace, "site/b.txt", "b, changed".getBytes(StandardCharsets.UTF_8));
+		assertThat(removed.delete()).isTrue();
+		this.cloud.reset();
+		this.log.reset();
+
+		assertThat(this.run(step)).isEqualTo("obs://builds/site");
+		assertThat(this.cloud.countRequests("PUT /builds/site/a.txt")).isZero();
+		assertThat(this.cloud.countRequests("PUT /builds/site/b.txt")).isEqualTo(1);
+		assertThat(this.cloud.obs().getObject("builds", "site/b.txt").getContent()).isEqualTo("b, changed".getBytes(StandardCharsets.UTF_8));
+		assertThat(this.cloud.obs().listKeys("builds")).containsExactly(
+			"site/" + SyncManifest.MANIFEST_NAME, "site/a.txt", "site/b.txt");
+		assertThat(this.log.toString()).contains("Sync: 1 files uploaded, 1 unchanged, 1 removed");
+	}
+
+	@Test
+	public void syncKeepsRemovedFilesUnlessAskedToDeleteThem() throws Exception {
+		TestSupport.write(this.workspace, "site/a.txt", "a".getBytes(StandardCharsets.UTF_8));
+		File removed = TestSupport.write(this.workspace, "site/b.txt", "b".getBytes(StandardCharsets.UTF_8));
+		OBSUploadStep step = this.syncStep(false);
+		this.run(step);
+
+		assertThat(removed.delete()).isTrue();
+		this.cloud.reset();
+		this.log.reset();
+		this.run(step);
+
+		assertThat(this.cloud.countRequests("PUT /builds/site/a.txt")).isZero();
+		assertThat(this.cloud.obs().listKeys("builds")).contains("site/b.txt");
+		assertThat(this.log.toString()).contains("Sync: 0 files uploaded, 1 unchanged, 0 removed");
+	}
+
+	@Test
+	public void syncHashesOnlyFilesWhoseSizeOrModificationTimeChanged() throws Exception {
+		File a = TestSupport.write(this.workspace, "site/a.txt", "a".getBytes(StandardCharsets.UTF_8));
+		File b = TestSupport.write(this.workspace, "site/b.txt", "b".getBytes(StandardCharsets.UTF_8));
+		assertThat(a.setLastModified(1500000000000L)).isTrue();
+		assertThat(b.setLastModified(1500000000000L)).isTrue();
+		OBSUploadStep step = this.syncStep(false);
+		this.run(step);
+
+		// same size and time as recorded, so the new content goes unnoticed without hashing
+		TestSupport.write(this.workspace, "site/a.txt", "x".getBytes(StandardCharsets.UTF_8));
+		assertThat(a.setLastModified(1500000000000L)).isTrue();
+		// touched only, hashing finds the same content
+		assertThat(b.setLastModified(1600000000000L)).isTrue();
+		this.cloud.reset();
+		this.log.reset();
+		this.run(step);
+
+		assertThat(this.cloud.countRequests("PUT /builds/site/a.txt")).isZero();
+		assertThat(this.cloud.countRequests("PUT /builds/site/b.txt")).isZero();
+		assertThat(this.log.toString()).contains("Sync: 0 files uploaded, 2 unchanged, 0 removed");
+		String manifest = new String(this.cloud.obs().getObject("builds", "site/" + SyncManifest.MANIFEST_NAME).getContent(), StandardCharsets.ISO_8859_1);
+		// the MD5 of "a", carried over from the first sync
+		assertThat(manifest).contains("a.txt=0cc175b9c0f1b6a831c399e269772661 1 1500000000000");
+		assertThat(manifest).contains("b.txt=" + SyncManifest.md5Hex(b) + " 1 1600000000000");
+	}
+
+	@Test
+	public void syncRetriesDeletingRemovedFilesAndSavingTheManifest() throws Exception {
+		TestSupport.write(this.workspace, "site/a.txt", "a".getBytes(StandardCharsets.UTF_8));
+		File removed = TestSupport.write(this.workspace, "site/b.txt", "b".getBytes(StandardCharsets.UTF_8));
+		OBSUploadStep step = this.syncStep(true);
+		this.run(step);
+
+		assertThat(removed.delete()).isTrue();
+		this.cloud.reset();
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("POST", "/builds", 503, "ServiceUnavailable").times(1));
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/site/" + SyncManifest.MANIFEST_NAME, 503, "ServiceUnavailable").times(1));
+		this.run(step);
+
+		assertThat(this.cloud.countRequests("POST /builds")).isEqualTo(2);
+		assertThat(this.cloud.countRequests("PUT /builds/site/" + SyncManifest.MANIFEST_NAME)).isEqualTo(2);
+		assertThat(this.cloud.obs().listKeys("builds")).containsExactly("site/" + SyncManifest.MANIFEST_NAME, "site/a.txt");
+	}
+
+	@Test
+	public void uploadsAtMostParallelismFilesAtOnce() throws Exception {
+		for (int i = 0; i < 8; i++) {
+			TestSupport.randomFile(this.workspace, "dist/file" + i + ".bin", 1000);
+		}
+		OBSUploadStep step = new OBSUploadStep("builds");
+		step.setIncludePathPattern("dist/**");
+		step.setParallelism(2);
+		this.cloud.setLatency(50);
+
+		assertThat(this.run(step)).isEqualTo("obs://builds/");
+
+		assertThat(this.cloud.countRequests("PUT /builds/dist/")).isEqualTo(8);
+		assertThat(this.cloud.getMaxConcurrentRequests()).isEqualTo(2);
+	}
+
+	@Test
+	public void recordsAnUploadThatMatchesNothingWithoutADuration() throws Exception {
+		TestSupport.randomFile(this.workspace, "dist/app.jar", 1000);
+		OBSUploadStep step = new OBSUploadStep("builds");
+		step.setIncludePathPattern("**/*.war");
+		StepContext context = TestSupport.stepContext(this.cloud.envVars(), this.workspace, new PrintStream(this.log, true));
+		Run<?, ?> run = mock(Run.class);
+		when(context.get(Run.class)).thenReturn(run);
+
+		new OBSUploadStep.Execution(step, context).run();
+
+		ArgumentCaptor<HuaweiCloudMetricsAction> action = ArgumentCaptor.forClass(HuaweiCloudMetricsAction.class);
+		verify(run).addAction(action.capture());
+		HuaweiCloudMetricsAction.Entry entry = action.getValue().getEntries().get(0);
+		assertThat(entry.getCount()).isZero();
+		assertThat(entry.getBytes()).isZero();
+		assertThat(entry.getDuration()).isBetween(0L, 10000L);
+		assertThat(this.cloud.countRequests("PUT ")).isZero();
+		assertThat(this.log.toString()).contains("Nothing to upload");
+	}
+
+	private OBSUploadStep syncStep(boolean deleteRemoved) {
+		OBSUploadStep step = new OBSUploadStep("builds");
+		step.setWorkingDir("site");
+		step.setIncludePathPattern("**");
+		step.setPath("site");
+		step.setSync(true);
+		step.setDeleteRemoved(deleteRemoved);
+		return step;
+	}
+
+	private Object run(OBSUploadStep step) throws Exception {
+		StepContext context = TestSupport.stepContext(this.cloud.envVars(), this.workspace, new PrintStream(this.log, true));
+		return new OBSUploadStep.Execution(step, context).run();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.obs.services.ObsClient;
+import com.obs.services.model.ObjectMetadata;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+import hudson.AbortException;
+
+public class RangedDownloaderTest {
+
+	private static final long PART_SIZE = 128 * SizeUtils.KB;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LocalHuaweiCloud cloud;
+	private ObsClient obs;
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.obs = this.cloud.newObsClient();
+	}
+
+	@After
+	public void tearDown() {
+		OBSClientFactory.releaseHuaweiObsClient(this.obs);
+		this.cloud.close();
+	}
+
+	@Test
+	public void downloadsLargeObjectsInRanges() throws Exception {
+		byte[] content = this.put("big.bin", (int) (8 * PART_SIZE + 5));
+		File target = new File(this.folder.getRoot(), "out/big.bin");
+		TransferProgress progress = new TransferProgress(null, false, 1, "Downloaded");
+		this.cloud.setLatency(20);
+
+		new RangedDownloader(PART_SIZE, 2 * PART_SIZE, 3).download(this.obs, "builds", "big.bin", target, content.length, progress);
+
+		assertThat(TestSupport.read(target)).isEqualTo(content);
+		assertThat(this.cloud.countRequests("HEAD /builds/big.bin")).isEqualTo(1);
+		assertThat(this.cloud.countRequests("GET /builds/big.bin")).isEqualTo(9);
+		assertThat(this.cloud.getMaxConcurrentRequests()).isLessThanOrEqualTo(3);
+		assertThat(progress.getBytes()).isEqualTo(content.length);
+		assertThat(progress.getFiles()).isEqualTo(1);
+	}
+
+	@Test
+	public void downloadsSmallObjectsInOneRequest() throws Exception {
+		byte[] content = this.put("small.txt", 1000);
+		File target = new File(this.folder.getRoot(), "small.txt");
+
+		new RangedDownloader(PART_SIZE, 2 * PART_SIZE, 3).download(this.obs, "builds", "small.txt", target, content.length,
+			new TransferProgress(null, false, 1, "Downloaded"));
+
+		assertThat(TestSupport.read(target)).isEqualTo(content);
+		assertThat(this.cloud.countRequests("HEAD /builds/small.txt")).isZero();
+		assertThat(this.cloud.countRequests("GET /builds/small.txt")).isEqualTo(1);
+	}
+
+	@Test
+	public void abortsWhenTheObjectIsReplacedDuringTheDownload() throws Exception {
+		this.put("big.bin", (int) (4 * PART_SIZE));
+		ObjectMetadata metadata = this.obs.getObjectMetadata("builds", "big.bin");
+		this.put("big.bin", (int) (4 * PART_SIZE));
+		File target = new File(this.folder.getRoot(), "big.bin");
+
+		try {
+			new RangedDownloader(PART_SIZE, 2 * PART_SIZE, 2).download(this.obs, "builds", "big.bin", target, metadata,
+				new TransferProgress(null, false, 1, "Downloaded"));
+			fail("The download should have failed");
+		} catch (AbortException e) {
+			assertThat(e.getMessage()).isEqualTo("obs://builds/big.bin was replaced during the download");
+		}
+		assertThat(this.folder.getRoot().list()).isEmpty();
+	}
+
+	private byte[] put(String key, int length) {
+		byte[] content = new byte[length];
+		new Random().nextBytes(content);
+		this.cloud.obs().putObject("builds", key, content, "application/octet-stream");
+		return content;
+	}
+}
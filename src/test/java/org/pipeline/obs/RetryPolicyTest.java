@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obs.services.ObsClient;
+import com.obs.services.exception.ObsException;
+
+import hudson.EnvVars;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+public class RetryPolicyTest {
+
+	private LocalHuaweiCloud cloud;
+	private ObsClient obs;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.obs = this.cloud.newObsClient();
+	}
+
+	@After
+	public void tearDown() {
+		OBSClientFactory.releaseHuaweiObsClient(this.obs);
+		this.cloud.close();
+	}
+
+	@Test
+	public void retriesServiceUnavailableOnItsOwn() throws Exception {
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/notes.txt", 503, "ServiceUnavailable").times(2).retryAfter(1));
+		TransferProgress progress = this.progress();
+
+		this.uploadText(new RetryPolicy(3, 0, 0), progress);
+
+		// the OBS client does not retry, so every request on the wire is one of ours
+		assertThat(this.cloud.countRequests("PUT /builds/notes.txt")).isEqualTo(3);
+		assertThat(this.cloud.obs().getObject("builds", "notes.txt").getContent()).isEqualTo("release notes".getBytes(StandardCharsets.UTF_8));
+		assertThat(progress.getRequestStats().getRetries()).isEqualTo(2);
+		assertThat(this.log.toString()).contains("Retrying notes.txt in ").contains(" ms (1/3): 503 ServiceUnavailable");
+	}
+
+	@Test
+	public void waitsAsLongAsRetryAfterAsks() {
+		ObsException e = new ObsException("Service Unavailable");
+		e.setResponseCode(503);
+		e.setResponseHeaders(Collections.singletonMap("Retry-After", "2"));
+
+		// no backoff of its own, so the delay can only come from Retry-After
+		assertThat(new RetryPolicy(3, 0, 0).delay(0, e)).isEqualTo(2000);
+	}
+
+	@Test
+	public void givesUpAfterMaxRetries() throws Exception {
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/notes.txt", 503, "ServiceUnavailable"));
+
+		try {
+			this.uploadText(new RetryPolicy(2, 0, 0), this.progress());
+			fail("The upload should have failed");
+		} catch (ObsException e) {
+			assertThat(e.getResponseCode()).isEqualTo(503);
+		}
+		assertThat(this.cloud.countRequests("PUT /builds/notes.txt")).isEqualTo(3);
+	}
+
+	@Test
+	public void doesNotRetryClientErrors() throws Exception {
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/notes.txt", 403, "AccessDenied").times(1));
+
+		try {
+			this.uploadText(new RetryPolicy(3, 0, 0), this.progress());
+			fail("The upload should have failed");
+		} catch (ObsException e) {
+			assertThat(e.getResponseCode()).isEqualTo(403);
+		}
+		assertThat(this.cloud.countRequests("PUT /builds/notes.txt")).isEqualTo(1);
+	}
+
+	@Test
+	public void retriesDroppedConnections() throws Exception {
+		this.cloud.fault(LocalHuaweiCloud.Fault.disconnect("PUT", "/builds/notes.txt").times(1));
+
+		this.uploadText(new RetryPolicy(3, 0, 0), this.progress());
+
+		assertThat(this.cloud.obs().getObject("builds", "notes.txt")).isNotNull();
+	}
+
+	@Test
+	public void retriesSettingCacheControl() throws Exception {
+		// the PUT goes through, the metadata update that follows it fails once
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("PUT", "/builds/notes.txt", 503, "ServiceUnavailable").after(1).times(1));
+		TransferProgress progress = this.progress();
+
+		this.uploadText(new RetryPolicy(3, 0, 0), progress, new ObjectHeaders(Collections.<String, String>emptyMap(), null, "max-age=60"));
+
+		assertThat(this.cloud.countRequests("PUT /builds/notes.txt")).isEqualTo(3);
+		assertThat(this.cloud.obs().getObject("builds", "notes.txt").getHeaders()).containsEntry("Cache-Control", "max-age=60");
+		assertThat(progress.getRequestStats().getRetries()).isEqualTo(1);
+		assertThat(this.log.toString()).contains("Retrying setting Cache-Control of notes.txt in ");
+	}
+
+	@Test
+	public void readsTheSettingsOfWithOBS() {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_MAX_RETRIES, " 5 ");
+		vars.put(OBSClientFactory.OBS_RETRY_BASE_DELAY, "100");
+
+		RetryPolicy policy = RetryPolicy.of(vars);
+
+		assertThat(policy.getMaxRetries()).isEqualTo(5);
+		assertThat(policy.delay(0, new IOException("reset"))).isBetween(0L, 100L);
+	}
+
+	@Test
+	public void namesAnInvalidSetting() {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_RETRY_MAX_DELAY, "20s");
+
+		try {
+			RetryPolicy.of(vars);
+			fail("The setting should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).isEqualTo("Invalid value for OBS_RETRY_MAX_DELAY: 20s");
+		}
+	}
+
+	@Test
+	public void rejectsANegativeSetting() {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_MAX_RETRIES, "-1");
+
+		try {
+			RetryPolicy.of(vars);
+			fail("The setting should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).isEqualTo("Invalid value for OBS_MAX_RETRIES: -1 must not be negative");
+		}
+	}
+
+	private TransferProgress progress() {
+		return new TransferProgress(new PrintStream(this.log, true), false, 1);
+	}
+
+	private void uploadText(RetryPolicy retryPolicy, TransferProgress progress) throws IOException, InterruptedException {
+		this.uploadText(retryPolicy, progress, new ObjectHeaders(Collections.<String, String>emptyMap(), null, null));
+	}
+
+	private void uploadText(RetryPolicy retryPolicy, TransferProgress progress, ObjectHeaders headers) throws IOException, InterruptedException {
+		MultipartUploader uploader = new MultipartUploader(MultipartUploader.DEFAULT_PART_SIZE, 64 * SizeUtils.MB, 1,
+			TransferThrottle.NONE, retryPolicy);
+		OBSUploadStep.uploadText(this.obs, "builds", "notes.txt", "release notes", StandardCharsets.UTF_8,
+			headers, uploader, progress);
+	}
+}
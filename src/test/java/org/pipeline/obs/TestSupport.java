@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+/**
+ * Fixtures shared by the tests that run against {@link LocalHuaweiCloud}.
+ */
+final class TestSupport {
+
+	private TestSupport() {
+		//
+	}
+
+	/**
+	 * Writes a file of random bytes, creating parent directories as needed.
+	 */
+	static File randomFile(File dir, String path, int length) throws IOException {
+		byte[] content = new byte[length];
+		new Random(path.hashCode()).nextBytes(content);
+		return write(dir, path, content);
+	}
+
+	static File write(File dir, String path, byte[] content) throws IOException {
+		File file = new File(dir, path);
+		Files.createDirectories(file.getParentFile().toPath());
+		Files.write(file.toPath(), content);
+		return file;
+	}
+
+	static byte[] read(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Returns a context that lets a step execution run directly, without a
+	 * Jenkins instance: it provides the environment, a listener logging to
+	 * the given stream and, when given, the workspace. There is no run, so
+	 * no metrics are recorded.
+	 */
+	static StepContext stepContext(EnvVars envVars, File workspace, PrintStream logger) throws Exception {
+		StepContext context = mock(StepContext.class);
+		TaskListener listener = mock(TaskListener.class);
+		when(listener.getLogger()).thenReturn(logger);
+		when(context.get(EnvVars.class)).thenReturn(envVars);
+		when(context.get(TaskListener.class)).thenReturn(listener);
+		if (workspace != null) {
+			when(context.get(FilePath.class)).thenReturn(new FilePath(workspace));
+		}
+		return context;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TransferProgressTest {
+
+	@Test
+	public void keepsTheDurationMeasuredWhereTheTransferRan() throws Exception {
+		TransferProgress progress = new TransferProgress(null, false, 1);
+		progress.addBytes(1000);
+		Thread.sleep(50);
+		progress.finish();
+
+		TransferProgress copy = this.sendBack(progress);
+		Thread.sleep(50);
+
+		assertThat(copy.getDuration()).isEqualTo(progress.getDuration());
+		assertThat(copy.getBytes()).isEqualTo(1000);
+	}
+
+	@Test
+	public void stopsTheClockWhenAnUnfinishedTransferIsSentBack() throws Exception {
+		TransferProgress copy = this.sendBack(new TransferProgress(null, false, 0));
+		long duration = copy.getDuration();
+		Thread.sleep(50);
+
+		assertThat(copy.isFinished()).isTrue();
+		assertThat(copy.getDuration()).isEqualTo(duration);
+		assertThat(duration).isBetween(0L, TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	public void keepsTheFirstFinish() throws Exception {
+		TransferProgress progress = new TransferProgress(null, false, 1);
+		progress.finish();
+		long duration = progress.getDuration();
+		Thread.sleep(20);
+		progress.finish();
+
+		assertThat(progress.getDuration()).isEqualTo(duration);
+	}
+
+	private TransferProgress sendBack(TransferProgress progress) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(progress);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (TransferProgress) in.readObject();
+		}
+	}
+}
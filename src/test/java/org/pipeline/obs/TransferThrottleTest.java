@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.obs.services.ObsClient;
+
+import hudson.EnvVars;
+
+import org.pipeline.obs.utils.SizeUtils;
+
+public class TransferThrottleTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LocalHuaweiCloud cloud;
+	private ObsClient obs;
+
+	@Before
+	public void setUp() throws IOException {
+		this.cloud = new LocalHuaweiCloud();
+		this.cloud.obs().createBucket("builds");
+		this.obs = this.cloud.newObsClient();
+	}
+
+	@After
+	public void tearDown() {
+		OBSClientFactory.releaseHuaweiObsClient(this.obs);
+		this.cloud.close();
+	}
+
+	@Test
+	public void limitsBandwidth() throws Exception {
+		TransferThrottle throttle = new TransferThrottle(300001, 0);
+		File file = TestSupport.randomFile(this.folder.getRoot(), "big.bin", 900000);
+		MultipartUploader uploader = new MultipartUploader(128 * SizeUtils.KB, 128 * SizeUtils.KB, 4, throttle, RetryPolicy.DEFAULT);
+
+		long started = System.nanoTime();
+		OBSUploadStep.uploadFile(this.obs, "builds", "big.bin", file, uploader, null, null, this.headers(), new TransferProgress(null, false, 1));
+
+		// the first second worth of bytes is free, the remaining two seconds are not
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isGreaterThanOrEqualTo(1800);
+		assertThat(this.cloud.getMaxConcurrentRequests()).isLessThanOrEqualTo(4);
+		assertThat(this.cloud.obs().getObject("builds", "big.bin").getContent()).isEqualTo(TestSupport.read(file));
+	}
+
+	@Test
+	public void limitsRequestsPerSecond() throws Exception {
+		TransferThrottle throttle = new TransferThrottle(0, 7);
+		MultipartUploader uploader = new MultipartUploader(MultipartUploader.DEFAULT_PART_SIZE, MultipartUploader.DEFAULT_MULTIPART_THRESHOLD, 1,
+			throttle, RetryPolicy.DEFAULT);
+		TransferProgress progress = new TransferProgress(null, false, 21);
+
+		long started = System.nanoTime();
+		for (int i = 0; i < 21; i++) {
+			File file = TestSupport.randomFile(this.folder.getRoot(), "file" + i + ".txt", 100);
+			OBSUploadStep.uploadFile(this.obs, "builds", file.getName(), file, uploader, null, null, this.headers(), progress);
+		}
+
+		// the first 7 requests are free, the other 14 take two seconds
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isGreaterThanOrEqualTo(1800);
+		assertThat(this.cloud.countRequests("PUT /builds/file")).isEqualTo(21);
+		assertThat(progress.getFiles()).isEqualTo(21);
+	}
+
+	@Test
+	public void appliesTheLowestLimitToEveryTransfer() throws Exception {
+		TransferThrottle slow = new TransferThrottle(0, 5);
+		TransferThrottle fast = new TransferThrottle(0, 1000);
+
+		long started = System.nanoTime();
+		slow.acquireRequest();
+		for (int i = 0; i < 15; i++) {
+			fast.acquireRequest();
+		}
+
+		// one bucket for the agent, running at the slower rate: 5 requests are free, the other 11 take two seconds
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isGreaterThanOrEqualTo(1800);
+	}
+
+	@Test
+	public void takesTheLimitsOfWithOBSUnlessTheStepSetsThem() {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_MAX_BANDWIDTH, "2MB");
+		vars.put(OBSClientFactory.OBS_MAX_REQUESTS_PER_SECOND, "10");
+
+		assertThat(TransferThrottle.of(vars, null, 0).getBytesPerSecond()).isEqualTo(2 * SizeUtils.MB);
+		assertThat(TransferThrottle.of(vars, null, 0).getRequestsPerSecond()).isEqualTo(10);
+		assertThat(TransferThrottle.of(vars, "1MB", 3).getBytesPerSecond()).isEqualTo(SizeUtils.MB);
+		assertThat(TransferThrottle.of(vars, "1MB", 3).getRequestsPerSecond()).isEqualTo(3);
+	}
+
+	@Test
+	public void namesAnInvalidLimitOfWithOBS() {
+		EnvVars vars = new EnvVars();
+		vars.put(OBSClientFactory.OBS_MAX_REQUESTS_PER_SECOND, "ten");
+
+		try {
+			TransferThrottle.of(vars, null, 0);
+			fail("The limit should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).isEqualTo("Invalid value for OBS_MAX_REQUESTS_PER_SECOND: ten");
+		}
+
+		vars.put(OBSClientFactory.OBS_MAX_REQUESTS_PER_SECOND, "10");
+		vars.put(OBSClientFactory.OBS_MAX_BANDWIDTH, "fast");
+		try {
+			TransferThrottle.of(vars, null, 0);
+			fail("The limit should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).isEqualTo("Invalid value for OBS_MAX_BANDWIDTH: fast");
+		}
+	}
+
+	private ObjectHeaders headers() {
+		return new ObjectHeaders(Collections.<String, String>emptyMap(), null, null);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.EnvVars;
+
+public class UploadDestinationTest {
+
+	private final EnvVars base = new EnvVars();
+
+	@Before
+	public void setUp() {
+		this.base.put(OBSClientFactory.OBS_ENDPOINT_URL, "https://obs.cn-north-4.myhuaweicloud.com");
+		this.base.put(OBSClientFactory.OBS_REGION, "cn-north-4");
+	}
+
+	@Test
+	public void takesTheEndpointAndRegionOfTheDestination() {
+		UploadDestination destination = UploadDestination.of(this.spec("replica", "ap-southeast-1",
+			"https://obs.ap-southeast-1.myhuaweicloud.com"), this.base, null, "dist/");
+
+		assertThat(destination.getRegion()).isEqualTo("ap-southeast-1");
+		assertThat(destination.getEnvVars().get(OBSClientFactory.OBS_ENDPOINT_URL)).isEqualTo("https://obs.ap-southeast-1.myhuaweicloud.com");
+		assertThat(destination.getPath()).isEqualTo("dist/");
+	}
+
+	@Test
+	public void rejectsAnotherRegionWithoutAnEndpoint() {
+		try {
+			UploadDestination.of(this.spec("replica", "ap-southeast-1", null), this.base, null, "dist/");
+			fail("The destination should have been rejected");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage()).isEqualTo("Destination replica sets region ap-southeast-1 but no endpointUrl");
+		}
+	}
+
+	@Test
+	public void acceptsTheRegionOfWithOBSWithoutAnEndpoint() {
+		UploadDestination destination = UploadDestination.of(this.spec("replica", "cn-north-4", null), this.base, null, "dist/");
+
+		assertThat(destination.getEnvVars().get(OBSClientFactory.OBS_ENDPOINT_URL)).isEqualTo("https://obs.cn-north-4.myhuaweicloud.com");
+	}
+
+	private Map<String, Object> spec(String bucket, String region, String endpointUrl) {
+		Map<String, Object> spec = new LinkedHashMap<>();
+		spec.put("bucket", bucket);
+		spec.put("region", region);
+		if (endpointUrl != null) {
+			spec.put("endpointUrl", endpointUrl);
+		}
+		return spec;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pipeline.obs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import hudson.AbortException;
+
+public class WaitForFunctionStepTest {
+
+	private static final String POLLS = "GET /v2/" + LocalFunctionGraph.PROJECT_ID + "/fgs/functions/";
+
+	private LocalHuaweiCloud cloud;
+	private StepContext context;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws Exception {
+		this.cloud = new LocalHuaweiCloud();
+		this.context = TestSupport.stepContext(this.cloud.envVars(), null, new PrintStream(this.log, true));
+	}
+
+	@After
+	public void tearDown() {
+		FunctionUrnCache.invalidate(OBSClientFactory.getProjectKey(this.context));
+		OBSClientFactory.invalidateOscClient(this.context);
+		this.cloud.close();
+	}
+
+	@Test
+	public void succeedsWhenTheInvocationSucceeded() throws Exception {
+		this.cloud.functionGraph().addEchoFunction("echo");
+		WaitForFunctionStep step = new WaitForFunctionStep(this.invokeAsync("echo"));
+		step.setFunctionName("echo");
+
+		assertThat(new WaitForFunctionStep.Execution(step, this.context).start()).isFalse();
+
+		verify(this.context, timeout(10000)).onSuccess(AsyncInvocationService.STATUS_SUCCESS);
+		verify(this.context, never()).onFailure(any(Throwable.class));
+	}
+
+	@Test
+	public void failsWhenTheInvocationFailed() throws Exception {
+		String urn = this.cloud.functionGraph().addFunction("broken", new LocalFunctionGraph.Handler() {
+			@Override
+			public String invoke(String payload) {
+				throw new IllegalStateException("disk full");
+			}
+		});
+		WaitForFunctionStep step = new WaitForFunctionStep(this.invokeAsync("broken"));
+		step.setFunctionUrn(urn);
+
+		new WaitForFunctionStep.Execution(step, this.context).start();
+
+		ArgumentCaptor<Throwable> failure = ArgumentCaptor.forClass(Throwable.class);
+		verify(this.context, timeout(10000)).onFailure(failure.capture());
+		assertThat(failure.getValue()).isInstanceOf(AbortException.class).hasMessageContaining("FAIL").hasMessageContaining("disk full");
+	}
+
+	@Test
+	public void logsPollErrorsAndKeepsPolling() throws Exception {
+		String urn = this.cloud.functionGraph().addEchoFunction("echo");
+		WaitForFunctionStep step = new WaitForFunctionStep(this.invokeAsync("echo"));
+		step.setFunctionUrn(urn);
+		this.cloud.fault(LocalHuaweiCloud.Fault.status("GET", POLLS.substring("GET ".length()), 503, "ServiceUnavailable").times(2));
+
+		new WaitForFunctionStep.Execution(step, this.context).start();
+
+		verify(this.context, timeout(15000)).onSuccess(AsyncInvocationService.STATUS_SUCCESS);
+		assertThat(this.log.toString()).contains("Polling function invocation ").contains(" failed (1/5), retrying: 503")
+			.contains(" failed (2/5), retrying: 503").doesNotContain("(3/5)");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAMissingFunctionBeforePolling() throws Exception {
+		new WaitForFunctionStep.Execution(new WaitForFunctionStep("request"), this.context).start();
+	}
+
+	@Test
+	public void stopsPollingWhenStopped() throws Exception {
+		String urn = this.cloud.functionGraph().addEchoFunction("echo");
+		WaitForFunctionStep step = new WaitForFunctionStep("unknown-request");
+		step.setFunctionUrn(urn);
+		WaitForFunctionStep.Execution execution = new WaitForFunctionStep.Execution(step, this.context);
+		execution.start();
+		// the first poll runs at once and finds nothing, the next one would follow after two seconds
+		Thread.sleep(500);
+
+		AbortException cause = new AbortException("stopped");
+		execution.stop(cause);
+		int polls = this.cloud.countRequests(POLLS);
+
+		verify(this.context, after(3000).never()).onSuccess(any());
+		verify(this.context).onFailure(cause);
+		assertThat(this.cloud.countRequests(POLLS)).isEqualTo(polls);
+	}
+
+	private String invokeAsync(String functionName) throws Exception {
+		InvokeFunctionStep step = new InvokeFunctionStep(functionName);
+		step.setAsync(true);
+		return (String) new InvokeFunctionStep.Execution(step, this.context).run();
+	}
+}